@@ -0,0 +1,171 @@
+package lab6;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import abstractClient.AbstractClient;
+import link.FrameCapture;
+
+/**
+ * This class plays a capture taken on the primary station back into a new
+ * Server on a loopback port. Every connection in the capture becomes a
+ * station that sends the server exactly the messages it received from that
+ * connection, at the times they were received, or faster. The SNRM the
+ * primary sent is repeated at the same point, so the replayed stations find
+ * the server in the same mode. Frames carry the addresses of the captured
+ * run, so what a server does with a frame for an address that no longer
+ * exists differs, but the load it handles is the same.
+ *
+ * Run with: java -cp bin:bench-bin lab6.CaptureReplay --capture file
+ * [--port p] [--speed s]; a speed of 2 replays twice as fast, 0 as fast as
+ * possible.
+ *
+ * @author Karen SRocha
+ */
+public class CaptureReplay {
+
+	final private static String CONTROL_SNRM = "11001001";
+
+	private String capture;
+	private int port = 5557;
+	private double speed = 1;
+
+	private Map<Integer, Station> stations = new HashMap<>();
+	private AtomicLong received = new AtomicLong();
+	private long replayed = 0;
+	private long late = 0;
+
+	/**
+	 * A replayed connection. It only sends what the capture holds and
+	 * counts what the server sends back.
+	 */
+	private class Station extends AbstractClient {
+
+		Station() throws IOException {
+			super("localhost", port);
+			openConnection();
+		}
+
+		@Override
+		protected void handleMessageFromServer(Object msg) {
+			received.incrementAndGet();
+		}
+	}
+
+	/**
+	 * This method runs the replay.
+	 *
+	 * @param args
+	 *            --capture (the file), --port and --speed.
+	 */
+	public static void main(String[] args) throws Exception {
+		CaptureReplay replay = new CaptureReplay();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "--capture":
+				replay.capture = value;
+				break;
+			case "--port":
+				replay.port = Integer.parseInt(value);
+				break;
+			case "--speed":
+				replay.speed = Double.parseDouble(value);
+				break;
+			default:
+				System.out.println("Unknown option " + args[i]);
+				return;
+			}
+		}
+		if (replay.capture == null) {
+			System.out.println("--capture is required");
+			return;
+		}
+		replay.run();
+		System.exit(0);
+	}
+
+	private void run() throws Exception {
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		Server server = new Server(port, message -> {
+		});
+		server.listen();
+
+		long start = System.nanoTime();
+		long started = FrameCapture.read(Paths.get(capture), record -> {
+			boolean snrm = record.type == FrameCapture.TYPE_FRAME
+					&& !record.inbound && isSnrm(record.payload);
+			if (!snrm && (!record.inbound || record.type == FrameCapture.TYPE_FRAME))
+				return;
+			waitUntil(start, record.nanos);
+			if (snrm) {
+				server.handleMessageFromServerUI("snrm");
+				return;
+			}
+			Message message = Message.fromCapture(record.type, record.payload);
+			if (message == null)
+				return;
+			try {
+				Station station = stations.get(record.stream);
+				if (station == null) {
+					station = new Station();
+					stations.put(record.stream, station);
+				}
+				station.sendToServer(message);
+				replayed++;
+			} catch (IOException e) {
+				console.println("Connection " + record.stream + ": "
+						+ e.getMessage());
+			}
+		});
+		double runSeconds = (System.nanoTime() - start) / 1e9;
+		Thread.sleep(500);
+
+		console.println("captured at         " + new Date(started));
+		console.println("connections         " + stations.size());
+		console.println("messages replayed   " + replayed);
+		console.println("behind schedule     " + late);
+		console.printf("replay time         %.3f s%n", runSeconds);
+		console.printf("rate                %.1f messages/s%n", replayed
+				/ runSeconds);
+		console.println("messages received   " + received.get());
+
+		for (Station station : stations.values()) {
+			station.closeConnection();
+		}
+		server.close();
+	}
+
+	/**
+	 * This method waits until a record's time comes, scaled by the speed.
+	 * Records whose time has passed are counted as behind schedule.
+	 */
+	private void waitUntil(long start, long nanos) {
+		if (speed <= 0)
+			return;
+		long wait = start + (long) (nanos / speed) - System.nanoTime();
+		if (wait < 0) {
+			if (wait < -1000000)
+				late++;
+			return;
+		}
+		try {
+			Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static boolean isSnrm(String frame) {
+		return frame.length() >= 24
+				&& frame.regionMatches(16, CONTROL_SNRM, 0, 8);
+	}
+}
@@ -0,0 +1,178 @@
+package lab6;
+
+import java.util.Random;
+
+/**
+ * This class benchmarks the frame encode/decode and conversion hot paths in
+ * Hdlc. Each case is warmed up and then measured over several iterations, in
+ * the manner of a JMH average-time benchmark, across payload sizes up to the
+ * 64 byte information field limit and beyond. Results are printed as
+ * nanoseconds per operation so runs can be compared for regressions.
+ *
+ * Run with: java -cp bin:bench-bin lab6.HdlcBenchmark [iterations]
+ *
+ * @author Karen SRocha
+ */
+public class HdlcBenchmark {
+
+	final private static int[] PAYLOAD_SIZES = { 1, 8, 16, 32, 64, 128, 256 };
+	final private static int WARMUP_ITERATIONS = 5;
+	final private static int DEFAULT_ITERATIONS = 10;
+	final private static long ITERATION_NANOS = 200000000L;
+
+	final private static String ADDRESS = "10110011";
+	final private static String CONTROL_INFO = "00010000";
+	final private static String FCS = "0000000000000000";
+
+	/**
+	 * Sink for benchmark results, so the JIT cannot discard the work.
+	 */
+	private static volatile long sink;
+
+	/**
+	 * A single operation being measured.
+	 */
+	private interface Case {
+		long run();
+	}
+
+	/**
+	 * This method runs all the benchmarks.
+	 *
+	 * @param args
+	 *            [0] The number of measured iterations. Defaults to 10.
+	 */
+	public static void main(String[] args) {
+		int iterations = DEFAULT_ITERATIONS;
+		if (args.length > 0) {
+			iterations = Integer.parseInt(args[0]);
+		}
+
+		System.out.printf("%-20s %8s %14s %14s%n", "Benchmark", "Bytes",
+				"ns/op", "error");
+
+		for (int size : PAYLOAD_SIZES) {
+			final String text = randomText(size);
+			final String bits = Hdlc.englishToBinary(text);
+			final String frame = Hdlc.FLAG + ADDRESS + CONTROL_INFO + bits
+					+ FCS + Hdlc.FLAG;
+
+			measure("englishToBinary", size, iterations,
+					() -> Hdlc.englishToBinary(text).length());
+			measure("binaryToASCII", size, iterations,
+					() -> Hdlc.binaryToASCII(bits).length());
+			measure("legacyEnglishToBin", size, iterations,
+					() -> legacyEnglishToBinary(text).length());
+			measure("legacyBinaryToASCII", size, iterations,
+					() -> legacyBinaryToASCII(bits).length());
+			measure("isBinary", size, iterations,
+					() -> Hdlc.isBinary(frame) ? 1 : 0);
+			measure("legacyIsBinary", size, iterations,
+					() -> legacyIsBinary(frame) ? 1 : 0);
+			measure("isFlagOK", size, iterations,
+					() -> Hdlc.isFlagOK(frame) ? 1 : 0);
+			measure("breakFrame", size, iterations,
+					() -> Hdlc.breakFrame(frame).size());
+			measure("getWindowFrames", size, iterations,
+					() -> Hdlc.getWindowFrames(Hdlc.EIGHT_BITS - 1, frame).length);
+		}
+	}
+
+	private static void measure(String name, int size, int iterations,
+			Case benchmark) {
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			iteration(benchmark);
+		}
+
+		double[] results = new double[iterations];
+		double mean = 0;
+		for (int i = 0; i < iterations; i++) {
+			results[i] = iteration(benchmark);
+			mean += results[i];
+		}
+		mean /= iterations;
+
+		double variance = 0;
+		for (double r : results) {
+			variance += (r - mean) * (r - mean);
+		}
+		double error = iterations > 1 ? Math.sqrt(variance / (iterations - 1))
+				: 0;
+
+		System.out.printf("%-20s %8d %14.1f %14.1f%n", name, size, mean,
+				error);
+	}
+
+	private static double iteration(Case benchmark) {
+		long ops = 0;
+		long result = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			for (int i = 0; i < 64; i++) {
+				result += benchmark.run();
+			}
+			ops += 64;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < ITERATION_NANOS);
+		sink += result;
+		return (double) elapsed / ops;
+	}
+
+	/**
+	 * The split based isBinary this project started with, kept as a
+	 * baseline.
+	 */
+	private static boolean legacyIsBinary(String message) {
+		boolean result = true;
+		String[] charac = message.split("");
+		for (String s : charac) {
+			if (!s.equals("0") && !s.equals("1") && !s.equals("+")
+					&& !s.equals("-")) {
+				result = false;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The String based englishToBinary this project started with, kept as a
+	 * baseline.
+	 */
+	private static String legacyEnglishToBinary(String characters) {
+		byte[] bytes = characters.getBytes();
+		StringBuilder binary = new StringBuilder();
+		for (byte b : bytes) {
+			int val = b;
+			for (int i = 0; i < 8; i++) {
+				binary.append((val & 128) == 0 ? 0 : 1);
+				val <<= 1;
+			}
+		}
+		return binary + "";
+	}
+
+	/**
+	 * The String based binaryToASCII this project started with, kept as a
+	 * baseline.
+	 */
+	private static String legacyBinaryToASCII(String b) {
+		String result = "";
+		char nextCharacter;
+
+		for (int i = 0; i <= b.length() - 8; i += 8) {
+			nextCharacter = (char) Integer.parseInt(b.substring(i, i + 8), 2);
+			result += nextCharacter;
+		}
+		return result;
+	}
+
+	private static String randomText(int size) {
+		Random random = new Random(size);
+		StringBuilder text = new StringBuilder(size);
+		for (int i = 0; i < size; i++) {
+			text.append((char) (' ' + random.nextInt(95)));
+		}
+		return text.toString();
+	}
+}
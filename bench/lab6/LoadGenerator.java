@@ -0,0 +1,473 @@
+package lab6;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import link.FrameCapture;
+import link.InProcessTransport;
+import link.LinkImpairment;
+import link.SocketTransport;
+import link.Transport;
+
+/**
+ * This class is an end-to-end load generator. It starts a Server on a
+ * loopback port, connects N simulated Client stations, runs the SNRM/UA
+ * setup and then has every station send INFO frames to the primary at a
+ * configurable rate and size. It reports throughput, send-to-ACK latency
+ * percentiles, connection setup time and the heap held by the server and
+ * stations once every link is up (they share this JVM).
+ *
+ * Each station is stop-and-wait per message, as I-frames carry no N(S): a
+ * tick that finds the previous message still unacknowledged is counted as
+ * skipped. Payloads over 63 bytes are sent as several I-frames.
+ *
+ * A primary has 254 station addresses. More stations are spread over as
+ * many independent primaries, each with its own address space, on
+ * consecutive ports from --port; stations of different primaries never
+ * exchange frames, which the generator does not need. Every station is a
+ * Client with its own connection and threads, so the number of stations is
+ * bounded by the threads this JVM can run rather than by the addresses.
+ *
+ * With --capture the traffic of the primary is recorded to a file that
+ * CaptureReplay can play back.
+ *
+ * With --transport memory the stations connect over an InProcessTransport
+ * instead of loopback TCP, which takes the kernel and serialization out of
+ * the measurement and gives an upper bound on what the protocol code can do.
+ *
+ * With --shards N each primary is split into N Servers in a ShardGroup, on
+ * consecutive ports, and its stations are spread over them. With --nodes N
+ * they are N cluster nodes instead, each with a ClusterRouter connected to
+ * the others over loopback TCP on the ports following theirs.
+ *
+ * The impairment options run every link, both ways, over a LinkImpairment:
+ * --drop, --ber, --delay and --jitter (ms, with --distribution), --bandwidth
+ * (bits per second), --reorder and --seed. They take effect once the links
+ * are set up, since SNRM and UA are never sent again. A message that is not
+ * acknowledged within --timeout ms is sent again. A message counts as
+ * acknowledged once N(R) counts one more message than when it was first
+ * sent, not on the next ACK to arrive. It is only sent once every copy of
+ * the one before is acknowledged or has timed out as lost, so a late ACK
+ * of an earlier copy is not taken for it.
+ * With --ack-every and --ack-delay (ms) both ends delay their ACKs, which
+ * are then cumulative; since stations only send to the primary, an ACK
+ * mostly waits out the delay.
+ * Goodput counts the payload bytes of acknowledged messages and efficiency
+ * the share of sends, retransmissions included, that were acknowledged.
+ *
+ * Run with: java -cp bin:bench-bin lab6.LoadGenerator [options]
+ *
+ * @author Karen SRocha
+ */
+public class LoadGenerator {
+
+	final private static String CONTROL_SNRM = "11001001";
+	final private static String CONTROL_ACK = "10001000";
+	final private static String SERVER_ADDRESS = "00000000";
+	// 8-bit addresses, less the primary's and the broadcast address
+	final private static int ADDRESSES = 254;
+
+	private int port = 5556;
+	private int stations = 10;
+	private int shards = 1;
+	private boolean cluster = false;
+	private int ackEvery = 1;
+	private long ackDelay = 0;
+	private double rate = 10;
+	private int size = 32;
+	private int seconds = 10;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private String capture;
+	private Transport transport = SocketTransport.DEFAULT;
+	private LinkImpairment impairment;
+	private long seed = 1;
+	private double drop = 0;
+	private double ber = 0;
+	private double delay = 0;
+	private double jitter = 0;
+	private LinkImpairment.Jitter distribution = LinkImpairment.Jitter.UNIFORM;
+	private long bandwidth = 0;
+	private boolean reorder = false;
+	private long timeout = 0;
+	private AtomicLong retransmitted = new AtomicLong();
+
+	private Recorder setupTimes = new Recorder();
+	private Recorder latencies = new Recorder();
+	private AtomicLong sent = new AtomicLong();
+	private AtomicLong acked = new AtomicLong();
+	private AtomicLong skipped = new AtomicLong();
+	private Map<String, Long> created = new ConcurrentHashMap<>();
+	private CountDownLatch loggedIn;
+	private CountDownLatch linked;
+
+	/**
+	 * A growable array of nanosecond samples.
+	 */
+	private static class Recorder {
+		private long[] samples = new long[1024];
+		private int count;
+
+		synchronized void record(long nanos) {
+			if (count == samples.length) {
+				samples = Arrays.copyOf(samples, count * 2);
+			}
+			samples[count++] = nanos;
+		}
+
+		synchronized long[] sorted() {
+			long[] result = Arrays.copyOf(samples, count);
+			Arrays.sort(result);
+			return result;
+		}
+	}
+
+	/**
+	 * A simulated secondary station. It answers SNRM with UA and records
+	 * the time between sending an INFO frame and receiving its ACK.
+	 */
+	private class Station extends Client {
+		// the connection is opened by the Client constructor, so anything the
+		// reader thread needs lives in the generator rather than here
+		private volatile long sentAt;
+		private volatile long lastSentAt;
+		// the acknowledged count the current message is waiting for
+		private volatile long sequence;
+
+		Station(String loginID, int port) {
+			super(loginID, "localhost", port, message -> {
+			}, transport);
+			setImpairment(impairment);
+			setDelayedAck(ackEvery, ackDelay);
+		}
+
+		@Override
+		public void handleMessageFromServer(Object msg) {
+			boolean assigned = getAddress() != null;
+			super.handleMessageFromServer(msg);
+			if (!assigned && getAddress() != null) {
+				setupTimes.record(System.nanoTime() - created.get(getLoginID()));
+				loggedIn.countDown();
+			}
+		}
+
+		@Override
+		protected void frameReceived(String control) {
+			if (control.equals(CONTROL_SNRM)) {
+				handleMessageFromClientUI("y");
+				linked.countDown();
+			} else if (control.equals(CONTROL_ACK)) {
+				long start = sentAt;
+				if (start != 0 && getMessagesAcknowledged() >= sequence) {
+					latencies.record(System.nanoTime() - start);
+					acked.incrementAndGet();
+					sentAt = 0;
+				}
+			}
+		}
+
+		void tick(String text) {
+			long now = System.nanoTime();
+			if (sentAt != 0) {
+				if (timeout > 0 && now - lastSentAt > timeout * 1000000) {
+					lastSentAt = now;
+					send(text);
+					retransmitted.incrementAndGet();
+				} else {
+					skipped.incrementAndGet();
+				}
+				return;
+			}
+			// copies of the last message still out would be taken for ACKs
+			// of this one: wait for them, or until they time out as lost
+			if (getMessagesSent() > getMessagesAcknowledged()
+					&& now - lastSentAt <= timeout * 1000000) {
+				skipped.incrementAndGet();
+				return;
+			}
+			lastSentAt = now;
+			// before sentAt, which tells the reader thread a message is out
+			sequence = getMessagesAcknowledged() + 1;
+			sentAt = now;
+			send(text);
+			sent.incrementAndGet();
+		}
+
+		private void send(String text) {
+			handleMessageFromClientUI(SERVER_ADDRESS);
+			handleMessageFromClientUI(text);
+		}
+	}
+
+	/**
+	 * This method runs the load generator.
+	 *
+	 * @param args
+	 *            --port, --stations, --rate (frames per second per
+	 *            station), --size (bytes), --seconds, --threads,
+	 *            --capture (a file to record the primary's traffic to),
+	 *            --transport (tcp or memory), --shards, --nodes,
+	 *            --timeout (ms before a message is sent again),
+	 *            --ack-every, --ack-delay (ms) and the
+	 *            impairment options --drop, --ber, --delay, --jitter,
+	 *            --distribution, --bandwidth, --reorder and --seed.
+	 */
+	public static void main(String[] args) throws Exception {
+		LoadGenerator generator = new LoadGenerator();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "--port":
+				generator.port = Integer.parseInt(value);
+				break;
+			case "--stations":
+				generator.stations = Integer.parseInt(value);
+				break;
+			case "--rate":
+				generator.rate = Double.parseDouble(value);
+				break;
+			case "--size":
+				generator.size = Integer.parseInt(value);
+				break;
+			case "--seconds":
+				generator.seconds = Integer.parseInt(value);
+				break;
+			case "--threads":
+				generator.threads = Integer.parseInt(value);
+				break;
+			case "--capture":
+				generator.capture = value;
+				break;
+			case "--shards":
+				generator.shards = Integer.parseInt(value);
+				generator.cluster = false;
+				break;
+			case "--nodes":
+				generator.shards = Integer.parseInt(value);
+				generator.cluster = true;
+				break;
+			case "--transport":
+				generator.transport = value.equals("memory") ? new InProcessTransport()
+						: SocketTransport.DEFAULT;
+				break;
+			case "--ack-every":
+				generator.ackEvery = Integer.parseInt(value);
+				break;
+			case "--ack-delay":
+				generator.ackDelay = Long.parseLong(value);
+				break;
+			case "--timeout":
+				generator.timeout = Long.parseLong(value);
+				break;
+			case "--drop":
+				generator.drop = Double.parseDouble(value);
+				break;
+			case "--ber":
+				generator.ber = Double.parseDouble(value);
+				break;
+			case "--delay":
+				generator.delay = Double.parseDouble(value);
+				break;
+			case "--jitter":
+				generator.jitter = Double.parseDouble(value);
+				break;
+			case "--distribution":
+				generator.distribution = LinkImpairment.Jitter.valueOf(value
+						.toUpperCase());
+				break;
+			case "--bandwidth":
+				generator.bandwidth = Long.parseLong(value);
+				break;
+			case "--reorder":
+				generator.reorder = Boolean.parseBoolean(value);
+				break;
+			case "--seed":
+				generator.seed = Long.parseLong(value);
+				break;
+			default:
+				System.out.println("Unknown option " + args[i]);
+				return;
+			}
+		}
+		generator.run();
+		System.exit(0);
+	}
+
+	private void run() throws Exception {
+		PrintStream console = System.out;
+		// the stations and the server print every frame; the report goes
+		// straight to the console instead
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		long heapBefore = usedHeap();
+		if (drop > 0 || ber > 0 || delay > 0 || jitter > 0 || bandwidth > 0)
+			impairment = new LinkImpairment(seed);
+		FrameCapture recording = null;
+		if (capture != null)
+			recording = new FrameCapture(Paths.get(capture));
+		// one primary, of one or more servers, per 254 stations
+		int spaces = Math.max(1, (stations + ADDRESSES - 1) / ADDRESSES);
+		int block = cluster ? 2 * shards : shards;
+		Server[] servers = new Server[spaces * shards];
+		for (int i = 0; i < servers.length; i++) {
+			servers[i] = new Server(port + i / shards * block + i % shards,
+					message -> {
+					});
+			servers[i].setImpairment(impairment);
+			if (transport != SocketTransport.DEFAULT)
+				servers[i].setTransport(transport);
+			servers[i].setCapture(recording);
+			servers[i].setDelayedAck(ackEvery, ackDelay);
+		}
+		ShardGroup[] groups = new ShardGroup[shards > 1 && !cluster ? spaces
+				: 0];
+		for (int s = 0; s < groups.length; s++) {
+			groups[s] = new ShardGroup(Arrays.copyOfRange(servers, s * shards,
+					(s + 1) * shards));
+		}
+		ClusterRouter[] nodes = new ClusterRouter[cluster ? servers.length : 0];
+		for (int s = 0; s < spaces && cluster; s++) {
+			String[] clusterAddresses = new String[shards];
+			for (int i = 0; i < shards; i++) {
+				clusterAddresses[i] = "localhost:"
+						+ (port + s * block + shards + i);
+			}
+			for (int i = 0; i < shards; i++) {
+				nodes[s * shards + i] = new ClusterRouter(servers[s * shards
+						+ i], i, clusterAddresses);
+				nodes[s * shards + i].start();
+			}
+		}
+		for (Server server : servers) {
+			server.listen();
+		}
+
+		Station[] all = new Station[stations];
+		loggedIn = new CountDownLatch(stations);
+		linked = new CountDownLatch(stations);
+		long setupStart = System.nanoTime();
+		for (int i = 0; i < stations; i++) {
+			created.put("station" + i, System.nanoTime());
+			// spread evenly, so no primary has more than 254 stations
+			int space = i % spaces;
+			int index = i / spaces;
+			all[i] = new Station("station" + i, groups.length > 0 ? groups[space]
+					.getPort(index) : port + space * block + index % shards);
+		}
+		loggedIn.await();
+		long setupNanos = System.nanoTime() - setupStart;
+
+		for (Server server : servers) {
+			server.handleMessageFromServerUI("snrm");
+		}
+		linked.await();
+		long heapLinked = usedHeap();
+		if (impairment != null) {
+			impairment.setDropRate(drop);
+			impairment.setBitErrorRate(ber);
+			impairment.setDelay(delay, jitter, jitter > 0 ? distribution
+					: LinkImpairment.Jitter.NONE);
+			impairment.setBandwidth(bandwidth);
+			impairment.setReorder(reorder);
+		}
+
+		String text = text(size);
+		ScheduledExecutorService driver = Executors
+				.newScheduledThreadPool(threads);
+		long period = (long) (1000000000L / rate);
+		long runStart = System.nanoTime();
+		for (Station station : all) {
+			driver.scheduleAtFixedRate(() -> station.tick(text),
+					(long) (Math.random() * period), period,
+					TimeUnit.NANOSECONDS);
+		}
+		Thread.sleep(seconds * 1000L);
+		driver.shutdownNow();
+		driver.awaitTermination(5, TimeUnit.SECONDS);
+		double runSeconds = (System.nanoTime() - runStart) / 1e9;
+
+		long[] setup = setupTimes.sorted();
+		long[] latency = latencies.sorted();
+		console.println("stations            " + stations);
+		console.println("address spaces      " + spaces);
+		console.println("payload bytes       " + size);
+		console.println("setup total ms      " + setupNanos / 1000000);
+		console.println("setup p50/max ms    "
+				+ millis(percentile(setup, 0.5)) + " / "
+				+ millis(setup.length == 0 ? 0 : setup[setup.length - 1]));
+		console.println("frames sent         " + sent.get());
+		console.println("frames acked        " + acked.get());
+		console.println("ticks skipped       " + skipped.get());
+		console.println("retransmitted       " + retransmitted.get());
+		long dropped = 0;
+		for (Server server : servers) {
+			dropped += server.getFramesDropped();
+		}
+		console.println("frames dropped      " + dropped);
+		console.printf("goodput             %.1f bytes/s%n", acked.get()
+				* (double) size / runSeconds);
+		console.printf("efficiency          %.3f%n", acked.get()
+				/ (double) Math.max(1, sent.get() + retransmitted.get()));
+		console.printf("throughput          %.1f frames/s%n", acked.get()
+				/ runSeconds);
+		console.println("latency p50 ms      "
+				+ millis(percentile(latency, 0.5)));
+		console.println("latency p99 ms      "
+				+ millis(percentile(latency, 0.99)));
+		console.println("latency p999 ms     "
+				+ millis(percentile(latency, 0.999)));
+		console.println("heap after setup    "
+				+ (heapLinked - heapBefore) / 1024 + " KB");
+
+		if (impairment != null)
+			console.println(impairment);
+		for (ShardGroup group : groups) {
+			console.println(group);
+			group.close();
+		}
+		for (ClusterRouter node : nodes) {
+			console.println(node);
+			node.close();
+		}
+		for (Server server : servers) {
+			server.close();
+		}
+		if (recording != null) {
+			recording.close();
+			console.println(recording);
+		}
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.3f", nanos / 1e6);
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static String text(int size) {
+		StringBuilder text = new StringBuilder(size);
+		for (int i = 0; i < size; i++) {
+			text.append((char) ('a' + i % 26));
+		}
+		return text.toString();
+	}
+}
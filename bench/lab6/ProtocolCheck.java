@@ -0,0 +1,185 @@
+package lab6;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import link.InProcessTransport;
+
+/**
+ * This class checks the link protocol. Some checks take one part, such as
+ * the Reassembler, on its own; the others run a primary and its stations in
+ * this JVM over an InProcessTransport, drive them as a console would and
+ * look at the outcome. It prints one line per check and exits with status 1
+ * if any fails.
+ *
+ * Run with: java -cp bin:bench-bin lab6.ProtocolCheck
+ *
+ * @author Karen SRocha
+ */
+public class ProtocolCheck {
+
+	final private static String CONTROL_SNRM = "11001001";
+	final private static String SERVER_ADDRESS = "00000000";
+	final private static long TIMEOUT = 5000;
+
+	private PrintStream console;
+	private int failed = 0;
+	private int port = 5600;
+
+	/**
+	 * A station that answers SNRM with UA.
+	 */
+	private static class Station extends Client {
+
+		Station(String loginID, int port, InProcessTransport transport) {
+			super(loginID, "localhost", port, message -> {
+			}, transport);
+		}
+
+		@Override
+		protected void frameReceived(String control) {
+			if (control.equals(CONTROL_SNRM))
+				handleMessageFromClientUI("y");
+		}
+	}
+
+	/**
+	 * A condition a check waits for.
+	 */
+	private interface Condition {
+		boolean holds();
+	}
+
+	/**
+	 * This method runs every check.
+	 *
+	 * @param args
+	 *            Not used.
+	 */
+	public static void main(String[] args) throws Exception {
+		ProtocolCheck check = new ProtocolCheck();
+		check.console = System.out;
+		// the stations and the server print every frame
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		check.longMessagesWrapTheSequence();
+		check.newMessageAtTheWrapRestarts();
+		check.forwardedFramesAreNotCounted();
+		check.console.println(check.failed == 0 ? "all checks passed"
+				: check.failed + " checks failed");
+		System.exit(check.failed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * A message of more than 16 segments wraps the segment sequence number
+	 * and must still be put back together whole.
+	 */
+	private void longMessagesWrapTheSequence() {
+		String text = text(40 * Segmenter.SEGMENT_BYTES);
+		List<String> infos = new ArrayList<>();
+		Segmenter.segment(text, infos::add);
+		Reassembler reassembler = new Reassembler();
+		StringBuilder received = new StringBuilder();
+		for (String info : infos) {
+			String piece = reassembler.accept(info);
+			if (piece == null)
+				break;
+			received.append(piece);
+		}
+		report("messages over 16 segments are reassembled", received
+				.toString().equals(text)
+				&& reassembler.isComplete()
+				&& reassembler.getSegments() == infos.size(), infos.size()
+				+ " segments sent, " + reassembler.getSegments()
+				+ " accepted");
+	}
+
+	/**
+	 * A message cut off after 16 segments expects segment 0 next. A new
+	 * compressed message also starts with segment 0 and must not be taken
+	 * for the rest of the old one.
+	 */
+	private void newMessageAtTheWrapRestarts() {
+		List<String> infos = new ArrayList<>();
+		Segmenter.segment(text(40 * Segmenter.SEGMENT_BYTES), infos::add);
+		Reassembler reassembler = new Reassembler();
+		for (String info : infos.subList(0, 16)) {
+			reassembler.accept(info);
+		}
+		String text = "status OK status OK status OK status OK";
+		List<String> next = new ArrayList<>();
+		Segmenter.segment(text, new Compression(), next::add);
+		String received = reassembler.accept(next.get(0));
+		report("a new message at the wrap starts afresh", next.size() == 1
+				&& text.equals(received) && reassembler.isComplete()
+				&& reassembler.getSegments() == 1, "received " + received);
+	}
+
+	/**
+	 * A station sends a frame to another station, which the primary only
+	 * forwards and never acknowledges, and then one to the primary. Only
+	 * the second may count as sent, or the station would wait forever for
+	 * the first to be acknowledged.
+	 */
+	private void forwardedFramesAreNotCounted() throws Exception {
+		InProcessTransport transport = new InProcessTransport();
+		Server server = link(transport);
+		Station from = new Station("from", port, transport);
+		Station to = new Station("to", port, transport);
+		try {
+			waitFor(() -> from.getAddress() != null && to.getAddress() != null);
+			server.handleMessageFromServerUI("snrm");
+			Thread.sleep(500);
+			from.handleMessageFromClientUI(to.getAddress());
+			from.handleMessageFromClientUI("for the other station");
+			from.handleMessageFromClientUI(SERVER_ADDRESS);
+			from.handleMessageFromClientUI("for the primary");
+			boolean acknowledged = waitFor(() -> from
+					.getMessagesAcknowledged() == 1);
+			Thread.sleep(200);
+			report("forwarded frames are not counted as sent", acknowledged
+					&& from.getMessagesSent() == 1
+					&& from.getMessagesAcknowledged() == 1, "sent "
+					+ from.getMessagesSent() + ", acknowledged "
+					+ from.getMessagesAcknowledged());
+		} finally {
+			from.closeConnection();
+			to.closeConnection();
+			server.close();
+		}
+	}
+
+	private Server link(InProcessTransport transport) throws Exception {
+		Server server = new Server(++port, message -> {
+		});
+		server.setTransport(transport);
+		server.listen();
+		return server;
+	}
+
+	private static String text(int length) {
+		StringBuilder text = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			text.append((char) ('a' + i % 26));
+		}
+		return text.toString();
+	}
+
+	private boolean waitFor(Condition condition) throws InterruptedException {
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (!condition.holds()) {
+			if (System.currentTimeMillis() > end)
+				return false;
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	private void report(String name, boolean passed, String detail) {
+		if (!passed)
+			failed++;
+		console.println((passed ? "ok      " : "FAILED  ") + name
+				+ (passed ? "" : " (" + detail + ")"));
+	}
+}
@@ -2,6 +2,14 @@ package abstractClient;
 
 import java.io.*;
 import java.net.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import link.Endpoint;
+import link.FrameCapture;
+import link.ImpairedLink;
+import link.LinkImpairment;
+import link.SocketTransport;
+import link.Transport;
 
 /**
  * The AbstractClient contains all the methods necessary to set
@@ -12,21 +20,14 @@ import java.net.*;
 public abstract class AbstractClient implements Runnable {
 
 	/**
-	 * Sockets are used in the operating system as channels of communication
-	 * between two processes.
-	 * 
-	 */
-	private Socket clientSocket;
-
-	/**
-	 * The stream to handle data going to the server.
+	 * The transport connections are opened with. TCP sockets by default.
 	 */
-	private ObjectOutputStream output;
+	private volatile Transport transport;
 
 	/**
-	 * The stream to handle data from the server.
+	 * The client end of the connection to the server, or null.
 	 */
-	private ObjectInputStream input;
+	private volatile Endpoint endpoint;
 
 	/**
 	 * The thread created to read data from the server.
@@ -37,7 +38,45 @@ public abstract class AbstractClient implements Runnable {
 	 * Indicates if the thread is ready to stop. Needed so that the loop in the
 	 * run method knows when to stop waiting for incoming messages.
 	 */
-	private boolean readyToStop	= false;
+	private volatile boolean readyToStop = false;
+
+	/**
+	 * Indicates if the client reconnects by itself when the connection is
+	 * lost. Set to false by default.
+	 */
+	private boolean autoReconnect = false;
+
+	/**
+	 * The delay before the first reconnection attempt, in ms. Each failed
+	 * attempt doubles it, up to maxReconnectDelay.
+	 */
+	private long reconnectDelay = 500;
+
+	/**
+	 * The longest delay between reconnection attempts, in ms.
+	 */
+	private long maxReconnectDelay = 30000;
+
+	/**
+	 * The impairment applied to messages sent to the server, or null.
+	 */
+	private volatile LinkImpairment impairment;
+
+	/**
+	 * The impaired link of the current connection, or null.
+	 */
+	private ImpairedLink link;
+
+	/**
+	 * The number of connections opened by all clients, which tells their
+	 * impaired links apart.
+	 */
+	private static final AtomicInteger connectionCount = new AtomicInteger();
+
+	/**
+	 * The capture recording every message sent and received, or null.
+	 */
+	private volatile FrameCapture capture;
 
 	/**
 	 * The server's host name.
@@ -58,8 +97,23 @@ public abstract class AbstractClient implements Runnable {
 	 *            the port number.
 	 */
 	public AbstractClient(String host, int port) {
+		this(host, port, SocketTransport.DEFAULT);
+	}
+
+	/**
+	 * Constructs the client with a transport other than TCP sockets.
+	 * 
+	 * @param host
+	 *            the server's host name.
+	 * @param port
+	 *            the port number.
+	 * @param transport
+	 *            the transport, shared with the server.
+	 */
+	public AbstractClient(String host, int port, Transport transport) {
 		this.host = host;
 		this.port = port;
+		this.transport = transport;
 	}
 
 	/**
@@ -74,9 +128,12 @@ public abstract class AbstractClient implements Runnable {
 			return;
 
 		try {
-			clientSocket = new Socket(host, port);
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
-			input = new ObjectInputStream(clientSocket.getInputStream());
+			endpoint = transport.connect(host, port);
+			LinkImpairment impairment = this.impairment;
+			if (impairment != null) {
+				int stream = connectionCount.incrementAndGet();
+				link = impairment.open(endpoint, stream, "Link " + stream);
+			}
 		} catch (IOException ex)
 		{
 			try {
@@ -102,10 +159,18 @@ public abstract class AbstractClient implements Runnable {
 	 *                if an I/O error occurs when sending
 	 */
 	final public void sendToServer(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
+		Endpoint endpoint = this.endpoint;
+		if (endpoint == null)
 			throw new SocketException("socket does not exist");
 
-		output.writeObject(msg);
+		ImpairedLink link = this.link;
+		if (link != null)
+			link.send(msg);
+		else
+			endpoint.send(msg);
+		FrameCapture capture = this.capture;
+		if (capture != null)
+			capture.record(0, false, msg);
 	}
 
 	/**
@@ -114,7 +179,12 @@ public abstract class AbstractClient implements Runnable {
     * in some circumstances when Java refuses to send data that it thinks has been sent.
 	 */
 	final public void forceResetAfterSend() throws IOException {
-      output.reset();
+		ImpairedLink link = this.link;
+		Endpoint endpoint = this.endpoint;
+		if (link != null)
+			link.reset();
+		else if (endpoint != null)
+			endpoint.reset();
 	}
 
 	/**
@@ -135,6 +205,18 @@ public abstract class AbstractClient implements Runnable {
 		}
 	}
 
+	/**
+	 * Closes the connection as if it had been lost. Unlike closeConnection(),
+	 * the client reconnects by itself if auto-reconnect is on; otherwise the
+	 * connection just ends, and connectionException() is called.
+	 */
+	final public void dropConnection() {
+		try {
+			closeAll();
+		} catch (IOException e) {
+		}
+	}
+
 	/**
 	 * @return true if the client is connected.
 	 */
@@ -160,6 +242,95 @@ public abstract class AbstractClient implements Runnable {
 		this.port = port;
 	}
 
+	/**
+	 * Sets the transport used for the next connection. The change only takes
+	 * effect at the time of the next call to openConnection().
+	 * 
+	 * @param transport
+	 *            the transport, shared with the server.
+	 */
+	final public void setTransport(Transport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * @return the transport connections are opened with.
+	 */
+	final public Transport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Sets whether the client reconnects by itself when the connection to
+	 * the server is lost. Attempts are spaced with jittered exponential
+	 * backoff so that many clients losing the same server do not all retry
+	 * at once. connectionEstablished() is called again once reconnected.
+	 * 
+	 * @param autoReconnect
+	 *            true to reconnect automatically.
+	 */
+	final public void setAutoReconnect(boolean autoReconnect) {
+		this.autoReconnect = autoReconnect;
+	}
+
+	/**
+	 * @return true if the client reconnects by itself.
+	 */
+	final public boolean isAutoReconnect() {
+		return autoReconnect;
+	}
+
+	/**
+	 * Sets the backoff used between reconnection attempts.
+	 * 
+	 * @param reconnectDelay
+	 *            the delay before the first attempt, in ms.
+	 * @param maxReconnectDelay
+	 *            the longest delay between attempts, in ms.
+	 */
+	final public void setReconnectDelay(long reconnectDelay,
+			long maxReconnectDelay) {
+		this.reconnectDelay = reconnectDelay;
+		this.maxReconnectDelay = maxReconnectDelay;
+	}
+
+	/**
+	 * Sets the capture that records every message sent to or received from
+	 * the server. The connection is recorded as connection 0.
+	 * 
+	 * @param capture
+	 *            the capture, or null to stop capturing. A capture that is
+	 *            replaced is not closed.
+	 */
+	final public void setCapture(FrameCapture capture) {
+		this.capture = capture;
+	}
+
+	/**
+	 * Sets the impairment applied to the messages sent to the server, to
+	 * test the protocol over a poor channel. It applies to connections opened
+	 * from now on and, if the current one has none, to the rest of the
+	 * current one.
+	 * 
+	 * @param impairment
+	 *            the impairment, or null for a perfect channel.
+	 */
+	final public void setImpairment(LinkImpairment impairment) {
+		this.impairment = impairment;
+		Endpoint endpoint = this.endpoint;
+		if (impairment != null && link == null && endpoint != null) {
+			int stream = connectionCount.incrementAndGet();
+			link = impairment.open(endpoint, stream, "Link " + stream);
+		}
+	}
+
+	/**
+	 * @return the capture in use, or null.
+	 */
+	final public FrameCapture getCapture() {
+		return capture;
+	}
+
 	/**
 	 * @return the host name.
 	 */
@@ -184,7 +355,7 @@ public abstract class AbstractClient implements Runnable {
 	 * @return the client's Inet address.
 	 */
 	final public InetAddress getInetAddress() {
-		return clientSocket.getInetAddress();
+		return endpoint.getInetAddress();
 	}
 
 	/**
@@ -196,6 +367,7 @@ public abstract class AbstractClient implements Runnable {
 
 		// The message from the server
 		Object msg;
+		Endpoint endpoint = this.endpoint;
 
 		// Loop waiting for data
 
@@ -204,7 +376,10 @@ public abstract class AbstractClient implements Runnable {
 				// Get data from Server and send it to the handler
 				// The thread waits indefinitely at the following
 				// statement until something is received from the server
-				msg = input.readObject();
+				msg = endpoint.receive();
+				FrameCapture capture = this.capture;
+				if (capture != null)
+					capture.record(0, true, msg);
 
 				// Concrete subclasses do what they want with the
 				// msg by implementing the following method
@@ -222,6 +397,34 @@ public abstract class AbstractClient implements Runnable {
 		} finally {
 			clientReader = null;
 		}
+
+		if (autoReconnect && !readyToStop) {
+			reconnect();
+		}
+	}
+
+	/**
+	 * Tries to open the connection again until it succeeds or the
+	 * connection is closed. Each attempt waits a random time between half
+	 * and all of the current delay, which doubles after every failure.
+	 */
+	private void reconnect() {
+		long delay = reconnectDelay;
+		while (!readyToStop && !isConnected()) {
+			long wait = delay / 2 + (long) (Math.random() * (delay / 2 + 1));
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (readyToStop)
+				return;
+			try {
+				openConnection();
+			} catch (IOException e) {
+				delay = Math.min(delay * 2, maxReconnectDelay);
+			}
+		}
 	}
 
 	/**
@@ -269,25 +472,19 @@ public abstract class AbstractClient implements Runnable {
 	 */
 	private void closeAll() throws IOException {
 		try {
-			// Close the socket
-			if (clientSocket != null)
-				clientSocket.close();
-
-			// Close the output stream
-			if (output != null)
-				output.close();
+			if (link != null)
+				link.close();
 
-			// Close the input stream
-			if (input != null)
-				input.close();
+			// Close the connection
+			if (endpoint != null)
+				endpoint.close();
 		} finally {
-			// Set the streams and the sockets to NULL no matter what
+			// Set the connection to NULL no matter what
 			// Doing so allows, but does not require, any finalizers
 			// of these objects to reclaim system resources if and
 			// when they are garbage collected.
-			output = null;
-			input = null;
-			clientSocket = null;
+			endpoint = null;
+			link = null;
 		}
 	}
 }
@@ -2,43 +2,121 @@ package abstractServer;
 
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.*;
 
+import link.Endpoint;
+import link.FrameCapture;
+import link.LinkImpairment;
+import link.SocketTransport;
+import link.Transport;
+
 /**
- * The AbstractServer class maintains a thread that waits for connection
- * attempts from clients.
+ * The AbstractServer class maintains one or more threads that wait for
+ * connection attempts from clients.
  *
  * @author Karen SRocha
  */
 public abstract class AbstractServer implements Runnable {
 	/**
-	 * The server socket: listens for clients who want to connect.
+	 * The server sockets: listen for clients who want to connect. There is
+	 * one socket shared by all acceptor threads, or one per acceptor thread
+	 * when port reuse is enabled and supported.
+	 */
+	private ServerSocket[] serverSockets = null;
+
+	/**
+	 * The transport connections are accepted with, or null for the server
+	 * sockets above.
 	 */
-	private ServerSocket serverSocket = null;
+	private Transport transport = null;
 
 	/**
-	 * The connection listener thread.
+	 * The acceptor bound with the transport, when there is one.
+	 */
+	private volatile Transport.Acceptor acceptor = null;
+
+	/**
+	 * The connection listener thread. It runs the first acceptor and starts
+	 * the others.
 	 */
 	private Thread connectionListener;
 
+	/**
+	 * The number of threads accepting connections. Set to 1 by default.
+	 */
+	private int acceptorCount = 1;
+
+	/**
+	 * Indicates if each acceptor thread should bind its own server socket
+	 * with SO_REUSEPORT, letting the operating system spread incoming
+	 * connections between them. Set to false by default.
+	 */
+	private boolean reusePort = false;
+
+	/**
+	 * The exception that made an acceptor thread stop, if any.
+	 */
+	private volatile IOException listenFailure;
+
+	/**
+	 * The number of connections accepted since the server was created.
+	 */
+	private final AtomicLong acceptedCount = new AtomicLong();
+
+	/**
+	 * The accepted count and time at the previous call to getAcceptRate.
+	 */
+	private long rateSampleCount = 0;
+	private long rateSampleTime = System.nanoTime();
+
 	/**
 	 * The port number
 	 */
 	private int port;
 
 	/**
-	 * The server timeout while for accepting connections. After timing out, the
-	 * server will check to see if a command to stop the server has been issued;
-	 * it not it will resume accepting connections. Set to half a second by
-	 * default.
+	 * Indicates if the server is draining: it no longer accepts connections
+	 * and waits for the frames in flight before closing.
 	 */
-	private int timeout = 500;
+	private boolean draining = false;
 
 	/**
 	 * The maximum queue length; i.e. the maximum number of clients that can be
-	 * waiting to connect. Set to 10 by default.
+	 * waiting to connect, per server socket. Set to 1024 by default so that a
+	 * burst of reconnecting clients is queued rather than refused; the
+	 * operating system may cap it (net.core.somaxconn on Linux).
 	 */
-	private int backlog = 10;
+	private int backlog = 1024;
+
+	/**
+	 * The time in ms a client may stay silent before its connection is
+	 * closed. Set to 0, meaning never, by default.
+	 */
+	private long idleTimeout = 0;
+
+	/**
+	 * The time in ms a client may stay silent before sendHeartbeat is called
+	 * for it. Set to 0, meaning never, by default.
+	 */
+	private long heartbeatInterval = 0;
+
+	/**
+	 * The timer shared by all connections to check for idle clients. Created
+	 * when the server starts listening with an idle timeout or a heartbeat.
+	 */
+	private HashedWheelTimer idleTimer;
+
+	/**
+	 * The capture recording every message sent and received, or null.
+	 */
+	private volatile FrameCapture capture;
+
+	/**
+	 * The impairment applied to messages sent to clients, or null.
+	 */
+	private volatile LinkImpairment impairment;
 
 	/**
 	 * The thread group associated with client threads. Each member of the
@@ -46,11 +124,23 @@ public abstract class AbstractServer implements Runnable {
 	 */
 	private ThreadGroup clientThreadGroup;
 
+	/**
+	 * The connections currently open. The array is never modified: adding or
+	 * removing a connection replaces it with a copy, so readers can iterate
+	 * over it without locking or allocating.
+	 */
+	private volatile ConnectionToClient[] connections = new ConnectionToClient[0];
+
+	/**
+	 * Lock held while replacing the connections array.
+	 */
+	private final Object connectionsLock = new Object();
+
 	/**
 	 * Indicates if the listening thread is ready to stop. Set to false by
 	 * default.
 	 */
-	private boolean readyToStop = false;
+	private volatile boolean readyToStop = false;
 
 	/**
 	 * Constructs a new server.
@@ -70,6 +160,65 @@ public abstract class AbstractServer implements Runnable {
 		};
 	}
 
+	/**
+	 * Sets the capture that records every message sent to or received from
+	 * a client, with the connection ID of the client.
+	 *
+	 * @param capture
+	 *            the capture, or null to stop capturing. A capture that is
+	 *            replaced is not closed.
+	 */
+	final public void setCapture(FrameCapture capture) {
+		this.capture = capture;
+	}
+
+	/**
+	 * @return the capture in use, or null.
+	 */
+	final public FrameCapture getCapture() {
+		return capture;
+	}
+
+	/**
+	 * Sets the impairment applied to the messages sent to clients that
+	 * connect from now on, to test the protocol over a poor channel.
+	 *
+	 * @param impairment
+	 *            the impairment, or null for a perfect channel.
+	 */
+	final public void setImpairment(LinkImpairment impairment) {
+		this.impairment = impairment;
+	}
+
+	/**
+	 * @return the impairment in use, or null.
+	 */
+	final public LinkImpairment getImpairment() {
+		return impairment;
+	}
+
+	/**
+	 * Sets the transport used to accept connections, such as an
+	 * InProcessTransport shared with clients in the same process. By default
+	 * the server opens TCP server sockets itself, honouring the acceptor
+	 * count and port reuse; with a transport set, the acceptor threads share
+	 * the one acceptor it binds. The server must be closed and restarted for
+	 * the change to be in effect.
+	 *
+	 * @param transport
+	 *            the transport, or null for TCP server sockets.
+	 */
+	final public void setTransport(Transport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * @return the transport set, or null for TCP server sockets.
+	 */
+	final public Transport getTransport() {
+		return transport;
+	}
+
 	/**
 	 * Begins the thread that waits for new clients. If the server is already in
 	 * listening mode, this call has no effect.
@@ -79,11 +228,19 @@ public abstract class AbstractServer implements Runnable {
 	 */
 	final public void listen() throws IOException {
 		if (!isListening()) {
-			if (serverSocket == null) {
-				serverSocket = new ServerSocket(getPort(), backlog);
+			if (transport != null) {
+				// an acceptor that is not listening was closed by stopListening
+				acceptor = transport.bind(getPort(), backlog);
+			} else {
+				acceptor = null;
+				if (serverSockets == null || serverSockets[0].isClosed()) {
+					serverSockets = openServerSockets();
+				}
 			}
 
-			serverSocket.setSoTimeout(timeout);
+			if (idleTimer == null && (idleTimeout > 0 || heartbeatInterval > 0)) {
+				idleTimer = new HashedWheelTimer();
+			}
 			readyToStop = false;
 			connectionListener = new Thread(this);
 			connectionListener.start();
@@ -91,10 +248,64 @@ public abstract class AbstractServer implements Runnable {
 	}
 
 	/**
-	 * Causes the server to stop accepting new connections.
+	 * Causes the server to stop accepting new connections. The acceptor
+	 * threads block in accept without a timeout, so they are woken up by
+	 * closing the server sockets; listen() opens new ones.
 	 */
 	final public void stopListening() {
 		readyToStop = true;
+		Transport.Acceptor acceptor = this.acceptor;
+		if (acceptor != null)
+			acceptor.close();
+		ServerSocket[] sockets = serverSockets;
+		if (sockets != null) {
+			for (ServerSocket socket : sockets) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting new connections, waits until no client has a frame in
+	 * flight, as reported by hasFramesInFlight, and then closes the server.
+	 * The wait is woken up each time a message is handled, so it ends as
+	 * soon as the last frame completes.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait in ms before closing anyway.
+	 * @exception IOException
+	 *                if an I/O error occurs while closing the server socket.
+	 */
+	final synchronized public void drain(long timeout) throws IOException {
+		stopListening();
+		draining = true;
+		try {
+			long deadline = System.currentTimeMillis() + timeout;
+			long remaining = timeout;
+			while (remaining > 0 && anyFramesInFlight()) {
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				remaining = deadline - System.currentTimeMillis();
+			}
+		} finally {
+			draining = false;
+		}
+		close();
+	}
+
+	private boolean anyFramesInFlight() {
+		for (ConnectionToClient client : connections) {
+			if (client.isAlive() && hasFramesInFlight(client))
+				return true;
+		}
+		return false;
 	}
 
 	/**
@@ -108,23 +319,26 @@ public abstract class AbstractServer implements Runnable {
 	 *                if an I/O error occurs while closing the server socket.
 	 */
 	final synchronized public void close() throws IOException {
-		if (serverSocket == null)
+		if (serverSockets == null && acceptor == null)
 			return;
-		stopListening();
 		try {
-			serverSocket.close();
+			stopListening();
 		} finally {
 			// Close the client sockets of the already connected clients
-			Thread[] clientThreadList = getClientConnections();
-			for (int i = 0; i < clientThreadList.length; i++) {
+			for (ConnectionToClient client : connections) {
 				try {
-					((ConnectionToClient) clientThreadList[i]).close();
+					client.close();
 				}
 				// Ignore all exceptions when closing clients.
 				catch (Exception ex) {
 				}
 			}
-			serverSocket = null;
+			serverSockets = null;
+			acceptor = null;
+			if (idleTimer != null) {
+				idleTimer.stop();
+				idleTimer = null;
+			}
 			serverClosed();
 		}
 	}
@@ -141,11 +355,9 @@ public abstract class AbstractServer implements Runnable {
 	 *            Object The message to be sent
 	 */
 	public void sendToAllClients(Object msg) {
-		Thread[] clientThreadList = getClientConnections();
-
-		for (int i = 0; i < clientThreadList.length; i++) {
+		for (ConnectionToClient client : connections) {
 			try {
-				((ConnectionToClient) clientThreadList[i]).sendToClient(msg);
+				client.sendToClient(msg);
 			} catch (Exception ex) {
 			}
 		}
@@ -169,12 +381,9 @@ public abstract class AbstractServer implements Runnable {
 	 *
 	 * @return an array of Thread containing ConnectionToClient instances.
 	 */
-	synchronized final public Thread[] getClientConnections() {
-		Thread[] clientThreadList = new Thread[clientThreadGroup.activeCount()];
-
-		clientThreadGroup.enumerate(clientThreadList);
-
-		return clientThreadList;
+	final public Thread[] getClientConnections() {
+		ConnectionToClient[] snapshot = connections;
+		return Arrays.copyOf(snapshot, snapshot.length, Thread[].class);
 	}
 
 	/**
@@ -183,7 +392,45 @@ public abstract class AbstractServer implements Runnable {
 	 * @return the number of clients currently connected.
 	 */
 	final public int getNumberOfClients() {
-		return clientThreadGroup.activeCount();
+		return connections.length;
+	}
+
+	/**
+	 * Adds a connection to the registry. Called by the connection once its
+	 * streams are open.
+	 *
+	 * @param client
+	 *            the new connection.
+	 */
+	final void addConnection(ConnectionToClient client) {
+		synchronized (connectionsLock) {
+			ConnectionToClient[] old = connections;
+			ConnectionToClient[] updated = Arrays.copyOf(old, old.length + 1);
+			updated[old.length] = client;
+			connections = updated;
+		}
+	}
+
+	/**
+	 * Removes a connection from the registry. Removing a connection that is
+	 * not registered has no effect.
+	 *
+	 * @param client
+	 *            the closed connection.
+	 */
+	final void removeConnection(ConnectionToClient client) {
+		synchronized (connectionsLock) {
+			ConnectionToClient[] old = connections;
+			for (int i = 0; i < old.length; i++) {
+				if (old[i] == client) {
+					ConnectionToClient[] updated = new ConnectionToClient[old.length - 1];
+					System.arraycopy(old, 0, updated, 0, i);
+					System.arraycopy(old, i + 1, updated, i, old.length - i - 1);
+					connections = updated;
+					return;
+				}
+			}
+		}
 	}
 
 	/**
@@ -207,22 +454,23 @@ public abstract class AbstractServer implements Runnable {
 	}
 
 	/**
-	 * Sets the timeout time when accepting connections. The default is half a
-	 * second. This means that stopping the server may take up to timeout
-	 * duration to actually stop. The server must be stopped and restarted for
-	 * the timeout change to be effective.
+	 * Formerly set the timeout used to poll for a stop request while
+	 * accepting connections. The listening thread now blocks until a client
+	 * connects or stopListening() closes the server socket, so this call has
+	 * no effect.
 	 *
 	 * @param timeout
-	 *            the timeout time in ms.
+	 *            ignored.
+	 * @deprecated stopping the server no longer depends on a timeout.
 	 */
+	@Deprecated
 	final public void setTimeout(int timeout) {
-		this.timeout = timeout;
 	}
 
 	/**
 	 * Sets the maximum number of waiting connections accepted by the operating
-	 * system. The default is 20. The server must be closed and restarted for
-	 * the backlog change to be in effect.
+	 * system, per server socket. The default is 1024. The server must be
+	 * closed and restarted for the backlog change to be in effect.
 	 *
 	 * @param backlog
 	 *            the maximum number of connections.
@@ -232,41 +480,128 @@ public abstract class AbstractServer implements Runnable {
 	}
 
 	/**
-	 * Runs the listening thread that allows clients to connect. Not to be
-	 * called.
+	 * Sets the time a client may stay silent before its connection is
+	 * closed. Half-open connections are then reaped and their resources
+	 * released through clientDisconnected. The server must be stopped and
+	 * restarted for the change to be effective.
+	 *
+	 * @param idleTimeout
+	 *            the idle timeout in ms, or 0 to never close idle clients.
+	 */
+	final public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Sets the time a client may stay silent before sendHeartbeat is called
+	 * for it. A heartbeat that the client answers keeps the connection from
+	 * reaching the idle timeout. The server must be stopped and restarted
+	 * for the change to be effective.
+	 *
+	 * @param heartbeatInterval
+	 *            the heartbeat interval in ms, or 0 to send no heartbeats.
+	 */
+	final public void setHeartbeatInterval(long heartbeatInterval) {
+		this.heartbeatInterval = heartbeatInterval;
+	}
+
+	/**
+	 * Sets the number of threads accepting connections. Several acceptors
+	 * let a burst of clients, such as every station reconnecting after a
+	 * restart, be taken off the backlog in parallel. The server must be
+	 * closed and restarted for the change to be in effect.
+	 *
+	 * @param acceptorCount
+	 *            the number of acceptor threads, at least 1.
+	 */
+	final public void setAcceptorCount(int acceptorCount) {
+		this.acceptorCount = Math.max(1, acceptorCount);
+	}
+
+	/**
+	 * Sets whether each acceptor thread binds its own server socket with
+	 * SO_REUSEPORT, so that the operating system balances connections
+	 * between them. Where the option is not supported all acceptors share a
+	 * single socket. The server must be closed and restarted for the change
+	 * to be in effect.
+	 *
+	 * @param reusePort
+	 *            true to bind one socket per acceptor.
+	 */
+	final public void setReusePort(boolean reusePort) {
+		this.reusePort = reusePort;
+	}
+
+	/**
+	 * Returns the number of connections accepted since the server was
+	 * created.
+	 *
+	 * @return the number of accepted connections.
+	 */
+	final public long getAcceptedCount() {
+		return acceptedCount.get();
+	}
+
+	/**
+	 * Returns the rate at which connections were accepted since the
+	 * previous call to this method.
+	 *
+	 * @return the accept rate in connections per second.
+	 */
+	final synchronized public double getAcceptRate() {
+		long now = System.nanoTime();
+		long count = acceptedCount.get();
+		double rate = (count - rateSampleCount) * 1e9
+				/ Math.max(1, now - rateSampleTime);
+		rateSampleCount = count;
+		rateSampleTime = now;
+		return rate;
+	}
+
+	/**
+	 * Runs the listening thread that allows clients to connect. It starts
+	 * the other acceptor threads and accepts on the first socket, or the
+	 * acceptor of the transport, itself. Not to be called.
 	 */
 	final public void run() {
 		// call the hook method to notify that the server is starting
 		serverStarted();
 
+		final ServerSocket[] sockets = serverSockets;
+		final Transport.Acceptor acceptor = this.acceptor;
+		Thread[] acceptors = new Thread[acceptorCount - 1];
+		listenFailure = null;
+
 		try {
-			// Repeatedly waits for a new client connection, accepts it, and
-			// starts a new thread to handle data exchange.
-			while (!readyToStop) {
-				try {
-					// Wait here for new connection attempts, or a timeout
-					Socket clientSocket = serverSocket.accept();
+			for (int i = 0; i < acceptors.length; i++) {
+				final int index = i + 1;
+				acceptors[i] = new Thread(new Runnable() {
+					public void run() {
+						if (acceptor != null)
+							accept(acceptor);
+						else
+							accept(sockets[index % sockets.length]);
+					}
+				}, "Acceptor " + index);
+				acceptors[i].start();
+			}
 
-					// When a client is accepted, create a thread to handle
-					// the data exchange, then add it to thread group
+			if (acceptor != null)
+				accept(acceptor);
+			else
+				accept(sockets[0]);
 
-					synchronized (this) {
-						ConnectionToClient c = new ConnectionToClient(
-								this.clientThreadGroup, clientSocket, this);
-					}
-				} catch (InterruptedIOException exception) {
-					// This will be thrown when a timeout occurs.
-					// The server will continue to listen if not ready to stop.
+			for (Thread thread : acceptors) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
 				}
 			}
 
-			// call the hook method to notify that the server has stopped
-			serverStopped();
-		} catch (IOException exception) {
-			if (!readyToStop) {
-				// Closing the socket must have thrown a SocketException
-				listeningException(exception);
+			if (listenFailure != null) {
+				listeningException(listenFailure);
 			} else {
+				// call the hook method to notify that the server has stopped
 				serverStopped();
 			}
 		} finally {
@@ -275,6 +610,175 @@ public abstract class AbstractServer implements Runnable {
 		}
 	}
 
+	/**
+	 * Accepts connections on a server socket until the server stops
+	 * listening. If accepting fails for another reason, the failure is
+	 * recorded and all acceptors are stopped.
+	 *
+	 * @param socket
+	 *            the server socket to accept on.
+	 */
+	private void accept(ServerSocket socket) {
+		try {
+			// Repeatedly waits for a new client connection, accepts it, and
+			// starts a new thread to handle data exchange.
+			while (!readyToStop) {
+				// Wait here for new connection attempts. stopListening()
+				// closes the socket, which makes accept throw.
+				Socket clientSocket = socket.accept();
+				acceptedCount.incrementAndGet();
+
+				// When a client is accepted, open its streams and create a
+				// thread to handle the data exchange. This is not
+				// synchronized on the server so that a slow handshake does
+				// not hold up the other acceptors or message handling.
+				try {
+					connected(SocketTransport.open(clientSocket));
+				} catch (IOException exception) {
+					// The client went away while connecting; keep listening.
+				}
+			}
+		} catch (IOException exception) {
+			if (!readyToStop) {
+				// Closing the socket must have thrown a SocketException
+				listenFailure = exception;
+				stopListening();
+			}
+		}
+	}
+
+	/**
+	 * Accepts connections from the acceptor of the transport until the
+	 * server stops listening, as accept(ServerSocket) does for sockets.
+	 *
+	 * @param acceptor
+	 *            the acceptor bound with the transport.
+	 */
+	private void accept(Transport.Acceptor acceptor) {
+		try {
+			while (!readyToStop) {
+				Endpoint endpoint = acceptor.accept();
+				acceptedCount.incrementAndGet();
+				connected(endpoint);
+			}
+		} catch (IOException exception) {
+			if (!readyToStop) {
+				listenFailure = exception;
+				stopListening();
+			}
+		}
+	}
+
+	/**
+	 * Creates the thread handling a connection just accepted, which adds
+	 * itself to the thread group, and starts watching it for idleness.
+	 *
+	 * @param endpoint
+	 *            the server end of the connection.
+	 */
+	private void connected(Endpoint endpoint) {
+		ConnectionToClient c = new ConnectionToClient(this.clientThreadGroup,
+				endpoint, this);
+		watchIdle(c);
+	}
+
+	/**
+	 * Opens the server sockets: one per acceptor when port reuse is enabled
+	 * and supported, otherwise a single shared one.
+	 *
+	 * @return the bound server sockets.
+	 * @exception IOException
+	 *                if an I/O error occurs when creating a socket.
+	 */
+	private ServerSocket[] openServerSockets() throws IOException {
+		ServerSocket first = new ServerSocket();
+		boolean reuse = reusePort && acceptorCount > 1
+				&& first.supportedOptions().contains(
+						StandardSocketOptions.SO_REUSEPORT);
+		ServerSocket[] sockets = new ServerSocket[reuse ? acceptorCount : 1];
+		sockets[0] = first;
+		try {
+			for (int i = 0; i < sockets.length; i++) {
+				if (sockets[i] == null)
+					sockets[i] = new ServerSocket();
+				if (reuse)
+					sockets[i].setOption(StandardSocketOptions.SO_REUSEPORT,
+							true);
+				sockets[i].bind(new InetSocketAddress(getPort()), backlog);
+			}
+		} catch (IOException ex) {
+			for (ServerSocket socket : sockets) {
+				if (socket != null)
+					socket.close();
+			}
+			throw ex;
+		}
+		return sockets;
+	}
+
+	/**
+	 * Schedules the next idle check of a connection on the shared timer.
+	 * The check closes the connection once it reaches the idle timeout, and
+	 * calls sendHeartbeat once it has been silent for the heartbeat interval.
+	 *
+	 * @param client
+	 *            the connection to be watched.
+	 */
+	private void watchIdle(final ConnectionToClient client) {
+		final HashedWheelTimer timer = idleTimer;
+		if (timer == null)
+			return;
+
+		long period = heartbeatInterval > 0 ? heartbeatInterval : idleTimeout;
+		if (idleTimeout > 0)
+			period = Math.min(period, idleTimeout);
+
+		timer.newTimeout(new Runnable() {
+			public void run() {
+				if (!client.isAlive())
+					return;
+				long idle = client.getIdleTime();
+				if (idleTimeout > 0 && idle >= idleTimeout) {
+					try {
+						client.close();
+					} catch (IOException e) {
+					}
+					return;
+				}
+				if (heartbeatInterval > 0 && idle >= heartbeatInterval) {
+					sendHeartbeat(client);
+				}
+				watchIdle(client);
+			}
+		}, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Hook method used by drain() to know if a client is in the middle of a
+	 * frame. The default implementation returns false. Subclasses that
+	 * reassemble frames from several messages should return true while a
+	 * frame is partially received.
+	 *
+	 * @param client
+	 *            the connection to check.
+	 * @return true if a frame from this client is still in flight.
+	 */
+	protected boolean hasFramesInFlight(ConnectionToClient client) {
+		return false;
+	}
+
+	/**
+	 * Hook method called from the idle timer when a client has been silent
+	 * for the heartbeat interval. The default implementation does nothing.
+	 * Subclasses should send something the client is expected to answer.
+	 * It runs on the timer thread and should not block.
+	 *
+	 * @param client
+	 *            the silent client.
+	 */
+	protected void sendHeartbeat(ConnectionToClient client) {
+	}
+
 	/**
 	 * Hook method called each time a new client connection is accepted. The
 	 * default implementation does nothing.
@@ -286,7 +790,8 @@ public abstract class AbstractServer implements Runnable {
 	}
 
 	/**
-	 * Hook method called each time a client disconnects. The default
+	 * Hook method called each time a client disconnects, whether its
+	 * connection was closed or lost, once per connection. The default
 	 * implementation does nothing. The method may be overridden by subclasses
 	 * but should remains synchronized.
 	 *
@@ -374,5 +879,20 @@ public abstract class AbstractServer implements Runnable {
 	final synchronized void receiveMessageFromClient(Object msg,
 			ConnectionToClient client) {
 		this.handleMessageFromClient(msg, client);
+		if (draining)
+			notifyAll();
+	}
+
+	/**
+	 * Called by a <code>ConnectionToClient</code> when its thread ends, so
+	 * that drain() does not keep waiting for a frame that will never
+	 * complete.
+	 *
+	 * @param client
+	 *            the connection whose thread ended.
+	 */
+	final synchronized void connectionEnded(ConnectionToClient client) {
+		if (draining)
+			notifyAll();
 	}
 }
@@ -0,0 +1,50 @@
+package abstractServer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A typed key for information stored on a ConnectionToClient. Each key gets
+ * its own slot in every connection, so reading an attribute is an array
+ * access rather than a hash lookup. Keys are meant to be created once, as
+ * constants.
+ *
+ * @param <T>
+ *            the type of the value stored under the key.
+ *
+ * @author Karen SRocha
+ */
+public final class AttributeKey<T> {
+
+	/**
+	 * The next free slot.
+	 */
+	private static final AtomicInteger nextIndex = new AtomicInteger();
+
+	private final String name;
+	private final int index;
+
+	/**
+	 * Creates a new key.
+	 *
+	 * @param name
+	 *            the name of the key, used for display only.
+	 */
+	public AttributeKey(String name) {
+		this.name = name;
+		this.index = nextIndex.getAndIncrement();
+	}
+
+	/**
+	 * @return the slot of this key in each connection.
+	 */
+	int index() {
+		return index;
+	}
+
+	/**
+	 * @return the name of the key.
+	 */
+	public String toString() {
+		return name;
+	}
+}
@@ -6,12 +6,21 @@ package abstractServer;
 
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import link.Endpoint;
+import link.FrameCapture;
+import link.ImpairedLink;
+import link.LinkImpairment;
 
 /**
  * An instance of this class is created by the server when a client connects. It
  * accepts messages coming from the client and is responsible for sending data
- * to the client since the socket is private to this class. The AbstractServer
+ * to the client since the connection is private to this class. The AbstractServer
  * contains a set of instances of this class and is responsible for adding and
  * deleting them.
  * 
@@ -20,27 +29,26 @@ import java.util.HashMap;
 public class ConnectionToClient extends Thread {
 
 	/**
-	 * A reference to the Server that created this instance.
+	 * The source of connection IDs.
 	 */
-	private AbstractServer server;
+	private static final AtomicInteger nextConnectionID = new AtomicInteger();
 
 	/**
-	 * Sockets are used in the operating system as channels of communication
-	 * between two processes.
-	 * 
-	 * @see java.net.Socket
+	 * A reference to the Server that created this instance.
 	 */
-	private Socket clientSocket;
+	private AbstractServer server;
 
 	/**
-	 * Stream used to read from the client.
+	 * The server end of the connection, opened by the transport of the
+	 * server.
 	 */
-	private ObjectInputStream input;
+	private volatile Endpoint endpoint;
 
 	/**
-	 * Stream used to write to the client.
+	 * The impaired link messages are sent through, or null to send them on
+	 * the endpoint directly.
 	 */
-	private ObjectOutputStream output;
+	private ImpairedLink link;
 
 	/**
 	 * Indicates if the thread is ready to stop. Set to true when closing of the
@@ -49,12 +57,52 @@ public class ConnectionToClient extends Thread {
 	private boolean readyToStop;
 
 	/**
-	 * Map to save information about the client such as its login ID. The
+	 * Set once the server has been told the client disconnected, whether the
+	 * connection was closed or lost, so that it is told only once.
+	 */
+	private final AtomicBoolean disconnected = new AtomicBoolean();
+
+	/**
+	 * Map to save information about the client under string names. The
 	 * initial size of the map is small since it is not expected that concrete
 	 * servers will want to store many different types of information about each
 	 * client. Used by the setInfo and getInfo methods.
 	 */
-	private HashMap savedInfo = new HashMap(10);
+	private Map<String, Object> savedInfo = new ConcurrentHashMap<>(10);
+
+	/**
+	 * The values stored with setAttribute, one slot per AttributeKey. Read
+	 * without locking; replaced by a larger copy under attributesLock when a
+	 * key beyond its end is set.
+	 */
+	private volatile AtomicReferenceArray<Object> attributes = new AtomicReferenceArray<>(8);
+
+	/**
+	 * Lock held while setting an attribute.
+	 */
+	private final Object attributesLock = new Object();
+
+	/**
+	 * The login ID of the client, once it has logged in.
+	 */
+	private volatile String loginID;
+
+	/**
+	 * The station address assigned to the client.
+	 */
+	private volatile String stationAddress;
+
+	/**
+	 * The time, from System.nanoTime(), at which the last message was read
+	 * from the client. Used by the server to detect idle connections.
+	 */
+	private volatile long lastReceived = System.nanoTime();
+
+	/**
+	 * A number identifying this connection, unique within the process. Used
+	 * to tell connections apart in a capture.
+	 */
+	private final int connectionID = nextConnectionID.incrementAndGet();
 
 	/**
 	 * Constructs a new connection to a client.
@@ -62,35 +110,23 @@ public class ConnectionToClient extends Thread {
 	 * @param group
 	 *            the thread groupSystem.out.println("Client at "+ client +
 	 *            "connected"); that contains the connections.
-	 * @param clientSocket
-	 *            contains the client's socket.
+	 * @param endpoint
+	 *            the server end of the connection.
 	 * @param server
 	 *            a reference to the server that created this instance
-	 * @exception IOException
-	 *                if an I/O error occur when creating the connection.
 	 */
-	ConnectionToClient(ThreadGroup group, Socket clientSocket, AbstractServer server) throws IOException {
+	ConnectionToClient(ThreadGroup group, Endpoint endpoint, AbstractServer server) {
 		super(group, (Runnable) null);
 		// Initialize variables
-		this.clientSocket = clientSocket;
+		this.endpoint = endpoint;
 		this.server = server;
 
-		clientSocket.setSoTimeout(0); // make sure timeout is infinite
-
-		// Initialize the objects streams
-		try {
-			input = new ObjectInputStream(clientSocket.getInputStream());
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
-		} catch (IOException ex) {
-			try {
-				closeAll();
-			} catch (Exception exc) {
-			}
-
-			throw ex; // Rethrow the exception.
-		}
+		LinkImpairment impairment = server.getImpairment();
+		if (impairment != null)
+			link = impairment.open(endpoint, connectionID, "Link " + connectionID);
 
 		readyToStop = false;
+		server.addConnection(this);
 		start(); // Start the thread waits for data from the socket
 	}
 
@@ -103,10 +139,18 @@ public class ConnectionToClient extends Thread {
 	 *                if an I/O error occur when sending the message.
 	 */
 	final public void sendToClient(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
+		Endpoint endpoint = this.endpoint;
+		if (endpoint == null)
 			throw new SocketException("socket does not exist");
 
-		output.writeObject(msg);
+		ImpairedLink link = this.link;
+		if (link != null)
+			link.send(msg);
+		else
+			endpoint.send(msg);
+		FrameCapture capture = server.getCapture();
+		if (capture != null)
+			capture.record(connectionID, false, msg);
 	}
 
 	/**
@@ -115,7 +159,12 @@ public class ConnectionToClient extends Thread {
     * in some circumstances when Java refuses to send data that it thinks has been sent.
 	 */
 	final public void forceResetAfterSend() throws IOException {
-      output.reset();
+		ImpairedLink link = this.link;
+		Endpoint endpoint = this.endpoint;
+		if (link != null)
+			link.reset();
+		else if (endpoint != null)
+			endpoint.reset();
 	}
 
 	/**
@@ -131,7 +180,8 @@ public class ConnectionToClient extends Thread {
 		try {
 			closeAll();
 		} finally {
-			server.clientDisconnected(this);
+			server.removeConnection(this);
+			disconnected();
 		}
 	}
 
@@ -141,7 +191,8 @@ public class ConnectionToClient extends Thread {
 	 * @return the client's Internet address.
 	 */
 	final public InetAddress getInetAddress() {
-		return clientSocket == null ? null : clientSocket.getInetAddress();
+		Endpoint endpoint = this.endpoint;
+		return endpoint == null ? null : endpoint.getInetAddress();
 	}
 
 	/**
@@ -150,21 +201,121 @@ public class ConnectionToClient extends Thread {
 	 * @return the client's description.
 	 */
 	public String toString() {
-		return clientSocket == null ? null : clientSocket.getInetAddress().getHostName() + " ("
-				+ clientSocket.getInetAddress().getHostAddress() + ")";
+		Endpoint endpoint = this.endpoint;
+		return endpoint == null ? null : endpoint.toString();
+	}
+
+	/**
+	 * Returns the time since the last message was received from the client.
+	 * 
+	 * @return the idle time in milliseconds.
+	 */
+	final public long getIdleTime() {
+		return (System.nanoTime() - lastReceived) / 1000000;
+	}
+
+	/**
+	 * Returns the number identifying this connection.
+	 * 
+	 * @return the connection ID, unique within the process.
+	 */
+	final public int getConnectionID() {
+		return connectionID;
+	}
+
+	/**
+	 * Returns the login ID of the client.
+	 * 
+	 * @return the login ID, or null if the client has not logged in.
+	 */
+	public String getLoginID() {
+		return loginID;
+	}
+
+	/**
+	 * Sets the login ID of the client.
+	 * 
+	 * @param loginID
+	 *            the login ID, or null to clear it.
+	 */
+	public void setLoginID(String loginID) {
+		this.loginID = loginID;
+	}
+
+	/**
+	 * Returns the station address assigned to the client.
+	 * 
+	 * @return the station address, or null if none is assigned.
+	 */
+	public String getStationAddress() {
+		return stationAddress;
+	}
+
+	/**
+	 * Sets the station address assigned to the client.
+	 * 
+	 * @param stationAddress
+	 *            the station address, or null to clear it.
+	 */
+	public void setStationAddress(String stationAddress) {
+		this.stationAddress = stationAddress;
+	}
+
+	/**
+	 * Returns a value saved with setAttribute. Safe to call from any thread.
+	 * 
+	 * @param key
+	 *            the key of the value.
+	 * @return the value, or null if none was set.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getAttribute(AttributeKey<T> key) {
+		AtomicReferenceArray<Object> values = attributes;
+		int index = key.index();
+		return index < values.length() ? (T) values.get(index) : null;
+	}
+
+	/**
+	 * Saves a value about this client under a typed key. Safe to call from
+	 * any thread.
+	 * 
+	 * @param key
+	 *            the key of the value.
+	 * @param value
+	 *            the value, or null to clear it.
+	 */
+	public <T> void setAttribute(AttributeKey<T> key, T value) {
+		int index = key.index();
+		synchronized (attributesLock) {
+			AtomicReferenceArray<Object> values = attributes;
+			if (index >= values.length()) {
+				AtomicReferenceArray<Object> larger = new AtomicReferenceArray<>(
+						Math.max(index + 1, values.length() * 2));
+				for (int i = 0; i < values.length(); i++) {
+					larger.set(i, values.get(i));
+				}
+				attributes = larger;
+				values = larger;
+			}
+			values.set(index, value);
+		}
 	}
 
 	/**
 	 * Saves arbitrary information about this client. Designed to be used by
-	 * concrete subclasses of AbstractServer. Based on a hash map.
+	 * concrete subclasses of AbstractServer. Based on a concurrent hash map;
+	 * setAttribute is faster for information read on every message.
 	 * 
 	 * @param infoType
 	 *            identifies the type of information
 	 * @param info
-	 *            the information itself.
+	 *            the information itself, or null to remove it.
 	 */
 	public void setInfo(String infoType, Object info) {
-		savedInfo.put(infoType, info);
+		if (info == null)
+			savedInfo.remove(infoType);
+		else
+			savedInfo.put(infoType, info);
 	}
 
 	/**
@@ -190,11 +341,16 @@ public class ConnectionToClient extends Thread {
 		try {
 			// The message from the client
 			Object msg;
+			Endpoint endpoint = this.endpoint;
 
 			while (!readyToStop) {
 				// This block waits until it reads a message from the client
 				// and then sends it for handling by the server
-				msg = input.readObject();
+				msg = endpoint.receive();
+				lastReceived = System.nanoTime();
+				FrameCapture capture = server.getCapture();
+				if (capture != null)
+					capture.record(connectionID, true, msg);
 				server.receiveMessageFromClient(msg, this);
 			}
 		} catch (Exception exception) {
@@ -206,9 +362,22 @@ public class ConnectionToClient extends Thread {
 
 				server.clientException(this, exception);
 			}
+		} finally {
+			server.removeConnection(this);
+			// a client that drops is disconnected as much as one closed
+			disconnected();
+			server.connectionEnded(this);
 		}
 	}
 
+	/**
+	 * Tells the server the client disconnected, unless it was told already.
+	 */
+	private void disconnected() {
+		if (disconnected.compareAndSet(false, true))
+			server.clientDisconnected(this);
+	}
+
 	/**
 	 * Closes all connection to the server.
 	 * 
@@ -217,25 +386,18 @@ public class ConnectionToClient extends Thread {
 	 */
 	private void closeAll() throws IOException {
 		try {
-			// Close the socket
-			if (clientSocket != null)
-				clientSocket.close();
-
-			// Close the output stream
-			if (output != null)
-				output.close();
+			if (link != null)
+				link.close();
 
-			// Close the input stream
-			if (input != null)
-				input.close();
+			// Close the connection
+			if (endpoint != null)
+				endpoint.close();
 		} finally {
-			// Set the streams and the sockets to NULL no matter what
+			// Set the connection to NULL no matter what
 			// Doing so allows, but does not require, any finalizers
 			// of these objects to reclaim system resources if and
 			// when they are garbage collected.
-			output = null;
-			input = null;
-			clientSocket = null;
+			endpoint = null;
 		}
 	}
 
@@ -0,0 +1,174 @@
+package abstractServer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timer that runs many short tasks from a single thread. Tasks are hashed
+ * into the buckets of a wheel according to their deadline; the wheel thread
+ * advances one bucket per tick and runs the tasks that are due. Scheduling
+ * and cancelling are constant time, which makes the timer suitable for one
+ * timeout per connection. Tasks run on the wheel thread and should be short.
+ *
+ * @author Karen SRocha
+ */
+public class HashedWheelTimer {
+
+	/**
+	 * A task scheduled on the timer.
+	 */
+	public final class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private long remainingRounds;
+		private volatile boolean cancelled;
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the task. Has no effect if the task already ran.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		/**
+		 * @return true if the task was cancelled.
+		 */
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	/**
+	 * The time covered by each bucket, in nanoseconds.
+	 */
+	private final long tickNanos;
+
+	/**
+	 * The buckets of the wheel. Each bucket is a linked list of Timeouts and
+	 * is only touched by the wheel thread.
+	 */
+	private final Timeout[] wheel;
+
+	/**
+	 * Tasks scheduled since the last tick, waiting to be put in a bucket.
+	 */
+	private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+	private final Thread worker;
+	private final long startTime;
+	private volatile boolean stopped = false;
+	private long tick;
+
+	/**
+	 * Constructs and starts a timer.
+	 *
+	 * @param tickDuration
+	 *            the time covered by each bucket.
+	 * @param unit
+	 *            the unit of tickDuration.
+	 * @param ticksPerWheel
+	 *            the number of buckets.
+	 */
+	public HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.wheel = new Timeout[ticksPerWheel];
+		this.startTime = System.nanoTime();
+		this.worker = new Thread(this::run, "HashedWheelTimer");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Constructs and starts a timer with 100 ms ticks and 512 buckets.
+	 */
+	public HashedWheelTimer() {
+		this(100, TimeUnit.MILLISECONDS, 512);
+	}
+
+	/**
+	 * Schedules a task to run once after the given delay.
+	 *
+	 * @param task
+	 *            the task to be run.
+	 * @param delay
+	 *            the delay before running the task.
+	 * @param unit
+	 *            the unit of delay.
+	 * @return a handle that can be used to cancel the task.
+	 */
+	public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, System.nanoTime()
+				+ unit.toNanos(delay) - startTime);
+		pending.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stops the timer. Tasks that did not run yet are dropped.
+	 */
+	public void stop() {
+		stopped = true;
+		worker.interrupt();
+	}
+
+	private void run() {
+		while (!stopped) {
+			long deadline = tickNanos * (tick + 1);
+			long sleep = deadline - (System.nanoTime() - startTime);
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					continue;
+				}
+			}
+			transferPending();
+			expire(deadline);
+			tick++;
+		}
+	}
+
+	private void transferPending() {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			if (timeout.cancelled)
+				continue;
+			long ticks = Math.max(timeout.deadline / tickNanos, tick);
+			timeout.remainingRounds = (ticks - tick) / wheel.length;
+			int index = (int) (ticks % wheel.length);
+			timeout.next = wheel[index];
+			wheel[index] = timeout;
+		}
+	}
+
+	private void expire(long deadline) {
+		int index = (int) (tick % wheel.length);
+		Timeout timeout = wheel[index];
+		Timeout kept = null;
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.cancelled) {
+				// dropped
+			} else if (timeout.remainingRounds <= 0
+					&& timeout.deadline <= deadline) {
+				try {
+					timeout.task.run();
+				} catch (RuntimeException ex) {
+					// a failing task must not stop the timer
+				}
+			} else {
+				timeout.remainingRounds--;
+				timeout.next = kept;
+				kept = timeout;
+			}
+			timeout = next;
+		}
+		wheel[index] = kept;
+	}
+}
@@ -0,0 +1,257 @@
+package lab6;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import abstractServer.HashedWheelTimer;
+
+/**
+ * This class keeps the acknowledgement state of one end of a link. Every
+ * I-frame and ACK carries N(R) in the last three bits of its control field:
+ * the number of messages this end has received whole, modulo 8, as in HDLC.
+ * An ACK therefore acknowledges every message since the last one, and an
+ * I-frame sent the other way acknowledges them too, so no separate ACK is
+ * needed while traffic flows both ways.
+ *
+ * A message received is acknowledged at once by default. With a delay set,
+ * the ACK waits until several messages are due, or the delay runs out, in
+ * case an I-frame can carry it first. At most seven messages are ever left
+ * unacknowledged, so N(R) cannot wrap around.
+ *
+ * The owner stamps N(R) on each frame as it is sent, under the lock that
+ * orders its sends, so N(R) never goes backwards on the link. Only I-frames
+ * to the other end itself, or broadcast, are counted as sent: the other end
+ * acknowledges no others, such as frames a station sends the primary to
+ * forward to another station.
+ *
+ * @author Karen SRocha
+ */
+final class Acknowledger {
+
+	/**
+	 * The modulus of N(R).
+	 */
+	final static int MODULUS = 8;
+
+	/**
+	 * The most messages left unacknowledged.
+	 */
+	final static int MAX_PENDING = MODULUS - 1;
+
+	final private static int EIGHT_BITS = Hdlc.EIGHT_BITS;
+	final private static String ACK_PREFIX = "10001";
+	final private static String BROADCAST = "11111111";
+	final private static String[] COUNT_BITS = { "000", "001", "010", "011",
+			"100", "101", "110", "111" };
+
+	private static HashedWheelTimer timer;
+
+	private final Runnable flush;
+	private final Supplier<String> peer;
+	private int every = 1;
+	private long delay = 0;
+
+	// messages received whole, modulo 8: V(R)
+	private int received = 0;
+	// of those, the ones no frame sent has acknowledged yet
+	private int pending = 0;
+	// messages sent whole that the other end has not acknowledged yet
+	private int sent = 0;
+	// the last N(R) received
+	private int acknowledged = 0;
+	// messages sent whole on this connection, and of those the ones
+	// acknowledged, without the modulus
+	private long sentTotal = 0;
+	private long acknowledgedTotal = 0;
+	private HashedWheelTimer.Timeout timeout;
+	// the ACK frames to the address of the last ACK stamped, by N(R)
+	private String ackAddress;
+	private String[] ackFrames;
+
+	/**
+	 * Constructs the state of a link.
+	 *
+	 * @param flush
+	 *            Sends an ACK when the delay runs out, on the timer thread.
+	 * @param peer
+	 *            The address of the other end, or null while it has none.
+	 */
+	Acknowledger(Runnable flush, Supplier<String> peer) {
+		this.flush = flush;
+		this.peer = peer;
+	}
+
+	/**
+	 * This method sets when a message received is acknowledged.
+	 *
+	 * @param every
+	 *            The number of messages one ACK covers, from 1 to 7.
+	 * @param delay
+	 *            The time in ms an ACK may wait, or 0 to send it at once.
+	 */
+	synchronized void setDelay(int every, long delay) {
+		this.every = Math.max(1, Math.min(every, MAX_PENDING));
+		this.delay = Math.max(0, delay);
+	}
+
+	/**
+	 * This method starts again from zero, for a new connection.
+	 */
+	synchronized void reset() {
+		cancel();
+		received = 0;
+		pending = 0;
+		sent = 0;
+		acknowledged = 0;
+		sentTotal = 0;
+		acknowledgedTotal = 0;
+	}
+
+	/**
+	 * This method counts a message received whole.
+	 *
+	 * @return True if an ACK should be sent now; otherwise one is sent when
+	 *         the delay runs out unless a frame sent before carries it.
+	 */
+	synchronized boolean messageReceived() {
+		received = (received + 1) % MODULUS;
+		pending++;
+		if (pending >= every || delay == 0)
+			return true;
+		if (timeout == null)
+			timeout = timer().newTimeout(this::expired, delay,
+					TimeUnit.MILLISECONDS);
+		return false;
+	}
+
+	/**
+	 * @return True if a message received has not been acknowledged yet.
+	 */
+	synchronized boolean isPending() {
+		return pending > 0;
+	}
+
+	/**
+	 * This method puts the current N(R) on an I-frame or ACK about to be
+	 * sent, which acknowledges every message received so far. Other frames
+	 * are returned as they are.
+	 *
+	 * @param frame
+	 *            The whole frame.
+	 * @return The frame to send.
+	 */
+	synchronized String stamp(String frame) {
+		if (frame.length() < 3 * EIGHT_BITS)
+			return frame;
+		boolean information = frame.charAt(2 * EIGHT_BITS) == '0';
+		if (!information && !frame.startsWith(ACK_PREFIX, 2 * EIGHT_BITS))
+			return frame;
+		if (information && isLast(frame) && isToPeer(frame)) {
+			sent++;
+			sentTotal++;
+		}
+		pending = 0;
+		cancel();
+		if (information)
+			return frame.substring(0, 3 * EIGHT_BITS - 3) + COUNT_BITS[received]
+					+ frame.substring(3 * EIGHT_BITS);
+		if (ackAddress == null || !frame.startsWith(ackAddress, EIGHT_BITS)) {
+			ackAddress = frame.substring(EIGHT_BITS, 2 * EIGHT_BITS);
+			ackFrames = ControlFrames.acks(ackAddress);
+		}
+		return ackFrames[received];
+	}
+
+	/**
+	 * This method reads N(R) off an I-frame or ACK received.
+	 *
+	 * @param control
+	 *            The control field.
+	 * @return The number of messages sent that it newly acknowledges.
+	 */
+	synchronized int acknowledge(String control) {
+		if (!isInformation(control) && !isAck(control))
+			return 0;
+		int count = Integer.parseInt(control.substring(EIGHT_BITS - 3), 2);
+		int newly = Math.floorMod(count - acknowledged, MODULUS);
+		// an N(R) older than the last one, from frames overtaking each other
+		if (newly > sent)
+			return 0;
+		acknowledged = count;
+		sent -= newly;
+		acknowledgedTotal += newly;
+		return newly;
+	}
+
+	/**
+	 * @return The number of messages sent whole on this connection, counting
+	 *         the one just stamped.
+	 */
+	synchronized long getSent() {
+		return sentTotal;
+	}
+
+	/**
+	 * @return The number of messages sent on this connection that the other
+	 *         end has acknowledged. Messages are acknowledged in the order
+	 *         they were sent, so the first this many are.
+	 */
+	synchronized long getAcknowledged() {
+		return acknowledgedTotal;
+	}
+
+	/**
+	 * @return The control field of an ACK carrying N(R).
+	 */
+	static String ackControl(int count) {
+		return ACK_PREFIX + COUNT_BITS[count];
+	}
+
+	/**
+	 * @return True for the control field of an I-frame, whatever its N(R).
+	 */
+	static boolean isInformation(String control) {
+		return control.charAt(0) == '0';
+	}
+
+	/**
+	 * @return True for the control field of an ACK, whatever its N(R).
+	 */
+	static boolean isAck(String control) {
+		return control.startsWith(ACK_PREFIX);
+	}
+
+	private boolean isToPeer(String frame) {
+		if (frame.startsWith(BROADCAST, EIGHT_BITS))
+			return true;
+		String address = peer.get();
+		return address != null && frame.startsWith(address, EIGHT_BITS);
+	}
+
+	private static boolean isLast(String frame) {
+		String info = frame.substring(3 * EIGHT_BITS, frame.length() - 3
+				* EIGHT_BITS);
+		int header = Segmenter.header(info);
+		return header < 0 || !Segmenter.isMore(header);
+	}
+
+	private void expired() {
+		synchronized (this) {
+			timeout = null;
+		}
+		flush.run();
+	}
+
+	private void cancel() {
+		if (timeout != null) {
+			timeout.cancel();
+			timeout = null;
+		}
+	}
+
+	private static synchronized HashedWheelTimer timer() {
+		if (timer == null)
+			timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 512);
+		return timer;
+	}
+}
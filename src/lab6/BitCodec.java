@@ -0,0 +1,309 @@
+package lab6;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class converts between text, bytes and the '0'/'1' bit strings used
+ * in frames. The buffer methods work on caller supplied arrays and never
+ * allocate; the String methods reuse per-thread scratch buffers so the only
+ * allocation is the String they return. Text is encoded with an explicit
+ * charset, UTF-8 by default.
+ *
+ * @author Karen SRocha
+ */
+public final class BitCodec {
+
+	/**
+	 * The charset used when none is given.
+	 */
+	final public static Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
+
+	/**
+	 * The eight bit characters of every byte value, most significant bit
+	 * first. BITS[b * 8 + i] is bit i of byte b.
+	 */
+	final private static char[] BITS = new char[256 * 8];
+
+	static {
+		for (int b = 0; b < 256; b++) {
+			for (int i = 0; i < 8; i++) {
+				BITS[b * 8 + i] = ((b << i) & 0x80) == 0 ? '0' : '1';
+			}
+		}
+	}
+
+	/**
+	 * Per-thread scratch buffers, grown on demand and then reused.
+	 */
+	final private static ThreadLocal<Scratch> SCRATCH = ThreadLocal
+			.withInitial(Scratch::new);
+
+	private static class Scratch {
+		byte[] bytes = new byte[256];
+		char[] chars = new char[2048];
+
+		byte[] bytes(int size) {
+			if (bytes.length < size)
+				bytes = new byte[Math.max(size, bytes.length * 2)];
+			return bytes;
+		}
+
+		char[] chars(int size) {
+			if (chars.length < size)
+				chars = new char[Math.max(size, chars.length * 2)];
+			return chars;
+		}
+	}
+
+	private BitCodec() {
+	}
+
+	/**
+	 * This method writes the bits of len bytes into dst.
+	 *
+	 * @param src
+	 *            The bytes to be converted.
+	 * @param off
+	 *            The first byte to convert.
+	 * @param len
+	 *            The number of bytes to convert.
+	 * @param dst
+	 *            The destination, with room for len * 8 characters.
+	 * @param dstOff
+	 *            Where the first bit is written.
+	 * @return The number of characters written.
+	 */
+	public static int bytesToBits(byte[] src, int off, int len, char[] dst,
+			int dstOff) {
+		for (int i = 0; i < len; i++) {
+			System.arraycopy(BITS, (src[off + i] & 0xFF) * 8, dst, dstOff
+					+ i * 8, 8);
+		}
+		return len * 8;
+	}
+
+	/**
+	 * This method writes the bits of len bytes of a buffer into dst. The
+	 * bytes are read with absolute gets, so the buffer's position is left
+	 * alone and a direct or mapped buffer is never copied to the heap.
+	 *
+	 * @param src
+	 *            The buffer holding the bytes to be converted.
+	 * @param index
+	 *            The index of the first byte to convert.
+	 * @param len
+	 *            The number of bytes to convert.
+	 * @param dst
+	 *            The destination, with room for len * 8 characters.
+	 * @param dstOff
+	 *            Where the first bit is written.
+	 * @return The number of characters written.
+	 */
+	public static int bytesToBits(ByteBuffer src, int index, int len,
+			char[] dst, int dstOff) {
+		for (int i = 0; i < len; i++) {
+			System.arraycopy(BITS, (src.get(index + i) & 0xFF) * 8, dst,
+					dstOff + i * 8, 8);
+		}
+		return len * 8;
+	}
+
+	/**
+	 * This method packs len bits, eight per byte, into dst. Trailing bits
+	 * that do not make up a whole byte are ignored.
+	 *
+	 * @param bits
+	 *            The '0'/'1' characters to be converted.
+	 * @param off
+	 *            The first bit to convert.
+	 * @param len
+	 *            The number of bits to convert.
+	 * @param dst
+	 *            The destination, with room for len / 8 bytes.
+	 * @param dstOff
+	 *            Where the first byte is written.
+	 * @return The number of bytes written.
+	 */
+	public static int bitsToBytes(CharSequence bits, int off, int len,
+			byte[] dst, int dstOff) {
+		int count = len / 8;
+		for (int i = 0; i < count; i++) {
+			int value = 0;
+			int p = off + i * 8;
+			for (int j = 0; j < 8; j++) {
+				value = (value << 1) | (bits.charAt(p + j) & 1);
+			}
+			dst[dstOff + i] = (byte) value;
+		}
+		return count;
+	}
+
+	/**
+	 * This method packs len bits, eight per byte, into a buffer with relative
+	 * puts. Trailing bits that do not make up a whole byte are ignored.
+	 *
+	 * @param bits
+	 *            The '0'/'1' characters to be converted.
+	 * @param off
+	 *            The first bit to convert.
+	 * @param len
+	 *            The number of bits to convert.
+	 * @param dst
+	 *            The destination, with len / 8 bytes remaining.
+	 * @return The number of bytes written.
+	 */
+	public static int bitsToBytes(CharSequence bits, int off, int len,
+			ByteBuffer dst) {
+		int count = len / 8;
+		for (int i = 0; i < count; i++) {
+			int value = 0;
+			int p = off + i * 8;
+			for (int j = 0; j < 8; j++) {
+				value = (value << 1) | (bits.charAt(p + j) & 1);
+			}
+			dst.put((byte) value);
+		}
+		return count;
+	}
+
+	/**
+	 * This method encodes text as UTF-8 into dst.
+	 *
+	 * @param text
+	 *            The text to be encoded.
+	 * @param dst
+	 *            The destination, with room for text.length() * 3 bytes.
+	 * @param dstOff
+	 *            Where the first byte is written.
+	 * @return The number of bytes written.
+	 */
+	public static int encodeUtf8(CharSequence text, byte[] dst, int dstOff) {
+		int p = dstOff;
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				dst[p++] = (byte) c;
+			} else if (c < 0x800) {
+				dst[p++] = (byte) (0xC0 | (c >> 6));
+				dst[p++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, text.charAt(++i));
+				dst[p++] = (byte) (0xF0 | (cp >> 18));
+				dst[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				dst[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				dst[p++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				dst[p++] = (byte) '?'; // unpaired surrogate
+			} else {
+				dst[p++] = (byte) (0xE0 | (c >> 12));
+				dst[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				dst[p++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return p - dstOff;
+	}
+
+	/**
+	 * This method encodes text as UTF-8 into a buffer with relative puts, so
+	 * text can be encoded straight into a reused buffer.
+	 *
+	 * @param text
+	 *            The text to be encoded.
+	 * @param dst
+	 *            The destination, with text.length() * 3 bytes remaining.
+	 * @return The number of bytes written.
+	 */
+	public static int encodeUtf8(CharSequence text, ByteBuffer dst) {
+		int start = dst.position();
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				dst.put((byte) c);
+			} else if (c < 0x800) {
+				dst.put((byte) (0xC0 | (c >> 6)));
+				dst.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, text.charAt(++i));
+				dst.put((byte) (0xF0 | (cp >> 18)));
+				dst.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				dst.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				dst.put((byte) (0x80 | (cp & 0x3F)));
+			} else if (Character.isSurrogate(c)) {
+				dst.put((byte) '?'); // unpaired surrogate
+			} else {
+				dst.put((byte) (0xE0 | (c >> 12)));
+				dst.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				dst.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+		return dst.position() - start;
+	}
+
+	/**
+	 * This method converts a text into its binary representation using the
+	 * default charset.
+	 *
+	 * @param text
+	 *            The text to be converted.
+	 * @return The bits of the encoded text.
+	 */
+	public static String toBits(String text) {
+		return toBits(text, DEFAULT_CHARSET);
+	}
+
+	/**
+	 * This method converts a text into its binary representation.
+	 *
+	 * @param text
+	 *            The text to be converted.
+	 * @param charset
+	 *            The charset used to encode the text.
+	 * @return The bits of the encoded text.
+	 */
+	public static String toBits(String text, Charset charset) {
+		Scratch scratch = SCRATCH.get();
+		byte[] bytes;
+		int length;
+		if (charset.equals(StandardCharsets.UTF_8)) {
+			bytes = scratch.bytes(text.length() * 3);
+			length = encodeUtf8(text, bytes, 0);
+		} else {
+			bytes = text.getBytes(charset);
+			length = bytes.length;
+		}
+		char[] chars = scratch.chars(length * 8);
+		return new String(chars, 0, bytesToBits(bytes, 0, length, chars, 0));
+	}
+
+	/**
+	 * This method converts bits back into text using the default charset.
+	 *
+	 * @param bits
+	 *            The bits to be converted.
+	 * @return The decoded text.
+	 */
+	public static String fromBits(String bits) {
+		return fromBits(bits, DEFAULT_CHARSET);
+	}
+
+	/**
+	 * This method converts bits back into text.
+	 *
+	 * @param bits
+	 *            The bits to be converted.
+	 * @param charset
+	 *            The charset used to decode the bytes.
+	 * @return The decoded text.
+	 */
+	public static String fromBits(String bits, Charset charset) {
+		byte[] bytes = SCRATCH.get().bytes(bits.length() / 8);
+		int length = bitsToBytes(bits, 0, bits.length(), bytes, 0);
+		return new String(bytes, 0, length, charset);
+	}
+}
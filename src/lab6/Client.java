@@ -3,8 +3,16 @@ package lab6;
 import abstractClient.*;
 
 import java.io.*;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import link.FrameCapture;
+import link.SocketTransport;
+import link.Transport;
 
 /**
  * This class overrides some of the methods defined in the abstract superclass
@@ -16,7 +24,6 @@ public class Client extends AbstractClient {
 
 	final private int EIGHT_BITS = 8;
 	final private int MIN_FRAME_LENGTH = 48;
-	final private int SIXTY_FOUR_BYTES = 512;
 	final private String SERVER_ADDRESS = "00000000";
 	final private String BROADCAST = "11111111";
 	final private String FLAG = "01111110";
@@ -25,7 +32,16 @@ public class Client extends AbstractClient {
 	final private String CONTROL_UA = "11001110";
 	final private String CONTROL_INFO = "00010000";
 	final private String CONTROL_ACK = "10001000";
+	final private String CONTROL_RR_POLL = "10011000";
+	final private String CONTROL_RNR = "10101000";
 
+	/**
+	 * Information frames received and not yet delivered. The station sends
+	 * RNR when the queue reaches the high watermark and RR once it has
+	 * drained to the low watermark.
+	 */
+	final private int HIGH_WATERMARK = 48;
+	final private int LOW_WATERMARK = 16;
 
 	/**
 	 * The interface type variable. It allows the implementation of the display
@@ -41,7 +57,13 @@ public class Client extends AbstractClient {
 
 	private Map<String, String> addresses;
 	private String myAddress;
-	private String wholeFrame;
+
+	/**
+	 * The token given by the primary station at login. Sent back after a
+	 * reconnection to get the same address and link state.
+	 */
+	private String resumeToken;
+	private StringBuilder received;
 	private int windowFramesReceived;
 	private String destination;
 
@@ -50,6 +72,20 @@ public class Client extends AbstractClient {
 	private boolean connectionON;
 	private boolean messageON;
 
+	private BlockingQueue<String> inbound;
+	private Thread delivery;
+	private Reassembler reassembler;
+	private FileTransfer fileTransfer;
+
+	/**
+	 * The compression methods offered by the primary station in SNRM, and
+	 * the compression of the link once accepted in UA.
+	 */
+	private int offeredCompression;
+	private volatile Compression compression;
+	private AtomicBoolean receiverBusy;
+	private Acknowledger acknowledger;
+
 	/**
 	 * Constructs an instance of the chat client.
 	 *
@@ -64,20 +100,48 @@ public class Client extends AbstractClient {
 	 * @throws IOException
 	 */
 	public Client(String loginID, String host, int port, ChatIF clientUI) {
-		super(host, port); // Call the superclass constructor
+		this(loginID, host, port, clientUI, SocketTransport.DEFAULT);
+	}
+
+	/**
+	 * Constructs an instance of the chat client that connects with a
+	 * transport other than TCP sockets, such as an InProcessTransport shared
+	 * with a server in the same process.
+	 *
+	 * @param loginID
+	 *            The login ID of the client.
+	 * @param host
+	 *            The server to connect to.
+	 * @param port
+	 *            The port number to connect on.
+	 * @param clientUI
+	 *            The interface type variable.
+	 * @param transport
+	 *            The transport, shared with the server.
+	 */
+	public Client(String loginID, String host, int port, ChatIF clientUI,
+			Transport transport) {
+		super(host, port, transport); // Call the superclass constructor
 		this.loginID = loginID;
 		this.clientUI = clientUI;
+		addresses = new HashMap<>();
+		received = new StringBuilder();
+		windowFramesReceived = 0;
+		destination = "";
+		isEnteringLogin = false;
+		snrmReceived = false;
+		connectionON = false;
+		messageON = false;
+		inbound = new LinkedBlockingQueue<>();
+		reassembler = new Reassembler();
+		fileTransfer = new FileTransfer(Paths.get("received", loginID),
+				info -> sendFrame(FLAG + SERVER_ADDRESS + CONTROL_INFO + info
+						+ FCS + FLAG));
+		receiverBusy = new AtomicBoolean(false);
+		acknowledger = new Acknowledger(this::sendAck, () -> SERVER_ADDRESS);
 		try {
 			openConnection();
-			sendToServer("login " + loginID);
-			addresses = new HashMap<>();
-			wholeFrame = "";
-			windowFramesReceived = 0;
-			destination = "";
-			isEnteringLogin = false;
-			snrmReceived = false;
-			connectionON = false;
-			messageON = false;
+			sendToServer(new Message(Message.Type.LOGIN, loginID));
 		} catch (IOException e) {
 			clientUI.display("Cannot open connection. Awaiting command.");
 		}
@@ -99,6 +163,15 @@ public class Client extends AbstractClient {
 		this.loginID = loginID;
 	}
 
+	/**
+	 * Returns the station address assigned by the primary station.
+	 *
+	 * @return The station address, or null if not assigned yet.
+	 */
+	public String getAddress() {
+		return myAddress;
+	}
+
 	/**
 	 * This method handles all data that comes in from the server.
 	 *
@@ -107,34 +180,24 @@ public class Client extends AbstractClient {
 	 */
 	public void handleMessageFromServer(Object msg) {
 
-		String message = (String) msg;
-
-		if (message.startsWith("Addresses ")) {
-			String receivedAddresses = message.substring(10);
-			String[] addressesArray = receivedAddresses.split(" ");
-
-			for (int i = 0; i < addressesArray.length - 1; i += 2) {
-				if (!addresses.containsKey(addressesArray[i])) {
-					addresses.put(addressesArray[i], addressesArray[i + 1]);
-				}
-			}
-			myAddress = addresses.get(loginID);
-			System.out
-					.println("Enter Addresses to see all stations connected.\n");
-
-		} else if (message.equals("login exists")) {
-
-			System.out.println("The login used already exists.");
-			System.out.print("Please enter a new login: ");
-			isEnteringLogin = true;
+		Message message = (Message) msg;
 
-		} else if (isBinary(message)) {
-			wholeFrame += message; // continue to receive fragments until...
+		switch (message.getType()) {
+		case FRAGMENT:
+			received.append(message.getPayload()); // continue to receive fragments until...
 			windowFramesReceived++;
-			if (wholeFrame.length() >= MIN_FRAME_LENGTH && isFlagOK(wholeFrame)) {
+			if (received.length() >= MIN_FRAME_LENGTH && Hdlc.isFlagOK(received)) {
 
-				Map<String, String> frameFields = breakFrame(wholeFrame);
+				String wholeFrame = Hdlc.unstuff(received);
+				captureFrame(true, wholeFrame);
+				Map<String, String> frameFields = Hdlc.breakFrame(wholeFrame);
 				String destinationAddress = frameFields.get("address");
+				// N(R) of I-frames and ACKs, whatever their destination
+				int acknowledgedCount = acknowledger.acknowledge(frameFields
+						.get("control"));
+				for (int i = 0; i < acknowledgedCount; i++) {
+					frameReceived(CONTROL_ACK);
+				}
 
 				if (destinationAddress.equals(myAddress)
 						|| destinationAddress.equals(BROADCAST)) {
@@ -142,35 +205,95 @@ public class Client extends AbstractClient {
 
 					if (controlField.equals(CONTROL_SNRM)) {
 						snrmReceived = true;
+						offeredCompression = Compression.fromBits(frameFields.get("info"));
 						System.out.println("SNRM message received in "
 								+ windowFramesReceived + " window frames.");
 						System.out.println("Message frame: " + wholeFrame);
 						System.out
 								.println("Would you like to send UA now? (y/n)");
-						
-					} else if (controlField.equals(CONTROL_INFO)){
-						System.out.println("Message received in " + windowFramesReceived + " window frames.");
-						System.out.println("Message frame: " + wholeFrame);
-						String info = binaryToASCII(frameFields.get("info"));
-						System.out.println("Information field translated to:");
-						System.out.println(info + "\n");
-						System.out.println("Sending ACK message.");
-						sendMessage(SERVER_ADDRESS, CONTROL_ACK, "");
-						
-					} else if (controlField.equals(CONTROL_ACK)){
+					
+					} else if (Acknowledger.isInformation(controlField)) {
+						// delivered, acknowledged and reported by the delivery
+						// thread, so a slow console never stalls the link
+						receiveInformation(wholeFrame);
+						received.setLength(0);
+						windowFramesReceived = 0;
+						break;
+
+					} else if (controlField.equals(CONTROL_RR_POLL)) {
+						// heartbeat from the primary station: answer quietly,
+						// with RNR while the delivery queue is backed up
+						sendFrame(ControlFrames.frame(SERVER_ADDRESS,
+								receiverBusy.get() ? CONTROL_RNR : CONTROL_RR_POLL, ""));
+
+					} else if (Acknowledger.isAck(controlField)) {
 						System.out.println("ACK message received from Primary station.");
 						System.out.println("ACK message received in "
 								+ windowFramesReceived + " window frames.");
 						System.out.println("ACK frame: " + wholeFrame + "\n.");
 					}
+					// the messages an ACK acknowledges were reported above
+					if (!Acknowledger.isAck(controlField))
+						frameReceived(controlField);
 				} else {
 					System.out.println("Message received was not for me.");
 				}
-				wholeFrame = "";
+				received.setLength(0);
 				windowFramesReceived = 0;
 			}
-		} else {
-			clientUI.display(message);
+			break;
+
+		case ADDRESSES:
+			String receivedAddresses = message.getPayload();
+			String[] addressesArray = receivedAddresses.split(" ");
+			for (int i = 0; i < addressesArray.length - 1; i += 2) {
+				if (!addresses.containsKey(addressesArray[i])) {
+					addresses.put(addressesArray[i], addressesArray[i + 1]);
+				}
+			}
+			// a login refused is not this station's
+			if (!isEnteringLogin)
+				myAddress = addresses.get(loginID);
+			System.out
+					.println("Enter Addresses to see all stations connected.\n");
+			break;
+
+		case SESSION:
+			resumeToken = message.getPayload();
+			break;
+
+		case RESUME_FAILED:
+			// the primary no longer knows this station: log in afresh
+			resumeToken = null;
+			addresses.clear();
+			myAddress = null;
+			snrmReceived = false;
+			connectionON = false;
+			messageON = false;
+			compression = null;
+			try {
+				sendToServer(new Message(Message.Type.LOGIN, loginID));
+			} catch (IOException e) {
+				noServer();
+			}
+			break;
+
+		case LOGIN_EXISTS:
+			// also sent for a login the primary takes back: start afresh
+			resumeToken = null;
+			addresses.clear();
+			myAddress = null;
+			snrmReceived = false;
+			connectionON = false;
+			messageON = false;
+			compression = null;
+			System.out.println("The login used already exists.");
+			System.out.print("Please enter a new login: ");
+			isEnteringLogin = true;
+			break;
+
+		default:
+			clientUI.display(message.getPayload());
 		}
 	}
 
@@ -189,7 +312,7 @@ public class Client extends AbstractClient {
 			} else {
 				isEnteringLogin = false;
 				try {
-					sendToServer("login " + message);
+					sendToServer(new Message(Message.Type.LOGIN, message));
 					this.loginID = message;
 				} catch (IOException e) {
 					noServer();
@@ -198,18 +321,27 @@ public class Client extends AbstractClient {
 
 		} else if (messageON) {
 			
-			String binaryMessage = englishToBinary(message);
-			if (binaryMessage.length() > SIXTY_FOUR_BYTES){
-				System.out.println("Message invalid. Information field can only have 64 bytes. Try again.");
+			if (message.startsWith("sendfile ")) {
+				// a file needs an answer, which only the primary station
+				// can route back to this station
+				if (!destination.equals(SERVER_ADDRESS)) {
+					System.out.println("Files can only be sent to the primary station.");
+				} else {
+					try {
+						fileTransfer.offer(Paths.get(message.substring(9).trim()));
+					} catch (IOException | RuntimeException e) {
+						System.out.println("Could not send file: " + e.getMessage());
+					}
+				}
 			} else {
-				sendMessage(destination, CONTROL_INFO, binaryMessage);
-				messageON = false;
-				connectionON = true;
-				System.out
-				.println("Enter Addresses to see all stations connected.");
-		System.out
-				.println("Or enter the destination address or station name to send message.\n");
+				sendText(destination, message);
 			}
+			messageON = false;
+			connectionON = true;
+			System.out
+					.println("Enter Addresses to see all stations connected.");
+			System.out
+					.println("Or enter the destination address or station name to send message.\n");
 			
 		} else if (message.toLowerCase().equals("addresses")) {
 			System.out.println("---- ADDRESSES ----");
@@ -221,12 +353,22 @@ public class Client extends AbstractClient {
 				}
 			}
 
+		} else if (message.toLowerCase().equals("compression")) {
+			System.out.println("Compression: "
+					+ (compression == null ? "off" : compression));
+
+		} else if (message.startsWith("capture ")) {
+			setCapture(message.substring(8).trim());
+
 		} else if (snrmReceived) {
 			if (message.equals("y")) {
 				snrmReceived = false;
 				connectionON = true;
 				System.out.println("Sending UA message to primary station.");
-				sendMessage(SERVER_ADDRESS, CONTROL_UA, "");
+				// accept the compression methods offered that are supported
+				int accepted = offeredCompression & Compression.SUPPORTED;
+				compression = accepted != 0 ? new Compression() : null;
+				sendMessage(SERVER_ADDRESS, CONTROL_UA, Compression.toBits(accepted));
 
 				System.out.println("Connection established.");
 				System.out
@@ -242,12 +384,12 @@ public class Client extends AbstractClient {
 			}
 
 		} else if (connectionON) {
-			if (isBinary(message)) {
+			if (Hdlc.isBinary(message)) {
 				if (addresses.containsValue(message)) {
 					destination = message;
 					connectionON = false;
 					messageON = true;
-					System.out.println("Enter message to be sent:");
+					System.out.println("Enter message to be sent, or sendfile <path> to send a file:");
 				} else {
 					System.out
 							.println("Binary address entered is not valid. Try again.\n");
@@ -257,7 +399,7 @@ public class Client extends AbstractClient {
 					destination = addresses.get(message);
 					connectionON = false;
 					messageON = true;
-					System.out.println("Enter message to be sent:");
+					System.out.println("Enter message to be sent, or sendfile <path> to send a file:");
 				} else {
 					System.out
 							.println("Station entered is not valid. Try again.\n");
@@ -277,7 +419,7 @@ public class Client extends AbstractClient {
 	public void quit() {
 		if (isConnected()) {
 			try {
-				sendToServer("logoff");
+				sendToServer(new Message(Message.Type.LOGOFF));
 				closeConnection();
 			} catch (IOException e1) {
 			}
@@ -293,129 +435,336 @@ public class Client extends AbstractClient {
 	@Override
 	protected void connectionException(Exception exception) {
 		clientUI.display("Server has shutdown. Abnormal termination of connection.");
+		if (isAutoReconnect()) {
+			clientUI.display("Trying to reconnect...");
+		} else {
+			stopDelivery();
+		}
+	}
+
+	/**
+	 * This method is called each time the connection is opened. After a
+	 * reconnection it asks the primary station to resume the session.
+	 */
+	@Override
+	protected void connectionEstablished() {
+		received.setLength(0);
+		windowFramesReceived = 0;
+		// N(R) starts again on every connection
+		acknowledger.reset();
+		startDelivery();
+		if (resumeToken != null) {
+			try {
+				sendToServer(new Message(Message.Type.RESUME, resumeToken));
+			} catch (IOException e) {
+				noServer();
+			}
+		}
 	}
 
 	/**
 	 * This method displays a message if the connection is closed.
 	 */
 	protected void connectionClosed() {
+		stopDelivery();
 		System.out.println("You have been logged off.");
 	}
 
-	private void noServer() {
-		System.out
-				.println("Could not send message to server. Terminating client.");
-		quit();
+	/**
+	 * Hook method called after a whole frame addressed to this station has
+	 * been handled. The default implementation does nothing. It may be
+	 * overridden by subclasses that need to observe the link, such as load
+	 * generators. It is called with CONTROL_ACK once for each message the
+	 * primary station acknowledges, by ACK or in the N(R) of an I-frame.
+	 *
+	 * @param control
+	 *            The control field of the frame.
+	 */
+	protected void frameReceived(String control) {
 	}
 
 	/**
-	 * This method tests if a string is an binary message.
-	 * 
-	 * @param message
-	 *            The message to be tested.
-	 * @return True if it is and false if it is not.
+	 * This method queues an information frame for delivery. The reader never
+	 * waits here, nor sends anything: a reader stuck behind a write to a
+	 * primary that is itself busy writing to this station would stall both.
+	 * The queue is kept short by RNR, sent by the delivery thread, and only
+	 * has to take the frames already on their way when RNR goes out.
+	 *
+	 * @param frame
+	 *            The whole frame.
 	 */
-	private boolean isBinary(String message) {
-		boolean result = true;
-		String[] charac = message.split("");
-		for (String s : charac) {
-			if (!s.equals("0") && !s.equals("1") && !s.equals("+")
-					&& !s.equals("-")) {
-				result = false;
-			}
-		}
-		return result;
+	private void receiveInformation(String frame) {
+		inbound.add(frame);
 	}
 
-	private boolean isFlagOK(String message) {
-		boolean result = false;
-		if (message.substring(0, EIGHT_BITS).equals(FLAG)
-				&& message.substring(message.length() - EIGHT_BITS)
-						.equals(FLAG))
-			result = true;
-		return result;
+	/**
+	 * This method starts the delivery thread, once a connection is open. It
+	 * keeps running across reconnections.
+	 */
+	private synchronized void startDelivery() {
+		if (delivery != null)
+			return;
+		delivery = new Thread(this::deliverFrames, "Delivery " + loginID);
+		delivery.setDaemon(true);
+		delivery.start();
 	}
 
-	private Map<String, String> breakFrame(String message) {
-		Map<String, String> fields = new HashMap<>();
-
-		fields.put("flag1", message.substring(0, EIGHT_BITS));
-		message = message.substring(EIGHT_BITS);
+	/**
+	 * This method stops the delivery thread once the connection is closed
+	 * for good. Frames not delivered yet are dropped with it, since they
+	 * can no longer be acknowledged.
+	 */
+	private synchronized void stopDelivery() {
+		if (delivery == null)
+			return;
+		delivery.interrupt();
+		delivery = null;
+		inbound.clear();
+	}
 
-		fields.put("address", message.substring(0, EIGHT_BITS));
-		message = message.substring(EIGHT_BITS);
+	/**
+	 * This method runs on the delivery thread. It reports each queued
+	 * information frame and acknowledges each complete message. It sends RNR
+	 * when the queue reaches the high watermark and RR once it has drained
+	 * to the low watermark.
+	 */
+	private void deliverFrames() {
+		while (true) {
+			String frame;
+			try {
+				frame = inbound.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (inbound.size() >= HIGH_WATERMARK && receiverBusy.compareAndSet(false, true)) {
+				sendFrame(ControlFrames.frame(SERVER_ADDRESS, CONTROL_RNR, ""));
+			}
+			String info = Hdlc.breakFrame(frame).get("info");
+			int header = Segmenter.header(info);
+			boolean last;
+			if (header < 0 || Segmenter.kind(header) == Segmenter.KIND_TEXT)
+				last = showText(frame, info);
+			else
+				last = fileTransfer.receive(info);
+
+			// one ACK acknowledges the whole message
+			if (last && acknowledger.messageReceived())
+				sendAck();
+			frameReceived(CONTROL_INFO);
+
+			if (inbound.size() <= LOW_WATERMARK && receiverBusy.compareAndSet(true, false)) {
+				sendFrame(ControlFrames.frame(SERVER_ADDRESS, CONTROL_RR_POLL, ""));
+			}
+		}
+	}
 
-		fields.put("control", message.substring(0, EIGHT_BITS));
-		message = message.substring(EIGHT_BITS);
+	/**
+	 * This method shows the text of an I-frame. The segments of a long
+	 * message are shown as they arrive.
+	 *
+	 * @param frame
+	 *            The whole frame.
+	 * @param info
+	 *            The information field of the frame.
+	 * @return True if the frame ended its message.
+	 */
+	private boolean showText(String frame, String info) {
+		String text = reassembler.accept(info);
+		boolean last = text == null || reassembler.isComplete();
+		if (text == null) {
+			System.out.println("Frame out of sequence. Rest of the message discarded.\n");
+		} else if (reassembler.getSegments() == 1 && last) {
+			// the frame was split into window frames after bit stuffing
+			int stuffed = Hdlc.stuff(frame).length();
+			System.out.println("Message received in "
+					+ (stuffed + EIGHT_BITS - 2) / (EIGHT_BITS - 1)
+					+ " window frames.");
+			System.out.println("Message frame: " + frame);
+			System.out.println("Information field translated to:");
+			System.out.println(text + "\n");
+		} else {
+			// a long message is shown as its segments arrive
+			if (reassembler.getSegments() == 1)
+				System.out.println("Information fields translated to:");
+			System.out.print(text);
+			if (last)
+				System.out.println("\nMessage received in "
+						+ reassembler.getSegments() + " I-frames.\n");
+		}
+		return last;
+	}
 
-		fields.put("flag2", message.substring(message.length() - EIGHT_BITS));
-		message = message.substring(0, message.length() - EIGHT_BITS);
+	/**
+	 * This method starts capturing every message and frame to a file, or
+	 * stops capturing.
+	 *
+	 * @param path
+	 *            The file, or "off" to stop.
+	 */
+	private void setCapture(String path) {
+		FrameCapture old = getCapture();
+		setCapture((FrameCapture) null);
+		if (old != null) {
+			old.close();
+			System.out.println("Capture stopped, " + old + ".");
+		}
+		if (path.equals("off"))
+			return;
+		try {
+			setCapture(new FrameCapture(Paths.get(path)));
+			System.out.println("Capturing to " + path + ".");
+		} catch (IOException e) {
+			System.out.println("Could not capture to " + path + ": "
+					+ e.getMessage());
+		}
+	}
 
-		fields.put("FCS",
-				message.substring(message.length() - (2 * EIGHT_BITS)));
-		message = message.substring(0, message.length() - (2 * EIGHT_BITS));
+	private void captureFrame(boolean inbound, String frame) {
+		FrameCapture capture = getCapture();
+		if (capture != null)
+			capture.recordFrame(0, inbound, frame);
+	}
 
-		fields.put("info", message);
+	/**
+	 * This method is called when a message cannot be sent to the primary
+	 * station. With auto-reconnect on, the message is dropped and the
+	 * connection is dropped too, so the reader reconnects and resumes the
+	 * session; otherwise the client terminates.
+	 */
+	private void noServer() {
+		if (isAutoReconnect()) {
+			System.out
+					.println("Could not send message to server. Message dropped, reconnecting.");
+			dropConnection();
+			return;
+		}
+		System.out
+				.println("Could not send message to server. Terminating client.");
+		quit();
+	}
 
-		return fields;
+	/**
+	 * This method sends an ACK for the messages received that no frame sent
+	 * has acknowledged yet. Called when they are due, and by the timer once
+	 * the ACK delay runs out.
+	 */
+	private synchronized void sendAck() {
+		if (!isConnected() || !acknowledger.isPending())
+			return;
+		System.out.println("Sending ACK message.");
+		sendFrame(ControlFrames.frame(SERVER_ADDRESS, CONTROL_ACK, ""));
 	}
 
-	private String[] getWindowFrames(int windowSize, String wholeFrame) {
+	/**
+	 * This method delays the ACKs sent to the primary station, so that an
+	 * I-frame sent meanwhile can carry the acknowledgement in its N(R)
+	 * instead, and one ACK covers several messages.
+	 *
+	 * @param every
+	 *            The number of messages after which an ACK is sent
+	 *            anyway, from 1 to 7.
+	 * @param delay
+	 *            The time in ms an ACK may wait, or 0 to acknowledge each
+	 *            message at once.
+	 */
+	public void setDelayedAck(int every, long delay) {
+		acknowledger.setDelay(every, delay);
+	}
 
-		double size = (double) windowSize;
-		int numFrames = (int) Math.ceil(wholeFrame.length() / size);
+	/**
+	 * Returns the number of messages sent to the primary station on this
+	 * connection that it acknowledges: those to it, or broadcast.
+	 *
+	 * @return The number of messages, without the modulus of N(R).
+	 */
+	public long getMessagesSent() {
+		return acknowledger.getSent();
+	}
 
-		String[] windowFrames = new String[numFrames];
+	/**
+	 * Returns the number of messages the primary station has acknowledged
+	 * on this connection. Messages are acknowledged in the order they were
+	 * sent, so these are the first ones getMessagesSent() counts.
+	 *
+	 * @return The number of messages, without the modulus of N(R).
+	 */
+	public long getMessagesAcknowledged() {
+		return acknowledger.getAcknowledged();
+	}
 
-		for (int i = 0; i < numFrames - 1; i++) {
-			windowFrames[i] = wholeFrame.substring(0, windowSize);
-			wholeFrame = wholeFrame.substring(windowSize);
+	/**
+	 * This method sends a frame to the primary station, without echoing it
+	 * to the console. I-frames and ACKs carry the N(R) of the link.
+	 *
+	 * @param frame
+	 *            The whole frame.
+	 */
+	private synchronized void sendFrame(String frame) {
+		frame = acknowledger.stamp(frame);
+		captureFrame(false, frame);
+		try {
+			for (Message windowFrame : ControlFrames.windowFrames(frame)) {
+				sendToServer(windowFrame);
+			}
+			// the stream would otherwise keep every message it has sent
+			forceResetAfterSend();
+		} catch (IOException e) {
+			noServer();
 		}
-		windowFrames[numFrames - 1] = wholeFrame;
-		return windowFrames;
 	}
 
-	private void sendMessage(String address, String control, String info) {
-		String frame = FLAG + address + control + info + FCS + FLAG;
+	/**
+	 * This method sends a text message in as many I-frames as it needs,
+	 * compressed when sent to the primary station over a link that accepted
+	 * compression. A message that fits in one frame is echoed to the console
+	 * like any other frame; the frames of a longer one are sent quietly.
+	 *
+	 * @param address
+	 *            The destination address.
+	 * @param text
+	 *            The message to be sent.
+	 */
+	private synchronized void sendText(String address, String text) {
+		// only the primary station is known to have accepted compression
+		Compression linkCompression = address.equals(SERVER_ADDRESS) ? compression
+				: null;
+		int count = Segmenter.segment(text, linkCompression, info -> {
+			int header = Segmenter.header(info);
+			if (Segmenter.seq(header) == 0 && !Segmenter.isMore(header))
+				sendMessage(address, CONTROL_INFO, info);
+			else
+				sendFrame(FLAG + address + CONTROL_INFO + info + FCS + FLAG);
+		});
+		if (count > 1)
+			System.out.println("Message split into " + count + " I-frames.\n");
+	}
+
+	private synchronized void sendMessage(String address, String control, String info) {
+		String frame = control.equals(CONTROL_INFO) ? FLAG + address + control
+				+ info + FCS + FLAG : ControlFrames.frame(address, control, info);
+		frame = acknowledger.stamp(frame);
 		System.out.println("Message frame: " + frame);
+		captureFrame(false, frame);
 
-		String[] windowFrames = getWindowFrames(EIGHT_BITS - 1, frame);
+		Message[] windowFrames = ControlFrames.windowFrames(frame);
 		System.out.println("Window size " + (EIGHT_BITS - 1)
 				+ ", message split into " + windowFrames.length + " frames");
 
-		for (String s : windowFrames) {
+		for (Message windowFrame : windowFrames) {
 			try {
-				sendToServer(s);
-				System.out.println("Frame " + s + " sent.");
+				sendToServer(windowFrame);
+				System.out.println("Frame " + windowFrame.getPayload() + " sent.");
 			} catch (IOException e) {
+				// the rest of the frame is dropped with it
 				noServer();
+				return;
 			}
 		}
-		System.out.println("\n");
-	}
-
-	private String englishToBinary(String characters) {
-		byte[] bytes = characters.getBytes();
-		StringBuilder binary = new StringBuilder();
-		for (byte b : bytes) {
-			int val = b;
-			for (int i = 0; i < 8; i++) {
-				binary.append((val & 128) == 0 ? 0 : 1);
-				val <<= 1;
-			}
-		}
-		return binary + "";
-	}
-	
-	private static String binaryToASCII(String b) {
-		String result = "";
-		char nextCharacter;
-		
-		for (int i =0; i <= b.length()-8; i+= 8) {
-			nextCharacter = (char) Integer.parseInt(b.substring(i,i+8),2);
-			result += nextCharacter;
+		try {
+			forceResetAfterSend();
+		} catch (IOException e) {
+			noServer();
 		}
-		return result;
+		System.out.println("\n");
 	}
-
-}
\ No newline at end of file
+}
@@ -24,6 +24,16 @@ public class ClientConsole implements ChatIF {
 	 */
 	final public static String DEFAULT_HOST = "localhost";
 
+	/**
+	 * The number of messages from the primary station one ACK may cover.
+	 */
+	final public static int ACK_EVERY = 4;
+
+	/**
+	 * The time in ms an ACK waits for an I-frame to carry it instead.
+	 */
+	final public static int ACK_DELAY = 200;
+
 	/**
 	 * The instance of the client that created this ConsoleChat.
 	 */
@@ -41,6 +51,8 @@ public class ClientConsole implements ChatIF {
 	 */
 	public ClientConsole(String loginID, String host, int port) {
 		client = new Client(loginID, host, port, this);
+		client.setAutoReconnect(true);
+		client.setDelayedAck(ACK_EVERY, ACK_DELAY);
 	}
 
 	/**
@@ -0,0 +1,632 @@
+package lab6;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import link.Endpoint;
+import link.SocketTransport;
+import link.Transport;
+
+/**
+ * This class connects primary stations running on several nodes, so that
+ * stations spread over several machines share one address space. Each node
+ * runs one Server and one ClusterRouter, and all nodes are given the same
+ * list of cluster addresses; a node's number is its place in that list.
+ * Each node gives out station addresses from its own range, split as a
+ * ShardGroup does.
+ *
+ * The nodes keep a directory of every station: its login ID, its address
+ * and the node serving it. Node 0 is the leader and holds the directory;
+ * the other nodes send it the changes to their own stations, and it gives
+ * each change a version and sends it to every node, in order. A node that
+ * connects to the leader is sent the whole directory first, and sends it
+ * its own stations. When a node goes away the leader removes its stations.
+ * There is no election: while the leader is down the other nodes keep
+ * their last copy of the directory and still forward frames to each other.
+ *
+ * A login ID is refused by a node whose copy of the directory has it on
+ * another node. Two nodes may still accept the same login ID before either
+ * change reaches them, so the leader checks every change against the
+ * directory too: a login ID already served by another node is not
+ * published, and the node that accepted it last is told to refuse it,
+ * which has its station log in again under another login ID.
+ *
+ * Every node connects to every node numbered below it, and a frame for a
+ * station of another node is sent straight to that node. Frames and
+ * changes go through a bounded queue per node, written by a thread of its
+ * own, so a primary never waits on the network; a frame that finds the
+ * queue full is dropped and counted, and a node that misses a change is
+ * disconnected so that it is sent the whole directory again.
+ *
+ * @author Karen SRocha
+ */
+public class ClusterRouter implements FrameRouter {
+
+	/**
+	 * The number of frames and changes held for each node before dropping.
+	 */
+	final public static int QUEUE_SIZE = 4096;
+
+	/**
+	 * The time in ms to wait before connecting to a node again.
+	 */
+	final public static long RECONNECT_DELAY = 1000;
+
+	final private static String BROADCAST = "11111111";
+	final private static int ADDRESSES = 254;
+	final private static int LEADER = 0;
+
+	/**
+	 * The kinds of notice exchanged between nodes.
+	 */
+	private enum Kind {
+		/** The first notice on a connection, naming the node that opened it. */
+		HELLO,
+		/** The leader is about to send the whole directory. */
+		CLEAR,
+		/** A station was given an address, or released it. */
+		STATION,
+		/** A frame for a station of the receiving node. */
+		FRAME,
+		/** A login ID of the receiving node is served by another node. */
+		REFUSE
+	}
+
+	/**
+	 * A notice sent from one node to another.
+	 */
+	private static class Notice implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final Kind kind;
+		final int node;
+		final long version;
+		final String login;
+		final String address;
+		final String frame;
+
+		Notice(Kind kind, int node, long version, String login,
+				String address, String frame) {
+			this.kind = kind;
+			this.node = node;
+			this.version = version;
+			this.login = login;
+			this.address = address;
+			this.frame = frame;
+		}
+	}
+
+	/**
+	 * A station in the directory.
+	 */
+	private static class Station {
+		final String address;
+		final int node;
+
+		Station(String address, int node) {
+			this.address = address;
+			this.node = node;
+		}
+	}
+
+	/**
+	 * The connection to another node, with its queue and writer thread.
+	 */
+	private class Peer {
+		final int node;
+		final Endpoint endpoint;
+		final ArrayBlockingQueue<Notice> queue = new ArrayBlockingQueue<>(
+				QUEUE_SIZE);
+		final Thread writer;
+		volatile boolean closed = false;
+
+		Peer(int node, Endpoint endpoint) {
+			this.node = node;
+			this.endpoint = endpoint;
+			writer = new Thread(this::write, "Cluster node " + node
+					+ " writer");
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		boolean send(Notice notice) {
+			return !closed && queue.offer(notice);
+		}
+
+		void close() {
+			closed = true;
+			writer.interrupt();
+			try {
+				endpoint.close();
+			} catch (IOException e) {
+			}
+		}
+
+		private void write() {
+			try {
+				while (!closed) {
+					endpoint.send(queue.take());
+					// the notices are not kept for back references
+					endpoint.reset();
+				}
+			} catch (InterruptedException | IOException e) {
+				disconnected(this);
+			}
+		}
+	}
+
+	private final Server server;
+	private final int node;
+	private final String[] hosts;
+	private final int[] ports;
+	private Transport transport = SocketTransport.DEFAULT;
+
+	private final Peer[] peers;
+	private final Map<String, Station> directory = new HashMap<>();
+	private final Map<String, Integer> nodeOf = new HashMap<>();
+	private final Map<String, String> local = new HashMap<>();
+	private long version = 0;
+
+	private volatile boolean closed = false;
+	private Transport.Acceptor acceptor;
+	private final Thread refresher;
+	private final AtomicBoolean refreshPending = new AtomicBoolean();
+	private final ConcurrentLinkedQueue<String> refused = new ConcurrentLinkedQueue<>();
+
+	private final LongAdder forwarded = new LongAdder();
+	private final LongAdder received = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	/**
+	 * Constructs the router of one node and gives its primary its address
+	 * range and this router. Nothing is sent before start().
+	 *
+	 * @param server
+	 *            The primary of this node.
+	 * @param node
+	 *            The number of this node, 0 for the leader.
+	 * @param nodes
+	 *            The cluster address of every node, as "host:port", in the
+	 *            same order on every node; at most 254.
+	 */
+	public ClusterRouter(Server server, int node, String... nodes) {
+		if (nodes.length == 0 || nodes.length > ADDRESSES)
+			throw new IllegalArgumentException("Cannot split the addresses into "
+					+ nodes.length + " nodes");
+		if (node < 0 || node >= nodes.length)
+			throw new IllegalArgumentException("There is no node " + node);
+		this.server = server;
+		this.node = node;
+		hosts = new String[nodes.length];
+		ports = new int[nodes.length];
+		for (int i = 0; i < nodes.length; i++) {
+			int colon = nodes[i].lastIndexOf(':');
+			if (colon < 0)
+				throw new IllegalArgumentException("Bad cluster address "
+						+ nodes[i]);
+			hosts[i] = nodes[i].substring(0, colon);
+			ports[i] = Integer.parseInt(nodes[i].substring(colon + 1));
+		}
+		peers = new Peer[nodes.length];
+		refresher = new Thread(this::refresh, "Cluster node " + node
+				+ " refresher");
+		refresher.setDaemon(true);
+		server.setAddressRange(1 + node * ADDRESSES / nodes.length, (node + 1)
+				* ADDRESSES / nodes.length);
+		server.setFrameRouter(this);
+	}
+
+	/**
+	 * This method sets the transport the nodes connect over. It must be
+	 * called before start().
+	 *
+	 * @param transport
+	 *            The transport, the same on every node.
+	 */
+	public void setTransport(Transport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * This method starts listening for the nodes numbered above this one
+	 * and connecting to those numbered below it, again whenever a
+	 * connection is lost.
+	 *
+	 * @throws IOException
+	 *             If the cluster port of this node cannot be bound.
+	 */
+	public void start() throws IOException {
+		acceptor = transport.bind(ports[node], peers.length);
+		refresher.start();
+		Thread listener = new Thread(this::listen, "Cluster node " + node
+				+ " listener");
+		listener.setDaemon(true);
+		listener.start();
+		for (int i = 0; i < node; i++) {
+			final int target = i;
+			Thread connector = new Thread(() -> connect(target),
+					"Cluster node " + node + " to node " + target);
+			connector.setDaemon(true);
+			connector.start();
+		}
+	}
+
+	/**
+	 * This method disconnects this node from the others. The primary is
+	 * closed by the caller.
+	 */
+	public void close() {
+		closed = true;
+		if (acceptor != null)
+			acceptor.close();
+		refresher.interrupt();
+		synchronized (this) {
+			for (int i = 0; i < peers.length; i++) {
+				if (peers[i] != null)
+					peers[i].close();
+				peers[i] = null;
+			}
+		}
+	}
+
+	public boolean forward(Server from, String address, String frame) {
+		Notice notice = new Notice(Kind.FRAME, node, 0, null, address, frame);
+		if (address.equals(BROADCAST)) {
+			synchronized (this) {
+				for (Peer peer : peers) {
+					if (peer != null)
+						send(peer, notice);
+				}
+			}
+			return true;
+		}
+		Peer peer;
+		synchronized (this) {
+			Integer target = nodeOf.get(address);
+			if (target == null || target == node)
+				return false;
+			peer = peers[target];
+		}
+		if (peer == null)
+			dropped.increment();
+		else
+			send(peer, notice);
+		return true;
+	}
+
+	public synchronized boolean claim(Server from, String login) {
+		Station station = directory.get(login);
+		return station == null || station.node == node;
+	}
+
+	public void stationChanged(Server from, String login, String address) {
+		synchronized (this) {
+			if (address == null)
+				local.remove(login);
+			else
+				local.put(login, address);
+			if (node == LEADER) {
+				publish(login, address, node);
+			} else {
+				Station station = directory.get(login);
+				// a refused login ID stays with the node that has it
+				if (address != null || station == null || station.node == node)
+					apply(login, address, node);
+				Peer leader = peers[LEADER];
+				if (leader != null)
+					update(leader, new Notice(Kind.STATION, node, 0, login,
+							address, null));
+			}
+		}
+	}
+
+	public synchronized Map<String, String> getRemoteStations(Server to) {
+		Map<String, String> result = new HashMap<>();
+		for (Map.Entry<String, Station> entry : directory.entrySet()) {
+			if (entry.getValue().node != node)
+				result.put(entry.getKey(), entry.getValue().address);
+		}
+		return result;
+	}
+
+	/**
+	 * @return A one line summary of the directory and the frames exchanged
+	 *         with the other nodes.
+	 */
+	public synchronized String toString() {
+		int connected = 0;
+		for (Peer peer : peers) {
+			if (peer != null)
+				connected++;
+		}
+		return String.format("node %d of %d, %d connected, %d stations"
+				+ " (version %d), %d frames forwarded, %d received,"
+				+ " %d dropped", node, peers.length, connected,
+				directory.size(), version, forwarded.sum(), received.sum(),
+				dropped.sum());
+	}
+
+	/**
+	 * This method connects to a node numbered below this one, and reads
+	 * from it until the connection is lost, over and over.
+	 */
+	private void connect(int target) {
+		while (!closed) {
+			try {
+				Peer peer = new Peer(target, transport.connect(hosts[target],
+						ports[target]));
+				synchronized (this) {
+					if (closed) {
+						peer.close();
+						return;
+					}
+					register(peer);
+					update(peer, new Notice(Kind.HELLO, node, 0, null, null, null));
+					if (target == LEADER) {
+						for (Map.Entry<String, String> entry : local.entrySet()) {
+							update(peer, new Notice(Kind.STATION, node, 0,
+									entry.getKey(), entry.getValue(), null));
+						}
+					}
+				}
+				read(peer);
+			} catch (IOException e) {
+				// the node is not up yet
+			}
+			try {
+				Thread.sleep(RECONNECT_DELAY);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * This method accepts the connections of the nodes numbered above this
+	 * one, each read on a thread of its own.
+	 */
+	private void listen() {
+		while (!closed) {
+			final Endpoint endpoint;
+			try {
+				endpoint = acceptor.accept();
+			} catch (IOException e) {
+				return;
+			}
+			Thread reader = new Thread(() -> {
+				try {
+					Notice hello = (Notice) endpoint.receive();
+					if (hello.kind != Kind.HELLO || hello.node <= node
+							|| hello.node >= peers.length)
+						throw new IOException("Not a node of this cluster");
+					Peer peer = new Peer(hello.node, endpoint);
+					synchronized (this) {
+						if (closed) {
+							peer.close();
+							return;
+						}
+						register(peer);
+						if (node == LEADER) {
+							// the whole directory, so the node starts afresh
+							update(peer, new Notice(Kind.CLEAR, node, version,
+									null, null, null));
+							for (Map.Entry<String, Station> entry : directory
+									.entrySet()) {
+								update(peer, new Notice(Kind.STATION,
+										entry.getValue().node, version,
+										entry.getKey(),
+										entry.getValue().address, null));
+							}
+						}
+					}
+					read(peer);
+				} catch (Exception e) {
+					try {
+						endpoint.close();
+					} catch (IOException ex) {
+					}
+				}
+			}, "Cluster node " + node + " reader");
+			reader.setDaemon(true);
+			reader.start();
+		}
+	}
+
+	/**
+	 * This method handles the notices sent by a node until its connection
+	 * is lost.
+	 */
+	private void read(Peer peer) {
+		try {
+			while (!peer.closed) {
+				Notice notice = (Notice) peer.endpoint.receive();
+				switch (notice.kind) {
+				case FRAME:
+					received.increment();
+					server.receiveForwarded(notice.address, notice.frame);
+					break;
+				case STATION:
+					synchronized (this) {
+						if (node == LEADER)
+							// a node only speaks for its own stations
+							publish(notice.login, notice.address, peer.node);
+						else {
+							apply(notice.login, notice.address, notice.node);
+							version = notice.version;
+						}
+					}
+					scheduleRefresh();
+					break;
+				case REFUSE:
+					synchronized (this) {
+						apply(notice.login, notice.address, notice.node);
+					}
+					refuse(notice.login);
+					scheduleRefresh();
+					break;
+				case CLEAR:
+					synchronized (this) {
+						directory.clear();
+						nodeOf.clear();
+						version = notice.version;
+						for (Map.Entry<String, String> entry : local.entrySet()) {
+							apply(entry.getKey(), entry.getValue(), node);
+						}
+					}
+					scheduleRefresh();
+					break;
+				default:
+					break;
+				}
+			}
+		} catch (Exception e) {
+			// lost; handled below
+		}
+		disconnected(peer);
+	}
+
+	/**
+	 * This method forgets a lost connection. The leader removes the
+	 * stations of the node it led to.
+	 */
+	private void disconnected(Peer peer) {
+		peer.close();
+		synchronized (this) {
+			if (peers[peer.node] != peer)
+				return;
+			peers[peer.node] = null;
+			if (node != LEADER || closed)
+				return;
+			List<String> gone = new ArrayList<>();
+			for (Map.Entry<String, Station> entry : directory.entrySet()) {
+				if (entry.getValue().node == peer.node)
+					gone.add(entry.getKey());
+			}
+			for (String login : gone) {
+				publish(login, null, peer.node);
+			}
+			if (gone.isEmpty())
+				return;
+		}
+		scheduleRefresh();
+	}
+
+	/**
+	 * This method makes a connection the one used for its node, closing any
+	 * earlier one. Called with the lock held.
+	 */
+	private void register(Peer peer) {
+		Peer old = peers[peer.node];
+		peers[peer.node] = peer;
+		if (old != null)
+			old.close();
+	}
+
+	/**
+	 * This method applies a change to the directory on the leader and sends
+	 * it to every node. Called with the lock held.
+	 */
+	private void publish(String login, String address, int owner) {
+		Station station = directory.get(login);
+		// a late release from a node the station has since left
+		if (address == null && (station == null || station.node != owner))
+			return;
+		// a login ID another node had first
+		if (address != null && station != null && station.node != owner) {
+			if (owner == node)
+				refuse(login);
+			else if (peers[owner] != null)
+				update(peers[owner], new Notice(Kind.REFUSE, station.node,
+						version, login, station.address, null));
+			return;
+		}
+		apply(login, address, owner);
+		version++;
+		Notice notice = new Notice(Kind.STATION, owner, version, login,
+				address, null);
+		for (Peer peer : peers) {
+			if (peer != null)
+				update(peer, notice);
+		}
+	}
+
+	/**
+	 * This method applies a change to this node's copy of the directory.
+	 * Called with the lock held.
+	 */
+	private void apply(String login, String address, int owner) {
+		Station old = directory.remove(login);
+		if (old != null)
+			nodeOf.remove(old.address, old.node);
+		if (address != null) {
+			directory.put(login, new Station(address, owner));
+			nodeOf.put(address, owner);
+		}
+	}
+
+	/**
+	 * This method queues a change for a node. A node that misses one is
+	 * disconnected, so that it is sent the whole directory again.
+	 */
+	private void update(Peer peer, Notice notice) {
+		if (!peer.send(notice))
+			peer.close();
+	}
+
+	private void send(Peer peer, Notice notice) {
+		if (peer.send(notice))
+			forwarded.increment();
+		else
+			dropped.increment();
+	}
+
+	/**
+	 * This method has the primary take back a login ID another node serves,
+	 * on the refresher thread.
+	 */
+	private void refuse(String login) {
+		refused.add(login);
+		synchronized (refreshPending) {
+			refreshPending.notify();
+		}
+	}
+
+	/**
+	 * This method has the primary send its stations the list of every
+	 * station, once for any number of changes, on the refresher thread.
+	 */
+	private void scheduleRefresh() {
+		if (refreshPending.compareAndSet(false, true)) {
+			synchronized (refreshPending) {
+				refreshPending.notify();
+			}
+		}
+	}
+
+	private void refresh() {
+		try {
+			while (!closed) {
+				synchronized (refreshPending) {
+					while (!refreshPending.get() && refused.isEmpty())
+						refreshPending.wait();
+				}
+				String login;
+				while ((login = refused.poll()) != null) {
+					server.refuseLogin(login);
+				}
+				if (refreshPending.getAndSet(false))
+					server.remoteStationsChanged();
+			}
+		} catch (InterruptedException e) {
+		}
+	}
+}
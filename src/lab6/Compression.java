@@ -0,0 +1,158 @@
+package lab6;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class compresses the payload of messages sent over one link and keeps
+ * the compression ratio of the link. Compression is negotiated when the link
+ * is set up: the primary station lists the methods it supports in the
+ * information field of SNRM and the secondary station answers with the ones
+ * it accepts in the information field of UA. Payloads are deflated with a
+ * preset dictionary of words common in the text stations exchange, so even
+ * short messages shrink. A payload that does not get smaller is sent as it
+ * is.
+ *
+ * @author Karen SRocha
+ */
+public class Compression {
+
+	/**
+	 * Deflate with the preset dictionary.
+	 */
+	final public static int DEFLATE = 0x01;
+
+	/**
+	 * The methods this implementation supports.
+	 */
+	final public static int SUPPORTED = DEFLATE;
+
+	/**
+	 * The preset dictionary. Strings that appear in it cost a few bits the
+	 * first time they appear in a message instead of their full length.
+	 * Changing it breaks compatibility with stations using the old one.
+	 */
+	final private static byte[] DICTIONARY = ("station address message frame "
+			+ "status OK ERROR WARNING ready busy online offline connected "
+			+ "disconnected temperature humidity pressure voltage current "
+			+ "power level value time date seconds minutes hours sensor "
+			+ "reading alarm threshold the and of to in is for with from "
+			+ "0123456789 0.0 1.0 10 100 1000 , : ; = { } [ ] \" ")
+			.getBytes(BitCodec.DEFAULT_CHARSET);
+
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private long bytesIn = 0;
+	private long bytesOut = 0;
+	private long messages = 0;
+	private long compressed = 0;
+
+	/**
+	 * This method returns the information field listing methods, as sent in
+	 * SNRM and UA.
+	 *
+	 * @param methods
+	 *            The methods, or 0 for none.
+	 * @return The bits of the field, empty for no methods.
+	 */
+	public static String toBits(int methods) {
+		if (methods == 0)
+			return "";
+		char[] bits = new char[8];
+		BitCodec.bytesToBits(new byte[] { (byte) methods }, 0, 1, bits, 0);
+		return new String(bits);
+	}
+
+	/**
+	 * This method reads the methods listed in the information field of SNRM
+	 * or UA.
+	 *
+	 * @param info
+	 *            The bits of the field.
+	 * @return The methods, or 0 for none.
+	 */
+	public static int fromBits(String info) {
+		int methods = Segmenter.header(info);
+		return methods < 0 ? 0 : methods;
+	}
+
+	/**
+	 * This method compresses a payload into a buffer given by the caller.
+	 *
+	 * @param src
+	 *            The payload, from its position to its limit. The position
+	 *            is left where it was.
+	 * @param dst
+	 *            A cleared buffer with room for the whole payload. On
+	 *            success it holds the compressed payload, ready to be read.
+	 * @return True if the payload was compressed, false if compressing does
+	 *         not make it smaller.
+	 */
+	public synchronized boolean compress(ByteBuffer src, ByteBuffer dst) {
+		int start = src.position();
+		int len = src.remaining();
+		dst.limit(len);
+		deflater.reset();
+		deflater.setDictionary(DICTIONARY);
+		deflater.setInput(src);
+		deflater.finish();
+		while (!deflater.finished() && dst.hasRemaining()) {
+			deflater.deflate(dst);
+		}
+		src.position(start);
+		messages++;
+		bytesIn += len;
+		if (!deflater.finished() || dst.position() >= len) {
+			bytesOut += len;
+			return false;
+		}
+		compressed++;
+		bytesOut += dst.position();
+		dst.flip();
+		return true;
+	}
+
+	/**
+	 * This method inflates as much as it can into dst, supplying the preset
+	 * dictionary when the stream asks for it.
+	 *
+	 * @param inflater
+	 *            An Inflater with input set.
+	 * @param dst
+	 *            The destination.
+	 * @param off
+	 *            Where the first byte is written.
+	 * @param len
+	 *            The room in dst.
+	 * @return The number of bytes written.
+	 * @throws DataFormatException
+	 *             If the input is not a valid compressed payload.
+	 */
+	public static int inflate(Inflater inflater, byte[] dst, int off, int len)
+			throws DataFormatException {
+		int n = inflater.inflate(dst, off, len);
+		if (n == 0 && inflater.needsDictionary()) {
+			inflater.setDictionary(DICTIONARY);
+			n = inflater.inflate(dst, off, len);
+		}
+		return n;
+	}
+
+	/**
+	 * @return The compressed size over the original size of everything sent
+	 *         on the link, 1.0 before anything is sent.
+	 */
+	public synchronized double getRatio() {
+		return bytesIn == 0 ? 1.0 : (double) bytesOut / bytesIn;
+	}
+
+	/**
+	 * @return A one line summary of the compression on the link.
+	 */
+	public synchronized String toString() {
+		return String.format(
+				"deflate: %d of %d messages compressed, %d -> %d bytes, ratio %.2f",
+				compressed, messages, bytesIn, bytesOut, getRatio());
+	}
+}
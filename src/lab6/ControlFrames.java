@@ -0,0 +1,125 @@
+package lab6;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class keeps the supervisory and unnumbered frames (SNRM, UA, ACK, RR,
+ * RNR) ready to send. They differ only by address, and at most by a short
+ * information field, so each one is built, bit stuffed and split into window
+ * frames once, and every later send reuses the same immutable messages. The
+ * frame strings are kept too, so a send neither builds the frame nor hashes
+ * a new string to find it.
+ *
+ * Information frames are never kept, since their contents differ every
+ * time.
+ *
+ * @author Karen SRocha
+ */
+final class ControlFrames {
+
+	final private static String FLAG = Hdlc.FLAG;
+	final private static String FCS = "0000000000000000";
+	final private static int EIGHT_BITS = Hdlc.EIGHT_BITS;
+
+	/**
+	 * The most frame strings kept, and the most frames kept split into window
+	 * frames, so frames with odd information fields forwarded for stations
+	 * cannot grow either cache without bound. Frames past the limit are built
+	 * anew each time.
+	 */
+	final private static int MAX_FRAMES = 4096;
+
+	// frames by address, then by control and information fields
+	private static final ConcurrentHashMap<String, ConcurrentHashMap<String, String>> frames = new ConcurrentHashMap<>();
+	// the number of frame strings kept
+	private static final AtomicInteger frameCount = new AtomicInteger();
+	private static final ConcurrentHashMap<String, Message[]> windowFrames = new ConcurrentHashMap<>();
+	// the ACK for each N(R), by address
+	private static final ConcurrentHashMap<String, String[]> acks = new ConcurrentHashMap<>();
+
+	private ControlFrames() {
+	}
+
+	/**
+	 * This method returns a supervisory or unnumbered frame.
+	 *
+	 * @param address
+	 *            The address field.
+	 * @param control
+	 *            The control field.
+	 * @param info
+	 *            The information field, usually empty.
+	 * @return The whole frame, the same string every time unless the cache
+	 *         is full.
+	 */
+	static String frame(String address, String control, String info) {
+		ConcurrentHashMap<String, String> byControl = frames.computeIfAbsent(
+				address, key -> new ConcurrentHashMap<>());
+		String key = info.isEmpty() ? control : control + info;
+		String frame = byControl.get(key);
+		if (frame == null) {
+			frame = FLAG + address + control + info + FCS + FLAG;
+			if (frameCount.get() < MAX_FRAMES) {
+				String old = byControl.putIfAbsent(key, frame);
+				if (old != null)
+					frame = old;
+				else
+					frameCount.incrementAndGet();
+			}
+		}
+		return frame;
+	}
+
+	/**
+	 * This method returns the ACK frames to an address, one for each N(R), so
+	 * stamping an ACK only picks one out.
+	 *
+	 * @param address
+	 *            The address field.
+	 * @return The ACK frames, indexed by N(R); the array must not be changed.
+	 */
+	static String[] acks(String address) {
+		return acks.computeIfAbsent(address, key -> {
+			String[] frames = new String[Acknowledger.MODULUS];
+			for (int count = 0; count < frames.length; count++) {
+				frames[count] = frame(key, Acknowledger.ackControl(count), "");
+			}
+			return frames;
+		});
+	}
+
+	/**
+	 * This method returns the window frames to send a frame in, each a
+	 * FRAGMENT message. Those of supervisory and unnumbered frames are built
+	 * once; the array must not be changed.
+	 *
+	 * @param frame
+	 *            The whole frame, before bit stuffing.
+	 * @return The window frames, in sending order.
+	 */
+	static Message[] windowFrames(String frame) {
+		// bit 0 of the control field is 0 only for information frames
+		if (frame.length() <= 2 * EIGHT_BITS || frame.charAt(2 * EIGHT_BITS) == '0')
+			return encode(frame);
+		Message[] messages = windowFrames.get(frame);
+		if (messages == null) {
+			messages = encode(frame);
+			if (windowFrames.size() < MAX_FRAMES) {
+				Message[] old = windowFrames.putIfAbsent(frame, messages);
+				if (old != null)
+					messages = old;
+			}
+		}
+		return messages;
+	}
+
+	private static Message[] encode(String frame) {
+		String[] bits = Hdlc.getWindowFrames(EIGHT_BITS - 1, Hdlc.stuff(frame));
+		Message[] messages = new Message[bits.length];
+		for (int i = 0; i < bits.length; i++) {
+			messages[i] = new Message(Message.Type.FRAGMENT, bits[i]);
+		}
+		return messages;
+	}
+}
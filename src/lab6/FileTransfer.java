@@ -0,0 +1,275 @@
+package lab6;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * This class sends and receives files over one link, on top of the segment
+ * layer. The sender offers a file with a FILE_START segment holding its size
+ * and name. The receiver answers with FILE_RESUME, holding the number of
+ * bytes it already has from an earlier, interrupted transfer. The sender
+ * then maps the rest of the file and frames it straight from the mapped
+ * buffer into FILE_DATA segments, and the receiver writes each segment to a
+ * FileChannel. Data is kept in a ".part" file until the last segment
+ * arrives, so a transfer cut short by a lost link resumes where it stopped
+ * the next time the file is sent.
+ *
+ * The data of a file is sent from its own thread, so a long transfer never
+ * holds up the thread that handles the link.
+ *
+ * @author Karen SRocha
+ */
+public class FileTransfer {
+
+	/**
+	 * The largest part of a file mapped at once. A multiple of the segment
+	 * size, so only the last segment of a file is short.
+	 */
+	final private static long MAP_WINDOW = Segmenter.SEGMENT_BYTES * (1L << 18);
+
+	final private static String PART = ".part";
+
+	private final Path directory;
+	private final Consumer<String> peer;
+
+	/**
+	 * Files waiting to be offered. The other station receives one file at a
+	 * time, so the next file is offered once the previous one has been sent.
+	 */
+	private final ArrayDeque<Path> waiting = new ArrayDeque<>();
+
+	/**
+	 * Files offered to the other station, by name, waiting for FILE_RESUME.
+	 */
+	private final Map<String, Path> offered = new ConcurrentHashMap<>();
+	private boolean sending = false;
+
+	// the file being received; only touched by the thread handling the link
+	private FileChannel incoming;
+	private String incomingName;
+	private long incomingSize;
+	private int expected;
+	private final byte[] bytes = new byte[Segmenter.INFO_BYTES];
+
+	/**
+	 * Constructs the file transfer of a link.
+	 *
+	 * @param directory
+	 *            Where received files are saved.
+	 * @param peer
+	 *            Sends the information field of a segment to the other
+	 *            station in an I-frame.
+	 */
+	public FileTransfer(Path directory, Consumer<String> peer) {
+		this.directory = directory;
+		this.peer = peer;
+	}
+
+	/**
+	 * This method offers a file to the other station. The data is sent once
+	 * the other station answers. If another file is being sent, the offer
+	 * waits for it to finish.
+	 *
+	 * @param file
+	 *            The file to be sent.
+	 * @throws IOException
+	 *             If the file cannot be read or its name is too long.
+	 */
+	public void offer(Path file) throws IOException {
+		String name = file.getFileName().toString();
+		byte[] start = (Files.size(file) + " " + name)
+				.getBytes(BitCodec.DEFAULT_CHARSET);
+		if (start.length > Segmenter.SEGMENT_BYTES)
+			throw new IOException("File name too long: " + name);
+		synchronized (waiting) {
+			waiting.add(file);
+			if (!sending)
+				offerNext();
+		}
+	}
+
+	// called with the lock on waiting held
+	private void offerNext() {
+		Path file = waiting.poll();
+		sending = file != null;
+		if (file == null)
+			return;
+		String name = file.getFileName().toString();
+		try {
+			long size = Files.size(file);
+			byte[] start = (size + " " + name)
+					.getBytes(BitCodec.DEFAULT_CHARSET);
+			offered.put(name, file);
+			Segmenter.segment(start, 0, start.length,
+					Segmenter.KIND_FILE_START, peer);
+			System.out.println("Offered file " + name + " (" + size
+					+ " bytes).");
+		} catch (IOException e) {
+			System.out.println("Could not send file " + name + ": "
+					+ e.getMessage());
+			offerNext();
+		}
+	}
+
+	/**
+	 * This method handles a segment of a file transfer.
+	 *
+	 * @param info
+	 *            The information field of the segment.
+	 * @return True if the segment completed a file being received.
+	 */
+	public boolean receive(String info) {
+		int header = Segmenter.header(info);
+		try {
+			switch (Segmenter.kind(header)) {
+			case Segmenter.KIND_FILE_START:
+				start(text(info));
+				return false;
+			case Segmenter.KIND_FILE_DATA:
+				return data(header, info);
+			case Segmenter.KIND_FILE_RESUME:
+				resume(text(info));
+				return false;
+			default:
+				return false;
+			}
+		} catch (IOException | RuntimeException e) {
+			System.out.println("File transfer failed: " + e.getMessage());
+			abort();
+			return false;
+		}
+	}
+
+	/**
+	 * This method closes the file being received, if any. What was received
+	 * so far is kept for a later resume.
+	 */
+	public void abort() {
+		if (incoming != null) {
+			try {
+				incoming.close();
+			} catch (IOException e) {
+			}
+			incoming = null;
+		}
+	}
+
+	private void start(String offer) throws IOException {
+		abort();
+		int space = offer.indexOf(' ');
+		incomingSize = Long.parseLong(offer.substring(0, space));
+		// only the last name element, so a station cannot write elsewhere
+		incomingName = Path.of(offer.substring(space + 1)).getFileName()
+				.toString();
+		Files.createDirectories(directory);
+		incoming = FileChannel.open(directory.resolve(incomingName + PART),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		long offset = incoming.size();
+		if (offset > incomingSize) {
+			incoming.truncate(0);
+			offset = 0;
+		}
+		incoming.position(offset);
+		expected = 0;
+		System.out.println("Receiving file " + incomingName + " ("
+				+ incomingSize + " bytes) from offset " + offset + ".");
+
+		byte[] reply = (offset + " " + incomingName)
+				.getBytes(BitCodec.DEFAULT_CHARSET);
+		Segmenter.segment(reply, 0, reply.length,
+				Segmenter.KIND_FILE_RESUME, peer);
+	}
+
+	private boolean data(int header, String info) throws IOException {
+		if (incoming == null)
+			return false;
+		if (Segmenter.seq(header) != expected) {
+			System.out.println("File data out of sequence. Transfer of "
+					+ incomingName + " stopped; send it again to resume.");
+			abort();
+			return false;
+		}
+		expected = Segmenter.nextSeq(expected);
+		int length = BitCodec.bitsToBytes(info, 8, info.length() - 8, bytes, 0);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+		while (buffer.hasRemaining()) {
+			incoming.write(buffer);
+		}
+		if (Segmenter.isMore(header))
+			return false;
+
+		long size = incoming.position();
+		incoming.force(true);
+		abort();
+		Path part = directory.resolve(incomingName + PART);
+		Path file = directory.resolve(incomingName);
+		if (size != incomingSize) {
+			System.out.println("File " + incomingName + " ended at " + size
+					+ " of " + incomingSize + " bytes; send it again to resume.");
+			return false;
+		}
+		Files.move(part, file, StandardCopyOption.REPLACE_EXISTING);
+		System.out.println("File " + incomingName + " received (" + size
+				+ " bytes), saved to " + file + ".");
+		return true;
+	}
+
+	private void resume(String answer) throws IOException {
+		int space = answer.indexOf(' ');
+		long offset = Long.parseLong(answer.substring(0, space));
+		String name = answer.substring(space + 1);
+		Path file = offered.remove(name);
+		if (file == null) {
+			System.out.println("File " + name + " was not offered.");
+			return;
+		}
+		Thread sender = new Thread(() -> send(file, name, offset), "File "
+				+ name);
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	/**
+	 * This method sends a file from offset on, one mapped window at a time.
+	 */
+	private void send(Path file, String name, long offset) {
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			long size = channel.size();
+			long position = Math.min(offset, size);
+			System.out.println("Sending file " + name + " from offset "
+					+ position + ".");
+			int seq = 0;
+			do {
+				long window = Math.min(MAP_WINDOW, size - position);
+				MappedByteBuffer map = channel.map(
+						FileChannel.MapMode.READ_ONLY, position, window);
+				position += window;
+				seq = Segmenter.segment(map, Segmenter.KIND_FILE_DATA, seq,
+						position == size, peer);
+			} while (position < size);
+			System.out.println("File " + name + " sent.");
+		} catch (IOException | RuntimeException e) {
+			System.out.println("Could not send file " + name + ": "
+					+ e.getMessage());
+		}
+		synchronized (waiting) {
+			offerNext();
+		}
+	}
+
+	private String text(String info) {
+		int length = BitCodec.bitsToBytes(info, 8, info.length() - 8, bytes, 0);
+		return new String(bytes, 0, length, BitCodec.DEFAULT_CHARSET);
+	}
+}
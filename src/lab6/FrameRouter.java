@@ -0,0 +1,71 @@
+package lab6;
+
+import java.util.Map;
+
+/**
+ * This interface connects a primary station to the other primaries that
+ * share the station address space with it. A primary hands the router the
+ * frames its stations send to addresses it does not serve, and tells it
+ * which stations it serves, so that every primary can list all of them.
+ *
+ * The router is called with the lock of the calling Server held. It must
+ * never call back into another Server from that thread, or two primaries
+ * forwarding to each other could deadlock: frames are handed over on a
+ * thread of the router, through receiveForwarded().
+ *
+ * @author Karen SRocha
+ */
+public interface FrameRouter {
+
+	/**
+	 * This method forwards a frame sent by a station to an address that is
+	 * not connected to its primary.
+	 *
+	 * @param from
+	 *            The primary the frame was sent to.
+	 * @param address
+	 *            The destination address, or the broadcast address.
+	 * @param frame
+	 *            The whole frame.
+	 * @return True if the address is served by another primary, or is the
+	 *         broadcast address, and the frame was taken; false if the
+	 *         sending primary should handle it.
+	 */
+	boolean forward(Server from, String address, String frame);
+
+	/**
+	 * This method claims a login ID for a station logging in to a primary, so
+	 * that no two primaries give out the same login ID. The claim is kept
+	 * while the station has its address, and given up by stationChanged()
+	 * with no address.
+	 *
+	 * @param from
+	 *            The primary the station is logging in to.
+	 * @param login
+	 *            The login ID of the station.
+	 * @return True if no other primary serves a station by that login ID.
+	 */
+	boolean claim(Server from, String login);
+
+	/**
+	 * This method records that a primary gave a station an address, or
+	 * released it.
+	 *
+	 * @param from
+	 *            The primary.
+	 * @param login
+	 *            The login ID of the station.
+	 * @param address
+	 *            Its address, or null once released.
+	 */
+	void stationChanged(Server from, String login, String address);
+
+	/**
+	 * This method returns the stations served by the other primaries.
+	 *
+	 * @param to
+	 *            The primary asking.
+	 * @return The addresses of those stations, by login ID.
+	 */
+	Map<String, String> getRemoteStations(Server to);
+}
@@ -0,0 +1,207 @@
+package lab6;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class groups the frame and conversion helpers shared by the primary
+ * (Server) and secondary (Client) stations. Frames travel as strings of '0'
+ * and '1' characters.
+ *
+ * @author Karen SRocha
+ */
+public final class Hdlc {
+
+	final static int EIGHT_BITS = 8;
+	final static String FLAG = "01111110";
+
+	private Hdlc() {
+	}
+
+	/**
+	 * Characters allowed in a binary message, indexed by character value.
+	 */
+	final private static boolean[] BINARY_CHARACTERS = new boolean[128];
+
+	static {
+		BINARY_CHARACTERS['0'] = true;
+		BINARY_CHARACTERS['1'] = true;
+		BINARY_CHARACTERS['+'] = true;
+		BINARY_CHARACTERS['-'] = true;
+	}
+
+	/**
+	 * This method tests if a string is an binary message, made only of '0',
+	 * '1', '+' and '-' characters, such as a window frame or a station
+	 * address. It takes a single pass over the characters, without
+	 * allocating.
+	 *
+	 * @param message
+	 *            The message to be tested.
+	 * @return True if it is and false if it is not.
+	 */
+	public static boolean isBinary(String message) {
+		int length = message.length();
+		if (length == 0)
+			return false;
+		for (int i = 0; i < length; i++) {
+			char c = message.charAt(i);
+			if (c >= 128 || !BINARY_CHARACTERS[c])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * This method tests if a frame starts and ends with the HDLC flag.
+	 *
+	 * @param message
+	 *            The frame to be tested.
+	 * @return True if both flags are in place and false if they are not.
+	 */
+	public static boolean isFlagOK(CharSequence message) {
+		int end = message.length() - EIGHT_BITS;
+		if (end < 0)
+			return false;
+		for (int i = 0; i < EIGHT_BITS; i++) {
+			if (message.charAt(i) != FLAG.charAt(i)
+					|| message.charAt(end + i) != FLAG.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * This method breaks a frame into its fields: flag1, address, control,
+	 * info, FCS and flag2.
+	 *
+	 * @param message
+	 *            The whole frame.
+	 * @return A map from field name to field bits.
+	 */
+	public static Map<String, String> breakFrame(String message) {
+		Map<String, String> fields = new HashMap<>();
+
+		fields.put("flag1", message.substring(0, EIGHT_BITS));
+		message = message.substring(EIGHT_BITS);
+
+		fields.put("address", message.substring(0, EIGHT_BITS));
+		message = message.substring(EIGHT_BITS);
+
+		fields.put("control", message.substring(0, EIGHT_BITS));
+		message = message.substring(EIGHT_BITS);
+
+		fields.put("flag2", message.substring(message.length() - EIGHT_BITS));
+		message = message.substring(0, message.length() - EIGHT_BITS);
+
+		fields.put("FCS",
+				message.substring(message.length() - (2 * EIGHT_BITS)));
+		message = message.substring(0, message.length() - (2 * EIGHT_BITS));
+
+		fields.put("info", message);
+
+		return fields;
+	}
+
+	/**
+	 * This method turns a frame into the bits put on the line. A 0 is
+	 * inserted after every five 1s between the flags, so the flag can only
+	 * appear at the ends of the frame, whatever the frame carries.
+	 *
+	 * @param frame
+	 *            The whole frame, with both flags.
+	 * @return The frame with its fields bit stuffed.
+	 */
+	public static String stuff(String frame) {
+		int end = frame.length() - EIGHT_BITS;
+		StringBuilder line = new StringBuilder(frame.length() + end / 5);
+		line.append(frame, 0, EIGHT_BITS);
+		int ones = 0;
+		for (int i = EIGHT_BITS; i < end; i++) {
+			char c = frame.charAt(i);
+			line.append(c);
+			if (c != '1') {
+				ones = 0;
+			} else if (++ones == 5) {
+				line.append('0');
+				ones = 0;
+			}
+		}
+		line.append(frame, end, frame.length());
+		return line.toString();
+	}
+
+	/**
+	 * This method removes the bits inserted by stuff().
+	 *
+	 * @param line
+	 *            The frame as received from the line, with both flags.
+	 * @return The frame with its fields as they were sent.
+	 */
+	public static String unstuff(CharSequence line) {
+		int end = line.length() - EIGHT_BITS;
+		StringBuilder frame = new StringBuilder(line.length());
+		frame.append(line, 0, EIGHT_BITS);
+		int ones = 0;
+		for (int i = EIGHT_BITS; i < end; i++) {
+			char c = line.charAt(i);
+			if (ones == 5) {
+				// the stuffed 0
+				ones = 0;
+				continue;
+			}
+			frame.append(c);
+			ones = c == '1' ? ones + 1 : 0;
+		}
+		frame.append(line, end, line.length());
+		return frame.toString();
+	}
+
+	/**
+	 * This method splits a frame into window frames of at most windowSize
+	 * bits each.
+	 *
+	 * @param windowSize
+	 *            The number of bits per window frame.
+	 * @param wholeFrame
+	 *            The frame to be split.
+	 * @return The window frames in sending order.
+	 */
+	public static String[] getWindowFrames(int windowSize, String wholeFrame) {
+
+		double size = (double) windowSize;
+		int numFrames = (int) Math.ceil(wholeFrame.length() / size);
+
+		String[] windowFrames = new String[numFrames];
+
+		for (int i = 0; i < numFrames - 1; i++) {
+			windowFrames[i] = wholeFrame.substring(0, windowSize);
+			wholeFrame = wholeFrame.substring(windowSize);
+		}
+		windowFrames[numFrames - 1] = wholeFrame;
+		return windowFrames;
+	}
+
+	/**
+	 * This method converts a text into its binary representation, eight bits
+	 * per UTF-8 byte.
+	 *
+	 * @param characters
+	 *            The text to be converted.
+	 * @return The bits of the text.
+	 */
+	public static String englishToBinary(String characters) {
+		return BitCodec.toBits(characters);
+	}
+
+	/**
+	 * This method converts bits back into text, decoding them as UTF-8.
+	 *
+	 * @param b
+	 *            The bits to be converted.
+	 * @return The text.
+	 */
+	public static String binaryToASCII(String b) {
+		return BitCodec.fromBits(b);
+	}
+}
@@ -0,0 +1,277 @@
+package lab6;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class is an append-only log of records, kept in memory-mapped segment
+ * files in a directory of its own. Each record is written as its length, an
+ * int, followed by its bytes; the length is written last, so a record cut
+ * short by a crash reads as the end of the log. A record is found by its
+ * position, a long that only ever grows: the name of each segment file is the
+ * position of its first byte. Records are read back in place from the mapped
+ * segments, so a long log is never loaded onto the heap. Once the records up
+ * to a position are no longer needed the log is committed up to it, and
+ * segments holding nothing past the committed position are deleted. The
+ * committed position is kept in a "head" file so it survives restarts.
+ *
+ * @author Karen SRocha
+ */
+public class Journal {
+
+	/**
+	 * The size of each segment file, in bytes.
+	 */
+	final public static int DEFAULT_SEGMENT_SIZE = 256 * 1024;
+
+	final private static String SUFFIX = ".log";
+	final private static String HEAD = "head";
+
+	/**
+	 * This interface receives the records of the log as they are replayed.
+	 */
+	public interface Replay {
+
+		/**
+		 * This method handles one record.
+		 *
+		 * @param record
+		 *            The bytes of the record, from its position to its
+		 *            limit. Only valid during the call.
+		 * @param next
+		 *            The position of the record that follows.
+		 * @return False to stop before this record, which is then the first
+		 *         one handled by the next replay.
+		 */
+		boolean record(ByteBuffer record, long next);
+	}
+
+	private final Path directory;
+	private final int segmentSize;
+	private final List<Long> segments = new ArrayList<>();
+	private final MappedByteBuffer headMap;
+
+	private MappedByteBuffer tail;
+	private long tailBase;
+	private long head;
+	private long end;
+
+	/**
+	 * Constructs a journal, opening the segments already in the directory.
+	 *
+	 * @param directory
+	 *            The directory holding the segment files. Created if missing.
+	 * @param segmentSize
+	 *            The size of each segment file, in bytes.
+	 * @throws IOException
+	 *             If the directory or its files cannot be opened.
+	 */
+	public Journal(Path directory, int segmentSize) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		Files.createDirectories(directory);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+				"*" + SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				segments.add(Long.parseLong(name.substring(0,
+						name.length() - SUFFIX.length())));
+			}
+		}
+		Collections.sort(segments);
+		try (FileChannel channel = FileChannel.open(directory.resolve(HEAD),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			headMap = channel.map(FileChannel.MapMode.READ_WRITE, 0, 8);
+		}
+		head = headMap.getLong(0);
+
+		if (segments.isEmpty()) {
+			end = head;
+			return;
+		}
+		// find the end of the last segment, mapped as the tail
+		tailBase = segments.get(segments.size() - 1);
+		tail = map(tailBase);
+		int offset = 0;
+		while (offset + 4 <= segmentSize) {
+			int length = tail.getInt(offset);
+			if (length <= 0 || offset + 4 + length > segmentSize)
+				break;
+			offset += 4 + length;
+		}
+		tail.position(offset);
+		end = tailBase + offset;
+		if (head < segments.get(0) || head > end)
+			head = segments.get(0);
+	}
+
+	/**
+	 * This method appends a record to the log.
+	 *
+	 * @param record
+	 *            The bytes of the record, from its position to its limit.
+	 *            The position is moved to the limit.
+	 * @return The position of the record.
+	 * @throws IOException
+	 *             If a new segment cannot be created.
+	 */
+	public synchronized long append(ByteBuffer record) throws IOException {
+		int length = record.remaining();
+		if (length == 0 || length + 4 > segmentSize)
+			throw new IllegalArgumentException("Record of " + length
+					+ " bytes does not fit in a segment");
+		if (tail == null || tail.remaining() < length + 4)
+			roll();
+		int at = tail.position();
+		tail.position(at + 4);
+		tail.put(record);
+		tail.putInt(at, length);
+		long position = tailBase + at;
+		end = tailBase + tail.position();
+		return position;
+	}
+
+	/**
+	 * This method hands the records from a position on to a Replay, in the
+	 * order they were appended, until the end of the log or until the Replay
+	 * stops.
+	 *
+	 * @param from
+	 *            The position to start from. Positions before the committed
+	 *            one start from it instead.
+	 * @param replay
+	 *            Receives the records.
+	 * @return The position to continue from; the end of the log if every
+	 *         record was handled.
+	 * @throws IOException
+	 *             If a segment cannot be read.
+	 */
+	public synchronized long replay(long from, Replay replay)
+			throws IOException {
+		long position = Math.max(from, head);
+		for (int i = 0; i < segments.size() && position < end; i++) {
+			long base = segments.get(i);
+			if (base + segmentSize <= position)
+				continue;
+			ByteBuffer segment = base == tailBase && tail != null ? tail
+					.duplicate() : map(base);
+			int offset = (int) Math.max(0, position - base);
+			while (offset + 4 <= segmentSize && base + offset < end) {
+				int length = segment.getInt(offset);
+				if (length <= 0 || offset + 4 + length > segmentSize)
+					break;
+				segment.limit(offset + 4 + length).position(offset + 4);
+				long next = base + offset + 4 + length;
+				if (!replay.record(segment, next))
+					return base + offset;
+				segment.limit(segmentSize);
+				offset += 4 + length;
+				position = next;
+			}
+			if (i + 1 < segments.size())
+				position = Math.max(position, segments.get(i + 1));
+		}
+		return Math.max(position, end);
+	}
+
+	/**
+	 * This method marks the records before a position as no longer needed
+	 * and deletes the segments that only hold such records.
+	 *
+	 * @param position
+	 *            The position of the first record still needed.
+	 */
+	public synchronized void commit(long position) {
+		if (position <= head)
+			return;
+		head = Math.min(position, end);
+		headMap.putLong(0, head);
+		while (!segments.isEmpty()) {
+			long base = segments.get(0);
+			boolean last = segments.size() == 1;
+			if (last ? head < end : segments.get(1) > head)
+				break;
+			if (last)
+				tail = null;
+			segments.remove(0);
+			try {
+				Files.deleteIfExists(segment(base));
+			} catch (IOException e) {
+				System.out.println("Could not delete journal segment "
+						+ segment(base) + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * This method writes everything appended so far to the files.
+	 */
+	public synchronized void force() {
+		if (tail != null)
+			tail.force();
+		headMap.force();
+	}
+
+	/**
+	 * @return The position of the first record still needed.
+	 */
+	public synchronized long getHead() {
+		return head;
+	}
+
+	/**
+	 * @return The position after the last record.
+	 */
+	public synchronized long getEnd() {
+		return end;
+	}
+
+	/**
+	 * @return True if every record has been committed.
+	 */
+	public synchronized boolean isEmpty() {
+		return head >= end;
+	}
+
+	/**
+	 * @return A one line summary of what the log holds.
+	 */
+	public synchronized String toString() {
+		return String.format("%d bytes stored in %d segments", end - head,
+				segments.size());
+	}
+
+	private void roll() throws IOException {
+		if (tail != null) {
+			tail.force();
+			tailBase += segmentSize;
+		} else {
+			tailBase = end;
+		}
+		end = tailBase;
+		tail = map(tailBase);
+		segments.add(tailBase);
+	}
+
+	private MappedByteBuffer map(long base) throws IOException {
+		try (FileChannel channel = FileChannel.open(segment(base),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		}
+	}
+
+	private Path segment(long base) {
+		return directory.resolve(String.format("%020d", base) + SUFFIX);
+	}
+}
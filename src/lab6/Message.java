@@ -0,0 +1,142 @@
+package lab6;
+
+import java.io.Serializable;
+
+import link.Capturable;
+import link.Impairable;
+
+/**
+ * This class is the envelope for everything exchanged between the primary
+ * and secondary stations. The type tag tells the receiver how to route the
+ * message with a single switch, so control messages can never be mistaken
+ * for window frames.
+ *
+ * @author Karen SRocha
+ */
+public class Message implements Serializable, Capturable, Impairable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The kinds of message exchanged between stations.
+	 */
+	public enum Type {
+		/** A secondary asks to log in. The payload is its login ID. */
+		LOGIN,
+		/** The login ID asked for is already taken. */
+		LOGIN_EXISTS,
+		/** The station list, as "loginID address" pairs. */
+		ADDRESSES,
+		/** A secondary is leaving. */
+		LOGOFF,
+		/** A window frame of an HDLC frame. The payload is its bits. */
+		FRAGMENT,
+		/** Text to be displayed to the user. */
+		TEXT,
+		/** The token a secondary uses to resume its session. */
+		SESSION,
+		/** A reconnecting secondary asks to resume. The payload is its token. */
+		RESUME,
+		/** The session could not be resumed; the secondary must log in. */
+		RESUME_FAILED
+	}
+
+	private final Type type;
+	private final String payload;
+
+	/**
+	 * Constructs a message.
+	 *
+	 * @param type
+	 *            The type of the message.
+	 * @param payload
+	 *            The contents of the message.
+	 */
+	public Message(Type type, String payload) {
+		this.type = type;
+		this.payload = payload;
+	}
+
+	/**
+	 * Constructs a message without contents.
+	 *
+	 * @param type
+	 *            The type of the message.
+	 */
+	public Message(Type type) {
+		this(type, "");
+	}
+
+	/**
+	 * Returns the type of the message.
+	 *
+	 * @return The type of the message.
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the contents of the message.
+	 *
+	 * @return The contents of the message.
+	 */
+	public String getPayload() {
+		return payload;
+	}
+
+	/**
+	 * @return The ordinal of the type, to capture the message.
+	 */
+	public int getCaptureType() {
+		return type.ordinal();
+	}
+
+	/**
+	 * @return The contents of the message, to capture it.
+	 */
+	public String getCapturePayload() {
+		return payload;
+	}
+
+	/**
+	 * @return The bits of a window frame, which an impaired channel may
+	 *         damage; null for the other types.
+	 */
+	public String getBits() {
+		return type == Type.FRAGMENT ? payload : null;
+	}
+
+	/**
+	 * @param bits
+	 *            The bits the window frame carries instead.
+	 * @return A window frame carrying other bits.
+	 */
+	public Object withBits(String bits) {
+		return new Message(type, bits);
+	}
+
+	/**
+	 * This method builds a message again from a capture.
+	 *
+	 * @param captureType
+	 *            The type, as returned by getCaptureType().
+	 * @param payload
+	 *            The contents.
+	 * @return The message, or null if the type is not a message type.
+	 */
+	public static Message fromCapture(int captureType, String payload) {
+		Type[] types = Type.values();
+		return captureType < types.length ? new Message(types[captureType],
+				payload) : null;
+	}
+
+	/**
+	 * Returns a string representation of the message.
+	 *
+	 * @return The type followed by the contents.
+	 */
+	public String toString() {
+		return type + " " + payload;
+	}
+}
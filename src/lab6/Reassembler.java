@@ -0,0 +1,145 @@
+package lab6;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * This class puts text messages split by the Segmenter back together. Each
+ * segment is decoded as it arrives and handed back as a piece of text, so
+ * the receiver can stream a long message to the application without
+ * holding all of it. A character split between two segments is kept until
+ * the rest of its bytes arrive. A compressed message is inflated segment by
+ * segment on its way to the decoder. A segment out of sequence means a
+ * segment was lost: the rest of that message is discarded.
+ *
+ * Sequence numbers wrap after 15, so segment 0 continues a message that
+ * expects it; it starts a new message when the message expects another
+ * segment, or when its kind or compression differ.
+ *
+ * An instance keeps the state of one link and is not thread safe.
+ *
+ * @author Karen SRocha
+ */
+public class Reassembler {
+
+	private final CharsetDecoder decoder = BitCodec.DEFAULT_CHARSET
+			.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	// room for a segment plus the bytes of a character split across segments
+	private final ByteBuffer bytes = ByteBuffer
+			.allocate(Segmenter.INFO_BYTES + 8);
+	private final CharBuffer chars = CharBuffer
+			.allocate(Segmenter.INFO_BYTES + 8);
+	private final byte[] segment = new byte[Segmenter.INFO_BYTES];
+	private final Inflater inflater = new Inflater();
+	private final StringBuilder text = new StringBuilder();
+
+	private boolean receiving = false;
+	private boolean complete = false;
+	private boolean compressed = false;
+	private int kind = Segmenter.KIND_TEXT;
+	private int expected = 0;
+	private int segments = 0;
+
+	/**
+	 * This method decodes one segment.
+	 *
+	 * @param info
+	 *            The information field bits of the segment.
+	 * @return The text carried by the segment, or null if the segment was
+	 *         discarded.
+	 */
+	public String accept(String info) {
+		int header = Segmenter.header(info);
+		if (header < 0)
+			return null;
+		int seq = Segmenter.seq(header);
+		boolean more = Segmenter.isMore(header);
+
+		if (receiving && seq == expected && Segmenter.kind(header) == kind
+				&& Segmenter.isCompressed(header) == compressed) {
+			// the next segment of the current message, after a wrap too
+		} else if (seq == 0) {
+			// a new message; whatever was being received is incomplete
+			decoder.reset();
+			bytes.clear();
+			segments = 0;
+			compressed = Segmenter.isCompressed(header);
+			kind = Segmenter.kind(header);
+			inflater.reset();
+		} else {
+			receiving = false;
+			return null;
+		}
+
+		text.setLength(0);
+		int length = BitCodec.bitsToBytes(info, 8, info.length() - 8,
+				segment, 0);
+		if (compressed) {
+			inflater.setInput(segment, 0, length);
+			try {
+				int n;
+				while ((n = Compression.inflate(inflater, bytes.array(),
+						bytes.position(), bytes.remaining())) > 0) {
+					bytes.position(bytes.position() + n);
+					decode(false);
+				}
+			} catch (DataFormatException e) {
+				receiving = false;
+				return null;
+			}
+		} else {
+			bytes.put(segment, 0, length);
+		}
+		decode(!more);
+
+		segments++;
+		expected = Segmenter.nextSeq(seq);
+		receiving = more;
+		complete = !more;
+		return text.toString();
+	}
+
+	/**
+	 * This method decodes the bytes waiting in the byte buffer and appends
+	 * the text to the text of the segment. Bytes of a character that is not
+	 * complete yet are left in the buffer.
+	 */
+	private void decode(boolean end) {
+		bytes.flip();
+		CoderResult result;
+		do {
+			chars.clear();
+			result = decoder.decode(bytes, chars, end);
+			chars.flip();
+			text.append(chars);
+		} while (result.isOverflow());
+		if (end) {
+			chars.clear();
+			decoder.flush(chars);
+			chars.flip();
+			text.append(chars);
+		}
+		bytes.compact();
+	}
+
+	/**
+	 * @return True if the last segment accepted ended its message.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return The number of segments of the current message accepted so far.
+	 */
+	public int getSegments() {
+		return segments;
+	}
+}
@@ -0,0 +1,255 @@
+package lab6;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps the registry of stations on disk, so a primary station
+ * that restarts gives every station the address it had and the stations can
+ * resume their links. Each change to the registry is appended to a change
+ * log, a Journal. Every so many changes the whole registry is written to a
+ * compact binary snapshot, which records the position in the log it is up
+ * to, and the log before that position is dropped. Loading reads the
+ * snapshot and applies the changes logged after it.
+ *
+ * @author Karen SRocha
+ */
+public class RegistryStore {
+
+	/**
+	 * The number of changes logged between snapshots.
+	 */
+	final public static int SNAPSHOT_EVERY = 1024;
+
+	final private static int MAGIC = 0x48444C43;
+	final private static int VERSION = 1;
+	final private static String SNAPSHOT = "registry.snap";
+	final private static String LOG = "registry.log";
+
+	final private static byte ASSIGNED = 1;
+	final private static byte LINK_UP = 2;
+	final private static byte RELEASED = 3;
+
+	/**
+	 * A station in the registry.
+	 */
+	public static class Station {
+		final public String login;
+		final public String address;
+		final public String token;
+		public boolean linkUp;
+
+		Station(String login, String address, String token, boolean linkUp) {
+			this.login = login;
+			this.address = address;
+			this.token = token;
+			this.linkUp = linkUp;
+		}
+	}
+
+	private final Path directory;
+	private final Journal log;
+	private final Map<String, Station> stations = new LinkedHashMap<>();
+	private int changes = 0;
+
+	/**
+	 * Constructs the store and loads the registry kept in the directory.
+	 *
+	 * @param directory
+	 *            The directory holding the snapshot and the change log.
+	 *            Created if missing.
+	 * @throws IOException
+	 *             If the files cannot be read.
+	 */
+	public RegistryStore(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+		log = new Journal(directory.resolve(LOG), Journal.DEFAULT_SEGMENT_SIZE);
+
+		long position = 0;
+		Path snapshot = directory.resolve(SNAPSHOT);
+		if (Files.exists(snapshot)) {
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(Files.newInputStream(snapshot)))) {
+				if (in.readInt() != MAGIC || in.readByte() != VERSION)
+					throw new IOException("Not a registry snapshot: "
+							+ snapshot);
+				position = in.readLong();
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					Station station = new Station(in.readUTF(), in.readUTF(),
+							token(in.readUTF()), in.readBoolean());
+					stations.put(station.login, station);
+				}
+			}
+		}
+		log.replay(position, (record, next) -> {
+			byte[] bytes = new byte[record.remaining()];
+			record.get(bytes);
+			try {
+				apply(new DataInputStream(new ByteArrayInputStream(bytes)));
+			} catch (IOException e) {
+				throw new IllegalStateException("Bad registry change at "
+						+ next, e);
+			}
+			changes++;
+			return true;
+		});
+	}
+
+	/**
+	 * @return The stations in the registry, in the order they were
+	 *         assigned.
+	 */
+	public synchronized Collection<Station> getStations() {
+		return new ArrayList<>(stations.values());
+	}
+
+	/**
+	 * This method records that a station logged in and was given an
+	 * address.
+	 *
+	 * @param login
+	 *            The login ID of the station.
+	 * @param address
+	 *            Its address.
+	 * @param token
+	 *            Its resume token, or null.
+	 */
+	public synchronized void assigned(String login, String address,
+			String token) {
+		change(ASSIGNED, login, address, token == null ? "" : token);
+	}
+
+	/**
+	 * This method records that a station answered SNRM with UA.
+	 *
+	 * @param login
+	 *            The login ID of the station.
+	 */
+	public synchronized void linkUp(String login) {
+		Station station = stations.get(login);
+		if (station != null && !station.linkUp)
+			change(LINK_UP, login);
+	}
+
+	/**
+	 * This method records that the address of a station was released.
+	 *
+	 * @param login
+	 *            The login ID of the station.
+	 */
+	public synchronized void released(String login) {
+		if (stations.containsKey(login))
+			change(RELEASED, login);
+	}
+
+	/**
+	 * This method writes the whole registry to the snapshot and drops the
+	 * changes it holds from the log. The snapshot is written to a new file
+	 * and moved in place, so a crash leaves either the old or the new one.
+	 *
+	 * @throws IOException
+	 *             If the snapshot cannot be written.
+	 */
+	public synchronized void snapshot() throws IOException {
+		long position = log.getEnd();
+		Path snapshot = directory.resolve(SNAPSHOT);
+		Path next = directory.resolve(SNAPSHOT + ".new");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(next)))) {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeLong(position);
+			out.writeInt(stations.size());
+			for (Station station : stations.values()) {
+				out.writeUTF(station.login);
+				out.writeUTF(station.address);
+				out.writeUTF(station.token == null ? "" : station.token);
+				out.writeBoolean(station.linkUp);
+			}
+		}
+		Files.move(next, snapshot, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		log.commit(position);
+		changes = 0;
+	}
+
+	/**
+	 * This method writes the registry out before the primary station stops.
+	 */
+	public synchronized void close() {
+		try {
+			snapshot();
+		} catch (IOException e) {
+			System.out.println("Could not save the station registry: "
+					+ e.getMessage());
+		}
+		log.force();
+	}
+
+	/**
+	 * @return A one line summary of the registry and its files.
+	 */
+	public synchronized String toString() {
+		return String.format("%d stations, %d changes since snapshot, log %s",
+				stations.size(), changes, log);
+	}
+
+	private void change(byte op, String... fields) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(op);
+			for (String field : fields) {
+				out.writeUTF(field);
+			}
+			apply(new DataInputStream(new ByteArrayInputStream(
+					bytes.toByteArray())));
+			log.append(ByteBuffer.wrap(bytes.toByteArray()));
+			if (++changes >= SNAPSHOT_EVERY)
+				snapshot();
+		} catch (IOException e) {
+			System.out.println("Could not save a change to the station registry: "
+					+ e.getMessage());
+		}
+	}
+
+	private void apply(DataInputStream in) throws IOException {
+		byte op = in.readByte();
+		String login = in.readUTF();
+		switch (op) {
+		case ASSIGNED:
+			stations.put(login, new Station(login, in.readUTF(),
+					token(in.readUTF()), false));
+			break;
+		case LINK_UP:
+			Station station = stations.get(login);
+			if (station != null)
+				station.linkUp = true;
+			break;
+		case RELEASED:
+			stations.remove(login);
+			break;
+		default:
+			throw new IOException("Unknown registry change " + op);
+		}
+	}
+
+	private static String token(String field) {
+		return field.isEmpty() ? null : field;
+	}
+}
@@ -0,0 +1,286 @@
+package lab6;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * This class splits a message into the information fields of several
+ * I-frames, so that messages are no longer limited to a single 64 byte
+ * information field. Each information field starts with a one byte segment
+ * header: bit 7 is set when more segments follow, bits 6-5 give the kind of
+ * payload, bit 4 is set when the payload is compressed and bits 3-0 are the
+ * sequence number of the segment, modulo 16. The rest of the field carries
+ * up to 63 bytes of the message. Segments are put back together by a
+ * Reassembler.
+ *
+ * @author Karen SRocha
+ */
+public final class Segmenter {
+
+	/**
+	 * The largest information field, in bytes.
+	 */
+	final public static int INFO_BYTES = 64;
+
+	/**
+	 * The message bytes carried by each segment.
+	 */
+	final public static int SEGMENT_BYTES = INFO_BYTES - 1;
+
+	/**
+	 * The payload is text, encoded with BitCodec.DEFAULT_CHARSET.
+	 */
+	final public static int KIND_TEXT = 0;
+
+	/**
+	 * The payload offers a file: its size and name, as text.
+	 */
+	final public static int KIND_FILE_START = 1;
+
+	/**
+	 * The payload is file data.
+	 */
+	final public static int KIND_FILE_DATA = 2;
+
+	/**
+	 * The payload answers a file offer with the offset to send from and the
+	 * name, as text.
+	 */
+	final public static int KIND_FILE_RESUME = 3;
+
+	final private static int MORE = 0x80;
+	final private static int KIND_SHIFT = 5;
+	final private static int KIND_MASK = 0x03;
+	final private static int COMPRESSED = 0x10;
+	final private static int SEQ_MASK = 0x0F;
+
+	/**
+	 * Per-thread scratch for the bits of one information field.
+	 */
+	final private static ThreadLocal<char[]> BITS = ThreadLocal
+			.withInitial(() -> new char[INFO_BYTES * 8]);
+
+	/**
+	 * Per-thread scratch for the encoded text of a message and for its
+	 * compressed form, grown on demand and then reused.
+	 */
+	final private static ThreadLocal<ByteBuffer[]> TEXT = ThreadLocal
+			.withInitial(() -> new ByteBuffer[] { ByteBuffer.allocate(256),
+					ByteBuffer.allocate(256) });
+
+	private Segmenter() {
+	}
+
+	/**
+	 * This method returns the number of segments needed for a message.
+	 *
+	 * @param length
+	 *            The length of the message in bytes.
+	 * @return The number of segments, at least one.
+	 */
+	public static int segmentCount(int length) {
+		return Math.max(1, (length + SEGMENT_BYTES - 1) / SEGMENT_BYTES);
+	}
+
+	/**
+	 * This method splits a text message into segments.
+	 *
+	 * @param text
+	 *            The message to be split.
+	 * @param out
+	 *            Receives the information field bits of each segment, in
+	 *            order.
+	 * @return The number of segments.
+	 */
+	public static int segment(String text, Consumer<String> out) {
+		return segment(text, null, out);
+	}
+
+	/**
+	 * This method splits a text message into segments, compressing it first
+	 * if the link negotiated compression. The text is encoded and compressed
+	 * in scratch buffers kept by the calling thread.
+	 *
+	 * @param text
+	 *            The message to be split.
+	 * @param compression
+	 *            The compression of the link, or null to send the text as it
+	 *            is.
+	 * @param out
+	 *            Receives the information field bits of each segment, in
+	 *            order.
+	 * @return The number of segments.
+	 */
+	public static int segment(String text, Compression compression,
+			Consumer<String> out) {
+		ByteBuffer bytes = scratch(0, text.length() * 3);
+		BitCodec.encodeUtf8(text, bytes);
+		bytes.flip();
+		ByteBuffer compressed = null;
+		if (compression != null) {
+			compressed = scratch(1, bytes.remaining());
+			if (!compression.compress(bytes, compressed))
+				compressed = null;
+		}
+		ByteBuffer payload = compressed != null ? compressed : bytes;
+		int count = segmentCount(payload.remaining());
+		segment(payload, KIND_TEXT, compressed != null, 0, true, out);
+		return count;
+	}
+
+	private static ByteBuffer scratch(int which, int capacity) {
+		ByteBuffer[] buffers = TEXT.get();
+		if (buffers[which].capacity() < capacity)
+			buffers[which] = ByteBuffer.allocate(Math.max(capacity,
+					buffers[which].capacity() * 2));
+		buffers[which].clear();
+		return buffers[which];
+	}
+
+	/**
+	 * This method splits bytes into segments. The bits of each segment are
+	 * written straight from the source array, with no intermediate copy.
+	 *
+	 * @param data
+	 *            The bytes to be split.
+	 * @param off
+	 *            The first byte to send.
+	 * @param len
+	 *            The number of bytes to send.
+	 * @param kind
+	 *            The kind of payload, put in every segment header.
+	 * @param out
+	 *            Receives the information field bits of each segment, in
+	 *            order.
+	 * @return The number of segments.
+	 */
+	public static int segment(byte[] data, int off, int len, int kind,
+			Consumer<String> out) {
+		segment(ByteBuffer.wrap(data, off, len), kind, 0, true, out);
+		return segmentCount(len);
+	}
+
+	/**
+	 * This method splits the remaining bytes of a buffer into segments,
+	 * reading them in place, so a mapped file is framed without being
+	 * copied. A long payload can be sent as several calls that continue the
+	 * sequence numbers; only the call for the last part ends the message.
+	 *
+	 * @param data
+	 *            The bytes to be split, from its position to its limit. The
+	 *            position is moved to the limit.
+	 * @param kind
+	 *            The kind of payload, put in every segment header.
+	 * @param seq
+	 *            The sequence number of the first segment.
+	 * @param last
+	 *            True if these bytes end the message. The last message always
+	 *            has at least one segment, even when no bytes remain.
+	 * @param out
+	 *            Receives the information field bits of each segment, in
+	 *            order.
+	 * @return The sequence number that follows the last segment sent.
+	 */
+	public static int segment(ByteBuffer data, int kind, int seq,
+			boolean last, Consumer<String> out) {
+		return segment(data, kind, false, seq, last, out);
+	}
+
+	private static int segment(ByteBuffer data, int kind, boolean compressed,
+			int seq, boolean last, Consumer<String> out) {
+		char[] bits = BITS.get();
+		int start = data.position();
+		int len = data.remaining();
+		int count = last ? segmentCount(len) : (len + SEGMENT_BYTES - 1)
+				/ SEGMENT_BYTES;
+		for (int i = 0; i < count; i++) {
+			int n = Math.min(SEGMENT_BYTES, len - i * SEGMENT_BYTES);
+			int header = header(!last || i < count - 1, compressed, kind, seq);
+			for (int j = 0; j < 8; j++) {
+				bits[j] = ((header << j) & 0x80) == 0 ? '0' : '1';
+			}
+			BitCodec.bytesToBits(data, start + i * SEGMENT_BYTES, n, bits, 8);
+			out.accept(new String(bits, 0, (n + 1) * 8));
+			seq = nextSeq(seq);
+		}
+		data.position(data.limit());
+		return seq;
+	}
+
+	/**
+	 * This method builds a segment header.
+	 *
+	 * @param more
+	 *            True if more segments follow.
+	 * @param compressed
+	 *            True if the payload is compressed.
+	 * @param kind
+	 *            The kind of payload.
+	 * @param seq
+	 *            The sequence number of the segment. Only the low four bits
+	 *            are kept.
+	 * @return The header byte.
+	 */
+	public static byte header(boolean more, boolean compressed, int kind,
+			int seq) {
+		return (byte) ((more ? MORE : 0) | (kind & KIND_MASK) << KIND_SHIFT
+				| (compressed ? COMPRESSED : 0) | (seq & SEQ_MASK));
+	}
+
+	/**
+	 * This method reads the segment header at the start of an information
+	 * field.
+	 *
+	 * @param info
+	 *            The information field bits.
+	 * @return The header byte as an int from 0 to 255, or -1 if the field
+	 *         cannot be a segment: shorter than a byte, longer than a
+	 *         segment or not a whole number of bytes, as when frames run
+	 *         together after a window frame is lost.
+	 */
+	public static int header(CharSequence info) {
+		int length = info.length();
+		if (length < 8 || length > 8 * INFO_BYTES || length % 8 != 0)
+			return -1;
+		int value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 1) | (info.charAt(i) & 1);
+		}
+		return value;
+	}
+
+	/**
+	 * @return True if the header says more segments follow.
+	 */
+	public static boolean isMore(int header) {
+		return (header & MORE) != 0;
+	}
+
+	/**
+	 * @return True if the header says the payload is compressed.
+	 */
+	public static boolean isCompressed(int header) {
+		return (header & COMPRESSED) != 0;
+	}
+
+	/**
+	 * @return The kind of payload given in the header.
+	 */
+	public static int kind(int header) {
+		return (header >> KIND_SHIFT) & KIND_MASK;
+	}
+
+	/**
+	 * @return The sequence number given in the header.
+	 */
+	public static int seq(int header) {
+		return header & SEQ_MASK;
+	}
+
+	/**
+	 * @return The sequence number that follows seq.
+	 */
+	public static int nextSeq(int seq) {
+		return (seq + 1) & SEQ_MASK;
+	}
+}
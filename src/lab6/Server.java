@@ -1,12 +1,24 @@
 package lab6;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import abstractServer.AbstractServer;
+import abstractServer.AttributeKey;
 import abstractServer.ConnectionToClient;
 import lab6.ChatIF;
+import link.FrameCapture;
 
 /**
  * This class overrides some of the methods in the abstract superclass in order
@@ -18,8 +30,11 @@ public class Server extends AbstractServer {
 
 	final private int EIGHT_BITS = 8;
 	final private int MIN_FRAME_LENGTH = 48;
-	final private int SIXTY_FOUR_BYTES = 512;
 	final private String SERVER_ID = "Master";
+	final private long RESUME_GRACE = 60000;
+	final private int MAX_QUEUED_FRAMES = 256;
+	// replayed messages sent before waiting for their ACK
+	final private int REPLAY_WINDOW = Acknowledger.MAX_PENDING;
 
 	final private String SERVER_ADDRESS = "00000000";
 	final private String BROADCAST = "11111111";
@@ -29,11 +44,46 @@ public class Server extends AbstractServer {
 	final private String CONTROL_UA = "11001110";
 	final private String CONTROL_INFO = "00010000";
 	final private String CONTROL_ACK = "10001000";
+	final private String CONTROL_RR_POLL = "10011000";
+	final private String CONTROL_RNR = "10101000";
+
+	/**
+	 * Per-station state kept on each connection.
+	 */
+	final private static AttributeKey<StringBuilder> WHOLE_FRAME = new AttributeKey<>("WholeFrame");
+	final private static AttributeKey<Integer> WINDOW_FRAMES = new AttributeKey<>("WindowFrames");
+	final private static AttributeKey<String> RESUME_TOKEN = new AttributeKey<>("ResumeToken");
+	final private static AttributeKey<Boolean> RECEIVER_BUSY = new AttributeKey<>("ReceiverBusy");
+	final private static AttributeKey<ArrayDeque<String>> OUTBOUND = new AttributeKey<>("Outbound");
+	final private static AttributeKey<Reassembler> REASSEMBLER = new AttributeKey<>("Reassembler");
+	final private static AttributeKey<FileTransfer> FILE_TRANSFER = new AttributeKey<>("FileTransfer");
+	final private static AttributeKey<Acknowledger> ACKNOWLEDGER = new AttributeKey<>("Acknowledger");
+	final private static AttributeKey<Compression> COMPRESSION = new AttributeKey<>("Compression");
+	// held while the window frames of one frame are written, see sendFrame
+	final private static AttributeKey<Object> SEND_LOCK = new AttributeKey<>("SendLock");
+	final private static AttributeKey<Long> REPLAY_POSITION = new AttributeKey<>("ReplayPosition");
+	// replayed messages not acknowledged yet: {sequence number, journal position}
+	final private static AttributeKey<ArrayDeque<long[]>> REPLAY_ACKS = new AttributeKey<>("ReplayAcks");
 
 	private Map<String, String> addresses;
 	private Map<String, Integer> snrmStatus;
-	private String wholeFrame;
-	private int windowFramesReceived;
+	private Map<String, String> resumeTokens;
+	private Map<String, Long> suspended;
+	private Map<String, ConnectionToClient> links;
+	private Map<String, Journal> journals;
+	private Path journalDirectory;
+	private RegistryStore registry;
+	private FrameRouter router;
+	private int firstAddress = 1;
+	private int lastAddress = (1 << EIGHT_BITS) - 2;
+	private int ackEvery = 1;
+	private long ackDelay = 0;
+	private long framesDropped = 0;
+	// scratch for the bytes of a stored frame, used under the monitor
+	private final byte[] record = new byte[Segmenter.INFO_BYTES];
+	private SecureRandom random;
+	// sends the heartbeats, so the idle timer never waits on a socket
+	private ThreadPoolExecutor heartbeats;
 	private String destination;
 
 	private boolean snrmON;
@@ -61,9 +111,19 @@ public class Server extends AbstractServer {
 		addresses = new HashMap<>();
 		addresses.put(SERVER_ID, SERVER_ADDRESS);
 		snrmStatus = new HashMap<>();
-		wholeFrame = "";
-		windowFramesReceived = 0;
+		resumeTokens = new HashMap<>();
+		suspended = new HashMap<>();
+		links = new HashMap<>();
+		journals = new HashMap<>();
+		random = new SecureRandom();
 		destination = "";
+		heartbeats = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(MAX_QUEUED_FRAMES), task -> {
+					Thread thread = new Thread(task, "Heartbeat " + port);
+					thread.setDaemon(true);
+					return thread;
+				}, new ThreadPoolExecutor.DiscardPolicy());
+		heartbeats.allowCoreThreadTimeOut(true);
 
 		snrmON = false;
 		connectionON = false;
@@ -81,115 +141,193 @@ public class Server extends AbstractServer {
 	 */
 	public void handleMessageFromClient(Object msg, ConnectionToClient client) {
 
-		String message = (String) msg;
-
-		if (connectionInON) {
-			wholeFrame += message; // continue to receive fragments until...
-			windowFramesReceived++;
-			if (wholeFrame.length() >= MIN_FRAME_LENGTH && isFlagOK(wholeFrame)) {
-
-				Map<String, String> frameFields = breakFrame(wholeFrame);
-				String destinationAddress = frameFields.get("address");
-				String controlField = frameFields.get("control");
+		Message message = (Message) msg;
 
-				if (destinationAddress.equals(SERVER_ADDRESS)
-						|| destinationAddress.equals(BROADCAST)) {
+		switch (message.getType()) {
+		case FRAGMENT:
+			if (connectionInON) {
+				// continue to receive fragments until...
+				StringBuilder received = receiveFragment(client, message.getPayload());
+				int windowFramesReceived = client.getAttribute(WINDOW_FRAMES);
+				if (received.length() >= MIN_FRAME_LENGTH && Hdlc.isFlagOK(received)) {
 
-					if (controlField.equals(CONTROL_INFO)) {
-						System.out.println("Message received in "
-								+ windowFramesReceived + " window frames.");
-						System.out.println("Message frame: " + wholeFrame);
-						String info = binaryToASCII(frameFields.get("info"));
-						System.out.println("Information field translated to:");
-						System.out.println(info + "\n");
-						System.out.println("Sending ACK message.");
-						sendMessage(addresses.get(client.getInfo("LoginID")), CONTROL_ACK, "");
-
-						if (destinationAddress.equals(BROADCAST)) {
-							System.out
-									.println("Message was sent as broadcast. Forwarding message.");
-							forwardMessage(wholeFrame);
+					String wholeFrame = Hdlc.unstuff(received);
+					captureFrame(client, true, wholeFrame);
+					Map<String, String> frameFields = Hdlc.breakFrame(wholeFrame);
+					String destinationAddress = frameFields.get("address");
+					String controlField = frameFields.get("control");
+					// N(R) of I-frames and ACKs, whatever their destination
+					if (acknowledger(client).acknowledge(controlField) > 0)
+						acknowledged(client);
+
+					if (destinationAddress.equals(SERVER_ADDRESS)
+							|| destinationAddress.equals(BROADCAST)) {
+
+						if (Acknowledger.isInformation(controlField)) {
+							receiveInformation(client, wholeFrame,
+									frameFields.get("info"), windowFramesReceived);
+
+							if (destinationAddress.equals(BROADCAST)) {
+								System.out
+										.println("Message was sent as broadcast. Forwarding message.");
+								forwardMessage(wholeFrame);
+							}
+
+						} else if (Acknowledger.isAck(controlField)) {
+							System.out.println("ACK message received from station "
+									+ client.getLoginID());
+							System.out.println("ACK message received in "
+									+ windowFramesReceived + " window frames.");
+							System.out.println("ACK frame: " + wholeFrame + "\n.");
+
+						} else if (controlField.equals(CONTROL_RR_POLL)) {
+							// heartbeat answer or RR after an RNR: the station
+							// is ready to receive
+							receiverReady(client);
+
+						} else if (controlField.equals(CONTROL_RNR)) {
+							System.out.println("Station " + client.getLoginID()
+									+ " is not ready to receive.");
+							client.setAttribute(RECEIVER_BUSY, true);
+
+						} else if (controlField.equals(CONTROL_UA)) {
+							// late UA from a station after the first one answered
+							String station = client.getLoginID();
+							snrmStatus.put(station, 1);
+							if (registry != null)
+								registry.linkUp(station);
+							System.out.println("UA message received from station "
+									+ station + ".");
+							acceptCompression(client, frameFields.get("info"));
+							replay(client);
 						}
-
-					} else if (controlField.equals(CONTROL_ACK)) {
-						System.out.println("ACK message received from station "
-								+ client.getInfo("LoginID"));
-						System.out.println("ACK message received in "
-								+ windowFramesReceived + " window frames.");
-						System.out.println("ACK frame: " + wholeFrame + "\n.");
+					} else {
+						System.out.println("Message received was not for me.");
+						forwardMessage(wholeFrame);
 					}
-				} else {
-					System.out.println("Message received was not for me.");
-					forwardMessage(wholeFrame);
-				}
-				wholeFrame = "";
-				windowFramesReceived = 0;
-
-				System.out
-						.println("Enter Addresses to see all stations connected.");
-				System.out
-						.println("Or enter the destination address or station name to send message.\n");
-			}
-		} else if (snrmON) {
-			wholeFrame += message; // continue to receive fragments until...
-			windowFramesReceived++;
-			if (wholeFrame.length() >= MIN_FRAME_LENGTH && isFlagOK(wholeFrame)) {
+					resetFrame(client);
 
-				Map<String, String> frameFields = breakFrame(wholeFrame);
-				String destinationAddress = frameFields.get("address");
-
-				if (destinationAddress.equals(SERVER_ADDRESS)) {
-					String controlField = frameFields.get("control");
-
-					if (controlField.equals(CONTROL_UA)) {
-						String station = (String) client.getInfo("LoginID");
-						snrmStatus.put(station, 1);
-						System.out.println("UA message received from station "
-								+ station + ".");
-						snrmON = false;
-						connectionInON = true;
-						connectionON = true;
-						System.out
-								.println("Enter Addresses to see all stations connected.");
-						System.out
-								.println("Or enter the destination address or station name to send message.\n");
+					System.out
+							.println("Enter Addresses to see all stations connected.");
+					System.out
+							.println("Or enter the destination address or station name to send message.\n");
+				}
+			} else if (snrmON) {
+				// continue to receive fragments until...
+				StringBuilder received = receiveFragment(client, message.getPayload());
+				int windowFramesReceived = client.getAttribute(WINDOW_FRAMES);
+				if (received.length() >= MIN_FRAME_LENGTH && Hdlc.isFlagOK(received)) {
+
+					String wholeFrame = Hdlc.unstuff(received);
+					captureFrame(client, true, wholeFrame);
+					Map<String, String> frameFields = Hdlc.breakFrame(wholeFrame);
+					String destinationAddress = frameFields.get("address");
+
+					if (destinationAddress.equals(SERVER_ADDRESS)) {
+						String controlField = frameFields.get("control");
+
+						if (controlField.equals(CONTROL_UA)) {
+							String station = client.getLoginID();
+							snrmStatus.put(station, 1);
+							if (registry != null)
+								registry.linkUp(station);
+							System.out.println("UA message received from station "
+									+ station + ".");
+							acceptCompression(client, frameFields.get("info"));
+							replay(client);
+							snrmON = false;
+							connectionInON = true;
+							connectionON = true;
+							System.out
+									.println("Enter Addresses to see all stations connected.");
+							System.out
+									.println("Or enter the destination address or station name to send message.\n");
+						}
 					}
+					resetFrame(client);
 				}
-				wholeFrame = "";
-				windowFramesReceived = 0;
 			}
+			break;
 
-		} else if (message.startsWith("login")) {
-			if (client.getInfo("LoginID") == null) {
+		case LOGIN:
+			if (client.getLoginID() == null) {
 
-				String loginID = message.split(" ")[1];
+				String loginID = message.getPayload();
+				purgeSuspended();
 
-				if (loginIDAlreadyExists(loginID)) {
+				if (loginIDAlreadyExists(loginID)
+						|| (router != null && !router.claim(this, loginID))) {
 					try {
-						client.sendToClient("login exists");
+						client.sendToClient(new Message(Message.Type.LOGIN_EXISTS));
 					} catch (IOException e) {
 						noClient(client);
 					}
 				} else {
-					client.setInfo("LoginID", loginID);
-
 					String ad = generateAddress();
+					if (ad == null) {
+						System.out.println("No station address is free for "
+								+ loginID + ".");
+						if (router != null)
+							router.stationChanged(this, loginID, null);
+						try {
+							client.sendToClient(new Message(Message.Type.TEXT,
+									"No station address is free. Try again later."));
+						} catch (IOException e) {
+							noClient(client);
+						}
+						break;
+					}
+					client.setLoginID(loginID);
+
 					addresses.put(loginID, ad);
+					if (router != null)
+						router.stationChanged(this, loginID, ad);
+					client.setStationAddress(ad);
+					links.put(ad, client);
 					snrmStatus.put(loginID, 0);
+					String token = Long.toHexString(random.nextLong());
+					resumeTokens.put(token, loginID);
+					client.setAttribute(RESUME_TOKEN, token);
+					if (registry != null)
+						registry.assigned(loginID, ad, token);
 					try {
-						client.sendToClient("Connected as --- " + loginID
-								+ " ---");
+						client.sendToClient(new Message(Message.Type.TEXT,
+								"Connected as --- " + loginID + " ---"));
+						client.sendToClient(new Message(Message.Type.SESSION,
+								token));
 					} catch (IOException e) {
 						noClient(client);
 					}
-					sendToAllClients(loginID + " has connected.");
-					sendToAllClients(getAllAddresses());
+					sendToAllClients(new Message(Message.Type.TEXT, loginID
+							+ " has connected."));
+					sendToAllClients(new Message(Message.Type.ADDRESSES,
+							getAllAddresses()));
 					System.out.println(loginID + " has connected.");
 					System.out
 							.println("Enter Addresses to see all users connected.");
 					System.out.println("Enter snrm to start transmission\n");
 				}
 			}
+			break;
+
+		case RESUME:
+			if (client.getLoginID() == null) {
+				resumeSession(message.getPayload(), client);
+			}
+			break;
+
+		case LOGOFF:
+			// an explicit logoff gives up the session and its address
+			resumeTokens.remove(client.getAttribute(RESUME_TOKEN));
+			client.setAttribute(RESUME_TOKEN, null);
+			try {
+				client.close();
+			} catch (IOException e) {
+			}
+			break;
+
+		default:
+			break;
 		}
 	}
 
@@ -210,30 +348,71 @@ public class Server extends AbstractServer {
 					System.out.println(key + ": " + addresses.get(key));
 				}
 			}
+			FrameRouter router = this.router;
+			if (router != null) {
+				for (Map.Entry<String, String> entry : router
+						.getRemoteStations(this).entrySet()) {
+					System.out.println(entry.getKey() + ": " + entry.getValue()
+							+ " (other primary)");
+				}
+			}
+
+		} else if (message.toLowerCase().equals("compression")) {
+			System.out.println("---- COMPRESSION ----");
+			synchronized (this) {
+				for (ConnectionToClient link : links.values()) {
+					Compression compression = link.getAttribute(COMPRESSION);
+					System.out.println(link.getLoginID() + ": "
+							+ (compression == null ? "off" : compression));
+				}
+			}
+
+		} else if (message.startsWith("capture ")) {
+			setCapture(message.substring(8).trim());
+
+		} else if (message.toLowerCase().equals("journal")) {
+			System.out.println("---- STORED FRAMES ----");
+			synchronized (this) {
+				if (journalDirectory == null)
+					System.out.println("Store-and-forward is off. "
+							+ framesDropped + " frames dropped.");
+				for (Map.Entry<String, Journal> entry : journals.entrySet()) {
+					System.out.println(entry.getKey() + ": " + entry.getValue());
+				}
+			}
 
 		} else if (messageON) {
-			String binaryMessage = englishToBinary(message);
-			if (binaryMessage.length() > SIXTY_FOUR_BYTES) {
-				System.out
-						.println("Message invalid. Information field can only have 64 bytes. Try again.");
+			if (message.startsWith("sendfile ")) {
+				sendFile(destination, message.substring(9).trim());
 			} else {
-				sendMessage(destination, CONTROL_INFO, binaryMessage);
-				messageON = false;
-				connectionON = true;
-				System.out
-						.println("Enter Addresses to see all stations connected.");
-				System.out
-						.println("Or enter the destination address or station name to send message.\n");
+				sendText(destination, message);
+			}
+			messageON = false;
+			connectionON = true;
+			System.out
+					.println("Enter Addresses to see all stations connected.");
+			System.out
+					.println("Or enter the destination address or station name to send message.\n");
+
+		} else if (connectionON && message.equals("snrm")) {
+			// stations that logged in after the link was set up, or came
+			// back under a new address, are asked for their UA
+			for (String login : snrmStatus.keySet()) {
+				if (snrmStatus.get(login) == 0) {
+					System.out.println("Sending SNRM message to " + login + ".");
+					sendMessage(addresses.get(login), CONTROL_SNRM,
+							Compression.toBits(Compression.SUPPORTED));
+				}
 			}
 
 		} else if (connectionON) {
-			if (isBinary(message)) { // message here is address
+			if (Hdlc.isBinary(message)) { // message here is address
 				if (addresses.containsValue(message)) {
 					if (snrmStatus.get(findKey(message)) == 1) {
 						destination = message;
 						connectionON = false;
 						messageON = true;
-						System.out.println("Enter message to be sent:");
+						System.out.println("Enter message to be sent, or sendfile <path> to send a file:");
 					} else {
 						System.out
 								.println("This station did not send UA. Try another address.");
@@ -249,7 +428,7 @@ public class Server extends AbstractServer {
 						destination = addresses.get(message);
 						connectionON = false;
 						messageON = true;
-						System.out.println("Enter message to be sent:");
+						System.out.println("Enter message to be sent, or sendfile <path> to send a file:");
 					} else {
 						System.out
 								.println("This station did not send UA. Try another address.");
@@ -268,7 +447,9 @@ public class Server extends AbstractServer {
 			System.out.println("\n--- Mode HDLC ON ---");
 			System.out.println("Sending SNRM message to all users connected.");
 
-			sendMessage(BROADCAST, CONTROL_SNRM, "");
+			// the information field offers the compression methods
+			sendMessage(BROADCAST, CONTROL_SNRM,
+					Compression.toBits(Compression.SUPPORTED));
 		} else {
 			System.out.println("Enter snrm to start transmission\n");
 		}
@@ -288,10 +469,22 @@ public class Server extends AbstractServer {
 	 * stops listening for connections.
 	 */
 	protected void serverStopped() {
-		sendToAllClients("WARNING - The server has stopped listening for connections");
+		sendToAllClients(new Message(Message.Type.TEXT,
+				"WARNING - The server has stopped listening for connections"));
 		System.out.println("Server has stopped listening for connections.");
 	}
 
+	/**
+	 * This method overrides the one in the superclass. Called when the server
+	 * is closed. The station registry is saved so the next start finds it.
+	 */
+	@Override
+	protected synchronized void serverClosed() {
+		heartbeats.shutdownNow();
+		if (registry != null)
+			registry.close();
+	}
+
 	/**
 	 * This method is called each time a new client connection is accepted.
 	 * 
@@ -300,6 +493,7 @@ public class Server extends AbstractServer {
 	 */
 	@Override
 	protected void clientConnected(ConnectionToClient client) {
+		sendLock(client);
 		System.out.println("A station has connected.");
 
 	}
@@ -313,49 +507,200 @@ public class Server extends AbstractServer {
 	 */
 	@Override
 	synchronized protected void clientDisconnected(ConnectionToClient client) {
-		String login = (String) client.getInfo("LoginID");
-		addresses.remove(login);
+		String login = client.getLoginID();
+		if (login == null)
+			return;
+		links.remove(client.getStationAddress(), client);
+		FileTransfer transfer = client.getAttribute(FILE_TRANSFER);
+		if (transfer != null)
+			transfer.abort();
+		notifyAll();
+		if (client.getAttribute(RESUME_TOKEN) != null) {
+			// keep the address and link state for a while, in case the
+			// station reconnects and resumes
+			suspended.put(login, System.currentTimeMillis());
+		} else {
+			addresses.remove(login);
+			snrmStatus.remove(login);
+			if (registry != null)
+				registry.released(login);
+			if (router != null)
+				router.stationChanged(this, login, null);
+		}
 		System.out.println(login + " has disconnected.");
 	}
 
 	/**
-	 * This method tests if a string is an binary message.
-	 * 
-	 * @param message
-	 *            The message to be tested.
-	 * @return True if it is and false if it is not.
-	 */
-	private boolean isBinary(String message) {
-		boolean result = true;
-		String[] charac = message.split("");
-		for (String s : charac) {
-			if (!s.equals("0") && !s.equals("1") && !s.equals("+")
-					&& !s.equals("-")) {
-				result = false;
+	 * This method gives a reconnecting station back its login ID, address
+	 * and link state. If the token is unknown or expired the station is told
+	 * to log in again.
+	 *
+	 * @param token
+	 *            The resume token sent by the station.
+	 * @param client
+	 *            The new connection of the station.
+	 */
+	private void resumeSession(String token, ConnectionToClient client) {
+		purgeSuspended();
+		String loginID = resumeTokens.get(token);
+
+		if (loginID == null) {
+			try {
+				client.sendToClient(new Message(Message.Type.RESUME_FAILED));
+			} catch (IOException e) {
+				noClient(client);
 			}
+			return;
 		}
-		return result;
+
+		// the old connection may not have been noticed as dead yet
+		Thread[] clientThreadList = getClientConnections();
+		for (int i = 0; i < clientThreadList.length; i++) {
+			ConnectionToClient old = (ConnectionToClient) clientThreadList[i];
+			if (old != client && token.equals(old.getAttribute(RESUME_TOKEN))) {
+				old.setLoginID(null);
+				old.setAttribute(RESUME_TOKEN, null);
+				try {
+					old.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		suspended.remove(loginID);
+		client.setLoginID(loginID);
+		client.setStationAddress(addresses.get(loginID));
+		client.setAttribute(RESUME_TOKEN, token);
+		links.put(client.getStationAddress(), client);
+		try {
+			client.sendToClient(new Message(Message.Type.TEXT,
+					"Resumed as --- " + loginID + " ---"));
+			client.sendToClient(new Message(Message.Type.ADDRESSES,
+					getAllAddresses()));
+		} catch (IOException e) {
+			noClient(client);
+		}
+		System.out.println(loginID + " has resumed with address "
+				+ addresses.get(loginID) + ".");
+		// the resumed link is already set up, as if the station sent UA
+		if (Integer.valueOf(1).equals(snrmStatus.get(loginID)))
+			replay(client);
 	}
 
-	private String generateAddress() {
-		String address = "";
-		for (int i = 0; i < EIGHT_BITS; i++) {
-			address += (int) Math.round(Math.random());
-		}
-		while (addresses.containsValue(address)) {
-			address = "";
-			for (int i = 0; i < EIGHT_BITS; i++) {
-				address += (int) Math.round(Math.random());
+	/**
+	 * This method records the compression a station accepted in the
+	 * information field of its UA.
+	 *
+	 * @param client
+	 *            The station.
+	 * @param info
+	 *            The information field of the UA.
+	 */
+	private void acceptCompression(ConnectionToClient client, String info) {
+		int accepted = Compression.fromBits(info) & Compression.SUPPORTED;
+		if ((accepted & Compression.DEFLATE) != 0) {
+			if (client.getAttribute(COMPRESSION) == null)
+				client.setAttribute(COMPRESSION, new Compression());
+			System.out.println("Station " + client.getLoginID()
+					+ " accepted compression.");
+		} else {
+			client.setAttribute(COMPRESSION, null);
+		}
+	}
+
+	/**
+	 * This method releases the addresses of stations that did not resume
+	 * within the grace period.
+	 */
+	private void purgeSuspended() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Long>> it = suspended.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Long> entry = it.next();
+			if (now - entry.getValue() > RESUME_GRACE) {
+				String login = entry.getKey();
+				addresses.remove(login);
+				snrmStatus.remove(login);
+				resumeTokens.values().remove(login);
+				if (registry != null)
+					registry.released(login);
+				if (router != null)
+					router.stationChanged(this, login, null);
+				it.remove();
 			}
 		}
+	}
+
+	/**
+	 * This method tells drain() whether a station is in the middle of sending
+	 * a frame.
+	 *
+	 * @param client
+	 *            the station to check.
+	 * @return True if some window frames of a frame have been received.
+	 */
+	@Override
+	protected boolean hasFramesInFlight(ConnectionToClient client) {
+		StringBuilder wholeFrame = client.getAttribute(WHOLE_FRAME);
+		return wholeFrame != null && wholeFrame.length() > 0;
+	}
+
+	/**
+	 * This method is called by the idle timer when a station has been silent
+	 * for the heartbeat interval. It polls the station with an RR supervisory
+	 * frame with the P bit set, which the station answers with RR and F set.
+	 * The poll is written by the heartbeat thread, holding only the send lock
+	 * of the link, so neither the timer nor the server monitor waits on a
+	 * slow station. A poll that finds the heartbeat queue full is skipped;
+	 * the next interval polls again.
+	 *
+	 * @param client
+	 *            the silent station.
+	 */
+	@Override
+	protected void sendHeartbeat(ConnectionToClient client) {
+		String address = client.getStationAddress();
+		// set when the station connected, before it could log in
+		Object lock = client.getAttribute(SEND_LOCK);
+		if (address != null && lock != null) {
+			String frame = ControlFrames.frame(address, CONTROL_RR_POLL, "");
+			heartbeats.execute(() -> transmit(client, lock, frame));
+		}
+	}
+
+	/**
+	 * This method picks a free station address at random within the range
+	 * of this primary. The broadcast address is never given to a station,
+	 * or frames sent to all stations would only reach that one.
+	 *
+	 * @return The address, or null if every address is taken.
+	 */
+	private String generateAddress() {
+		int size = lastAddress - firstAddress + 1;
+		// every entry but the primary's own is a station in the range
+		if (addresses.size() - 1 >= size)
+			return null;
+		String address;
+		do {
+			int value = firstAddress + (int) (Math.random() * size);
+			address = Integer.toBinaryString(value | 1 << EIGHT_BITS)
+					.substring(1);
+		} while (addresses.containsValue(address));
 		return address;
 	}
 
 	private String getAllAddresses() {
-		String result = "Addresses ";
+		String result = "";
 		for (String key : addresses.keySet()) {
 			result += key + " " + addresses.get(key) + " ";
 		}
+		FrameRouter router = this.router;
+		if (router != null) {
+			for (Map.Entry<String, String> entry : router.getRemoteStations(
+					this).entrySet()) {
+				result += entry.getKey() + " " + entry.getValue() + " ";
+			}
+		}
 		return result;
 	}
 
@@ -365,94 +710,802 @@ public class Server extends AbstractServer {
 
 	private void noClient(ConnectionToClient client) {
 		System.out.println("Could not send message to station "
-				+ client.getInfo("LoginID"));
+				+ client.getLoginID());
 	}
 
-	private boolean isFlagOK(String message) {
-		boolean result = false;
-		if (message.substring(0, EIGHT_BITS).equals(FLAG)
-				&& message.substring(message.length() - EIGHT_BITS)
-						.equals(FLAG))
-			result = true;
-		return result;
+	/**
+	 * This method appends a window frame to the frame being received from a
+	 * station. Each connection keeps its own partial frame so that fragments
+	 * from different stations never interleave, in a builder that is reused
+	 * from frame to frame.
+	 *
+	 * @param client
+	 *            The connection the fragment came from.
+	 * @param fragment
+	 *            The window frame received.
+	 * @return The frame received so far from that station.
+	 */
+	private StringBuilder receiveFragment(ConnectionToClient client, String fragment) {
+		StringBuilder wholeFrame = client.getAttribute(WHOLE_FRAME);
+		Integer windowFrames = client.getAttribute(WINDOW_FRAMES);
+		if (wholeFrame == null) {
+			wholeFrame = new StringBuilder();
+			client.setAttribute(WHOLE_FRAME, wholeFrame);
+		}
+		wholeFrame.append(fragment);
+		client.setAttribute(WINDOW_FRAMES,
+				windowFrames == null ? 1 : windowFrames + 1);
+		return wholeFrame;
 	}
 
-	private Map<String, String> breakFrame(String message) {
-		Map<String, String> fields = new HashMap<>();
-
-		fields.put("flag1", message.substring(0, EIGHT_BITS));
-		message = message.substring(EIGHT_BITS);
-
-		fields.put("address", message.substring(0, EIGHT_BITS));
-		message = message.substring(EIGHT_BITS);
+	/**
+	 * This method shows the text of an I-frame received from a station, or
+	 * hands it to the file transfer of the link. The segments of a long
+	 * message are shown as they arrive and the message is acknowledged once,
+	 * after its last segment.
+	 *
+	 * @param client
+	 *            The station that sent the frame.
+	 * @param wholeFrame
+	 *            The whole frame.
+	 * @param info
+	 *            The information field of the frame.
+	 * @param windowFrames
+	 *            The number of window frames the frame came in.
+	 */
+	private void receiveInformation(ConnectionToClient client,
+			String wholeFrame, String info, int windowFrames) {
+		int header = Segmenter.header(info);
+		if (header >= 0 && Segmenter.kind(header) != Segmenter.KIND_TEXT) {
+			if (fileTransfer(client).receive(info)
+					&& acknowledger(client).messageReceived())
+				sendAck(client);
+			return;
+		}
 
-		fields.put("control", message.substring(0, EIGHT_BITS));
-		message = message.substring(EIGHT_BITS);
+		Reassembler reassembler = client.getAttribute(REASSEMBLER);
+		if (reassembler == null) {
+			reassembler = new Reassembler();
+			client.setAttribute(REASSEMBLER, reassembler);
+		}
+		String text = reassembler.accept(info);
+		boolean last = text == null || reassembler.isComplete();
+		if (text == null) {
+			System.out.println("Frame out of sequence. Rest of the message discarded.\n");
+		} else if (reassembler.getSegments() == 1 && last) {
+			System.out.println("Message received in " + windowFrames
+					+ " window frames.");
+			System.out.println("Message frame: " + wholeFrame);
+			System.out.println("Information field translated to:");
+			System.out.println(text + "\n");
+		} else {
+			if (reassembler.getSegments() == 1)
+				System.out.println("Information fields translated to:");
+			System.out.print(text);
+			if (last)
+				System.out.println("\nMessage received in "
+						+ reassembler.getSegments() + " I-frames.\n");
+		}
+		// one ACK acknowledges the whole message
+		if (last && acknowledger(client).messageReceived())
+			sendAck(client);
+	}
 
-		fields.put("flag2", message.substring(message.length() - EIGHT_BITS));
-		message = message.substring(0, message.length() - EIGHT_BITS);
+	/**
+	 * This method starts capturing every message and frame to a file, or
+	 * stops capturing.
+	 *
+	 * @param path
+	 *            The file, or "off" to stop.
+	 */
+	private void setCapture(String path) {
+		FrameCapture old = getCapture();
+		setCapture((FrameCapture) null);
+		if (old != null) {
+			old.close();
+			System.out.println("Capture stopped, " + old + ".");
+		}
+		if (path.equals("off"))
+			return;
+		try {
+			setCapture(new FrameCapture(Paths.get(path)));
+			System.out.println("Capturing to " + path + ".");
+		} catch (IOException e) {
+			System.out.println("Could not capture to " + path + ": "
+					+ e.getMessage());
+		}
+	}
 
-		fields.put("FCS",
-				message.substring(message.length() - (2 * EIGHT_BITS)));
-		message = message.substring(0, message.length() - (2 * EIGHT_BITS));
+	private void captureFrame(ConnectionToClient client, boolean inbound,
+			String frame) {
+		FrameCapture capture = getCapture();
+		if (capture != null)
+			capture.recordFrame(client.getConnectionID(), inbound, frame);
+	}
 
-		fields.put("info", message);
+	private void resetFrame(ConnectionToClient client) {
+		StringBuilder wholeFrame = client.getAttribute(WHOLE_FRAME);
+		if (wholeFrame != null)
+			wholeFrame.setLength(0);
+		client.setAttribute(WINDOW_FRAMES, 0);
+	}
 
-		return fields;
+	/**
+	 * This method sends an ACK for the messages received from a station that
+	 * no frame sent has acknowledged yet. Called when they are due, and by
+	 * the timer once the ACK delay runs out.
+	 *
+	 * @param client
+	 *            The station.
+	 */
+	private synchronized void sendAck(ConnectionToClient client) {
+		String address = client.getStationAddress();
+		if (address == null || !client.isAlive()
+				|| !acknowledger(client).isPending())
+			return;
+		System.out.println("Sending ACK message.");
+		sendFrame(client, ControlFrames.frame(address, CONTROL_ACK, ""));
 	}
 
-	private String[] getWindowFrames(int windowSize, String wholeFrame) {
+	/**
+	 * This method returns the acknowledgement state of the link to a
+	 * station, creating it on first use.
+	 *
+	 * @param client
+	 *            The station.
+	 * @return Its state.
+	 */
+	private synchronized Acknowledger acknowledger(ConnectionToClient client) {
+		Acknowledger acknowledger = client.getAttribute(ACKNOWLEDGER);
+		if (acknowledger == null) {
+			acknowledger = new Acknowledger(() -> sendAck(client),
+					client::getStationAddress);
+			acknowledger.setDelay(ackEvery, ackDelay);
+			client.setAttribute(ACKNOWLEDGER, acknowledger);
+		}
+		return acknowledger;
+	}
 
-		double size = (double) windowSize;
-		int numFrames = (int) Math.ceil(wholeFrame.length() / size);
+	/**
+	 * This method sends a frame to a single station, without echoing it to
+	 * the console. I-frames and ACKs carry the N(R) of the link.
+	 *
+	 * @param client
+	 *            The station to send to.
+	 * @param frame
+	 *            The whole frame.
+	 * @return False if the station could not be reached.
+	 */
+	private synchronized boolean sendFrame(ConnectionToClient client, String frame) {
+		return transmit(client, sendLock(client), acknowledger(client)
+				.stamp(frame));
+	}
 
-		String[] windowFrames = new String[numFrames];
+	/**
+	 * This method writes the window frames of a frame to a station. They are
+	 * written under the send lock of the link, so they never interleave with
+	 * those of a frame written from another thread, even one that does not
+	 * hold the server monitor.
+	 *
+	 * @param client
+	 *            The station to send to.
+	 * @param lock
+	 *            The send lock of the link.
+	 * @param frame
+	 *            The whole frame, ready to send.
+	 * @return False if the station could not be reached.
+	 */
+	private boolean transmit(ConnectionToClient client, Object lock,
+			String frame) {
+		captureFrame(client, false, frame);
+		try {
+			synchronized (lock) {
+				for (Message windowFrame : ControlFrames.windowFrames(frame)) {
+					client.sendToClient(windowFrame);
+				}
+				// the stream would otherwise keep every message it has sent
+				client.forceResetAfterSend();
+			}
+			return true;
+		} catch (IOException e) {
+			noClient(client);
+			return false;
+		}
+	}
 
-		for (int i = 0; i < numFrames - 1; i++) {
-			windowFrames[i] = wholeFrame.substring(0, windowSize);
-			wholeFrame = wholeFrame.substring(windowSize);
+	/**
+	 * This method gives a connection its send lock the first time it is
+	 * asked for. It runs under the monitor, so a frame sent to a connection
+	 * that has not been announced yet gets the same lock.
+	 */
+	private synchronized Object sendLock(ConnectionToClient client) {
+		Object lock = client.getAttribute(SEND_LOCK);
+		if (lock == null) {
+			lock = new Object();
+			client.setAttribute(SEND_LOCK, lock);
 		}
-		windowFrames[numFrames - 1] = wholeFrame;
-		return windowFrames;
+		return lock;
 	}
 
-	private void sendMessage(String address, String control, String info) {
-		String frame = FLAG + address + control + info + FCS + FLAG;
+	// synchronized so that frames sent from the console and the connection
+	// threads keep their order
+	private synchronized void sendMessage(String address, String control, String info) {
+		String frame = control.equals(CONTROL_INFO) ? FLAG + address + control
+				+ info + FCS + FLAG : ControlFrames.frame(address, control, info);
 		System.out.println("Message frame: " + frame);
 
-		String[] windowFrames = getWindowFrames(EIGHT_BITS - 1, frame);
+		Message[] windowFrames = ControlFrames.windowFrames(frame);
 		System.out.println("Window size " + (EIGHT_BITS - 1)
 				+ ", message split into " + windowFrames.length + " frames");
 
-		for (String s : windowFrames) {
-			sendToAllClients(s);
-			System.out.println("Frame " + s + " sent.");
+		for (Message windowFrame : windowFrames) {
+			System.out.println("Frame " + windowFrame.getPayload() + " sent.");
 		}
+		route(address, frame);
 		System.out.println("\n");
 	}
 
-	private void forwardMessage(String frame) {
-		String[] windowFrames = getWindowFrames(EIGHT_BITS - 1, frame);
+	/**
+	 * This method sends a text message in as many I-frames as it needs,
+	 * compressed if the station accepted compression. A message that fits in
+	 * one frame is echoed to the console like any other frame; the frames of
+	 * a longer one are sent quietly.
+	 *
+	 * @param address
+	 *            The destination address.
+	 * @param text
+	 *            The message to be sent.
+	 */
+	private synchronized void sendText(String address, String text) {
+		ConnectionToClient link = links.get(address);
+		Compression compression = link == null ? null : link
+				.getAttribute(COMPRESSION);
+		int count = Segmenter.segment(text, compression, info -> {
+			int header = Segmenter.header(info);
+			if (Segmenter.seq(header) == 0 && !Segmenter.isMore(header))
+				sendMessage(address, CONTROL_INFO, info);
+			else
+				route(address, FLAG + address + CONTROL_INFO + info + FCS + FLAG);
+		});
+		if (count > 1)
+			System.out.println("Message split into " + count + " I-frames.\n");
+	}
+
+	/**
+	 * This method offers a file to a station. The data follows once the
+	 * station answers with the offset to send from.
+	 *
+	 * @param address
+	 *            The address of the station.
+	 * @param path
+	 *            The file to be sent.
+	 */
+	private void sendFile(String address, String path) {
+		ConnectionToClient link;
+		synchronized (this) {
+			link = links.get(address);
+		}
+		if (link == null) {
+			System.out.println("Station " + address + " is not connected.");
+			return;
+		}
+		try {
+			fileTransfer(link).offer(Paths.get(path));
+		} catch (IOException | RuntimeException e) {
+			System.out.println("Could not send file: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * This method returns the file transfer of a link, creating it on first
+	 * use.
+	 *
+	 * @param client
+	 *            The station at the other end of the link.
+	 * @return The file transfer.
+	 */
+	private synchronized FileTransfer fileTransfer(ConnectionToClient client) {
+		FileTransfer transfer = client.getAttribute(FILE_TRANSFER);
+		if (transfer == null) {
+			transfer = new FileTransfer(Paths.get("received", SERVER_ID),
+					info -> sendFileSegment(client, info));
+			client.setAttribute(FILE_TRANSFER, transfer);
+		}
+		return transfer;
+	}
+
+	/**
+	 * This method sends a file transfer segment to a station. File data
+	 * waits while the station is not ready, instead of filling the queue of
+	 * held frames; the wait releases the server so the RR can be read.
+	 *
+	 * @param client
+	 *            The station to send to.
+	 * @param info
+	 *            The information field of the segment.
+	 */
+	private synchronized void sendFileSegment(ConnectionToClient client,
+			String info) {
+		if (Segmenter.kind(Segmenter.header(info)) == Segmenter.KIND_FILE_DATA) {
+			while (Boolean.TRUE.equals(client.getAttribute(RECEIVER_BUSY))
+					&& client.isAlive()) {
+				try {
+					wait(1000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+		deliver(client, FLAG + client.getStationAddress() + CONTROL_INFO + info
+				+ FCS + FLAG);
+	}
+
+	private synchronized void forwardMessage(String frame) {
+		String[] windowFrames = Hdlc.getWindowFrames(EIGHT_BITS - 1, Hdlc.stuff(frame));
 		System.out.println("Window size " + (EIGHT_BITS - 1)
 				+ ", message split into " + windowFrames.length + " frames");
 
-		for (String s : windowFrames) {
-			sendToAllClients(s);
+		String address = frame.substring(EIGHT_BITS, 2 * EIGHT_BITS);
+		// a broadcast goes to the stations of every primary, this one too
+		if (router != null && !links.containsKey(address)
+				&& router.forward(this, address, frame)) {
+			System.out.println("Message was forwarded to another primary.");
+			if (!address.equals(BROADCAST))
+				return;
 		}
+		route(address, frame);
 		System.out.println("Message was forwarded.");
 	}
 
-	private String englishToBinary(String characters) {
-		byte[] bytes = characters.getBytes();
-		StringBuilder binary = new StringBuilder();
-		for (byte b : bytes) {
-			int val = b;
-			for (int i = 0; i < 8; i++) {
-				binary.append((val & 128) == 0 ? 0 : 1);
-				val <<= 1;
+	/**
+	 * This method delivers a frame forwarded by another primary to the
+	 * station it is addressed to, or to every station of this primary for
+	 * the broadcast address. It is called by the FrameRouter, on a thread of
+	 * its own.
+	 *
+	 * @param address
+	 *            The destination address.
+	 * @param frame
+	 *            The whole frame.
+	 */
+	public synchronized void receiveForwarded(String address, String frame) {
+		System.out.println("Frame for " + address
+				+ " forwarded by another primary.");
+		if (address.equals(BROADCAST) || !findKey(address).isEmpty()) {
+			route(address, frame);
+		} else {
+			System.out.println("No station has address " + address
+					+ ". Frame dropped.");
+		}
+	}
+
+	/**
+	 * This method sends the stations the list of every station, after a
+	 * station of another primary came or went. Called by the FrameRouter.
+	 */
+	public synchronized void remoteStationsChanged() {
+		sendToAllClients(new Message(Message.Type.ADDRESSES, getAllAddresses()));
+	}
+
+	/**
+	 * This method takes back a login ID another primary already serves, when
+	 * both gave it out at once. The station loses its address and is told
+	 * its login exists, so it can log in again under another login ID.
+	 * Called by the FrameRouter.
+	 *
+	 * @param login
+	 *            The login ID.
+	 */
+	public synchronized void refuseLogin(String login) {
+		String address = addresses.get(login);
+		if (address == null || login.equals(SERVER_ID))
+			return;
+		addresses.remove(login);
+		snrmStatus.remove(login);
+		suspended.remove(login);
+		resumeTokens.values().remove(login);
+		if (registry != null)
+			registry.released(login);
+		if (router != null)
+			router.stationChanged(this, login, null);
+		ConnectionToClient client = links.get(address);
+		if (client != null && login.equals(client.getLoginID())) {
+			links.remove(address, client);
+			client.setLoginID(null);
+			client.setStationAddress(null);
+			client.setAttribute(RESUME_TOKEN, null);
+			client.setAttribute(REPLAY_POSITION, null);
+			client.setAttribute(REPLAY_ACKS, null);
+			try {
+				client.sendToClient(new Message(Message.Type.LOGIN_EXISTS));
+			} catch (IOException e) {
+				noClient(client);
+			}
+		}
+		System.out.println("Login " + login
+				+ " is used on another primary. Station asked for a new login.");
+	}
+
+	/**
+	 * This method sets the router connecting this primary to the others
+	 * sharing the address space. Stations already logged in are announced
+	 * to it.
+	 *
+	 * @param router
+	 *            The router, or null to serve stations alone.
+	 */
+	public synchronized void setFrameRouter(FrameRouter router) {
+		this.router = router;
+		if (router != null) {
+			for (Map.Entry<String, String> entry : addresses.entrySet()) {
+				if (!entry.getKey().equals(SERVER_ID))
+					router.stationChanged(this, entry.getKey(),
+							entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * This method delays the ACKs sent to stations, so that an I-frame sent
+	 * to the station meanwhile can carry the acknowledgement in its N(R)
+	 * instead, and one ACK covers several messages. It applies to stations
+	 * that connect afterwards.
+	 *
+	 * @param every
+	 *            The number of messages after which an ACK is sent
+	 *            anyway, from 1 to 7.
+	 * @param delay
+	 *            The time in ms an ACK may wait, or 0 to acknowledge each
+	 *            message at once.
+	 */
+	public synchronized void setDelayedAck(int every, long delay) {
+		ackEvery = every;
+		ackDelay = delay;
+	}
+
+	/**
+	 * This method sets the range of station addresses this primary gives
+	 * out, so that primaries sharing the address space never give out the
+	 * same one. Stations that already have an address keep it.
+	 *
+	 * @param first
+	 *            The first address, from 1.
+	 * @param last
+	 *            The last address, up to 254.
+	 */
+	public synchronized void setAddressRange(int first, int last) {
+		if (first < 1 || last > (1 << EIGHT_BITS) - 2 || first > last)
+			throw new IllegalArgumentException("Bad address range " + first
+					+ "-" + last);
+		firstAddress = first;
+		lastAddress = last;
+	}
+
+	/**
+	 * This method sends a frame to the station that owns the address, or to
+	 * every station for the broadcast address. Frames for an address with no
+	 * known link are still sent to everybody, as the stations filter on the
+	 * address themselves. With store-and-forward on, information frames for
+	 * a station that is down, or whose link has failed without being noticed
+	 * yet, are stored instead.
+	 *
+	 * @param address
+	 *            The destination address.
+	 * @param frame
+	 *            The whole frame.
+	 */
+	private synchronized void route(String address, String frame) {
+		ConnectionToClient link = links.get(address);
+		if (store(address, link, frame))
+			return;
+		if (link != null) {
+			if (!deliver(link, frame))
+				store(address, null, frame);
+			return;
+		}
+		Thread[] clientThreadList = getClientConnections();
+		for (int i = 0; i < clientThreadList.length; i++) {
+			deliver((ConnectionToClient) clientThreadList[i], frame);
+		}
+	}
+
+	/**
+	 * This method sends a frame to a station unless the station said it is
+	 * not ready to receive (RNR). Information frames for a busy station wait
+	 * in a bounded queue on its connection until it sends RR; supervisory and
+	 * unnumbered frames always go through, since they carry the link
+	 * control. A slow station only ever holds back its own frames. Once the
+	 * queue is full, frames are stored for the station when store-and-forward
+	 * is on and replayed when it sends RR; otherwise they are dropped and
+	 * counted.
+	 *
+	 * @param client
+	 *            The station to send to.
+	 * @param frame
+	 *            The whole frame.
+	 * @return False if the station could not be reached.
+	 */
+	private synchronized boolean deliver(ConnectionToClient client, String frame) {
+		// bit 0 of the control field is 0 only for information frames
+		boolean information = frame.charAt(2 * EIGHT_BITS) == '0';
+		if (information && Boolean.TRUE.equals(client.getAttribute(RECEIVER_BUSY))) {
+			ArrayDeque<String> queue = client.getAttribute(OUTBOUND);
+			if (queue == null) {
+				queue = new ArrayDeque<>();
+				client.setAttribute(OUTBOUND, queue);
+			}
+			if (queue.size() < MAX_QUEUED_FRAMES) {
+				queue.add(frame);
+			} else if (!store(client.getStationAddress(), null, frame)) {
+				framesDropped++;
+				System.out.println("Station " + client.getLoginID()
+						+ " is not ready and its queue is full. Frame dropped.");
+			}
+			return true;
+		}
+		return sendFrame(client, frame);
+	}
+
+	/**
+	 * This method is called when a station sends RR. It clears the busy
+	 * state of the link and sends the frames that were held back.
+	 *
+	 * @param client
+	 *            The station that is ready to receive.
+	 */
+	private synchronized void receiverReady(ConnectionToClient client) {
+		if (!Boolean.TRUE.equals(client.getAttribute(RECEIVER_BUSY)))
+			return;
+		client.setAttribute(RECEIVER_BUSY, false);
+		notifyAll();
+		ArrayDeque<String> queue = client.getAttribute(OUTBOUND);
+		if (queue != null) {
+			String frame;
+			while ((frame = queue.poll()) != null) {
+				sendFrame(client, frame);
+			}
+		}
+		// frames stored while the queue was full follow the queued ones
+		if (client.getAttribute(REPLAY_POSITION) != null)
+			continueReplay(client);
+		else
+			replay(client);
+	}
+
+	/**
+	 * Returns the number of information frames dropped because a station
+	 * was not ready and its queue was full, with store-and-forward off.
+	 *
+	 * @return The number of frames dropped since the server started.
+	 */
+	public synchronized long getFramesDropped() {
+		return framesDropped;
+	}
+
+	/**
+	 * This method keeps the registry of stations in a directory and loads the
+	 * registry saved there by an earlier run. Every station found is taken as
+	 * suspended, as after a lost connection, so it gets its old address back
+	 * when it reconnects with its resume token. If any link was set up, the
+	 * primary station goes straight back to information transfer instead of
+	 * waiting for a new SNRM.
+	 *
+	 * @param directory
+	 *            The directory holding the registry.
+	 * @throws IOException
+	 *             If the registry cannot be read.
+	 */
+	public synchronized void setRegistryDirectory(Path directory)
+			throws IOException {
+		registry = new RegistryStore(directory);
+		long now = System.currentTimeMillis();
+		for (RegistryStore.Station station : registry.getStations()) {
+			addresses.put(station.login, station.address);
+			snrmStatus.put(station.login, station.linkUp ? 1 : 0);
+			if (station.token != null)
+				resumeTokens.put(station.token, station.login);
+			suspended.put(station.login, now);
+			if (station.linkUp) {
+				connectionON = true;
+				connectionInON = true;
+			}
+		}
+		System.out.println("Station registry loaded: " + registry + ".");
+	}
+
+	/**
+	 * This method turns on store-and-forward. Information frames for a
+	 * station that is down are then appended to a journal kept for that
+	 * station under the directory, and sent to it when it next answers SNRM
+	 * with UA or resumes its session. Each message stays in the journal until the station
+	 * acknowledges it, so stored frames survive restarts of either side.
+	 *
+	 * @param directory
+	 *            The directory holding the journals, or null to turn
+	 *            store-and-forward off.
+	 */
+	public synchronized void setStoreAndForward(Path directory) {
+		journalDirectory = directory;
+		if (directory == null) {
+			for (Journal journal : journals.values()) {
+				journal.force();
+			}
+			journals.clear();
+		}
+	}
+
+	/**
+	 * This method returns the journal of a station, opening it on first use.
+	 *
+	 * @param login
+	 *            The login ID of the station.
+	 * @param create
+	 *            False to return null instead of creating a journal that
+	 *            does not exist yet.
+	 * @return The journal, or null.
+	 * @throws IOException
+	 *             If the journal cannot be opened.
+	 */
+	private synchronized Journal journal(String login, boolean create)
+			throws IOException {
+		Journal journal = journals.get(login);
+		if (journal == null) {
+			Path directory = journalDirectory.resolve(login);
+			if (!create && !Files.isDirectory(directory))
+				return null;
+			journal = new Journal(directory, Journal.DEFAULT_SEGMENT_SIZE);
+			journals.put(login, journal);
+		}
+		return journal;
+	}
+
+	/**
+	 * This method stores an information frame in the journal of the station
+	 * it is for, when store-and-forward is on and the station cannot take
+	 * the frame now. That is when the station is down, or when it is back
+	 * but stored frames have not all been replayed to it yet, so frames keep
+	 * the order they were sent in. Stations are identified by login ID, as
+	 * a station that comes back after its address was released gets a new
+	 * one.
+	 *
+	 * @param address
+	 *            The destination address.
+	 * @param link
+	 *            The link to the station, or null if it is down.
+	 * @param frame
+	 *            The whole frame.
+	 * @return True if the frame was stored.
+	 */
+	private synchronized boolean store(String address, ConnectionToClient link,
+			String frame) {
+		if (journalDirectory == null || frame.charAt(2 * EIGHT_BITS) != '0')
+			return false;
+		String login = findKey(address);
+		if (login.isEmpty() || login.equals(SERVER_ID))
+			return false;
+		try {
+			Journal journal = journal(login, link == null);
+			if (link != null) {
+				Long replayed = link.getAttribute(REPLAY_POSITION);
+				if (journal == null || journal.isEmpty()
+						|| (replayed != null && replayed >= journal.getEnd()))
+					return false;
 			}
+			String info = frame.substring(3 * EIGHT_BITS, frame.length()
+					- FCS.length() - EIGHT_BITS);
+			int length = BitCodec.bitsToBytes(info, 0, info.length(), record, 0);
+			journal.append(ByteBuffer.wrap(record, 0, length));
+			System.out.println("Station " + login
+					+ " is not connected. Frame stored.");
+			return true;
+		} catch (IOException | RuntimeException e) {
+			System.out.println("Could not store frame for station " + login
+					+ ": " + e.getMessage());
+			return false;
 		}
-		return binary + "";
+	}
+
+	/**
+	 * This method starts sending a station the frames stored for it, once it
+	 * has answered SNRM with UA or resumed a link that was set up. Only the
+	 * first time on a connection starts a replay.
+	 *
+	 * @param client
+	 *            The station.
+	 */
+	private synchronized void replay(ConnectionToClient client) {
+		if (journalDirectory == null
+				|| client.getAttribute(REPLAY_POSITION) != null)
+			return;
+		try {
+			Journal journal = journal(client.getLoginID(), false);
+			if (journal == null)
+				return;
+			client.setAttribute(REPLAY_ACKS, new ArrayDeque<>());
+			client.setAttribute(REPLAY_POSITION, journal.getHead());
+			if (!journal.isEmpty())
+				System.out.println("Replaying " + journal + " for station "
+						+ client.getLoginID() + ".");
+		} catch (IOException e) {
+			System.out.println("Could not open stored frames for station "
+					+ client.getLoginID() + ": " + e.getMessage());
+			return;
+		}
+		continueReplay(client);
+	}
+
+	/**
+	 * This method sends stored frames to a station until they have all been
+	 * sent, the station says it is not ready, or a window of replayed
+	 * messages is waiting for its ACK. It then returns, so the monitor is not
+	 * held for the whole backlog and RNR from the station is read in between;
+	 * receiverReady() and acknowledged() carry on from there. The sequence
+	 * number each message is sent with is kept with the position of its end,
+	 * so only its own acknowledgement commits it.
+	 *
+	 * @param client
+	 *            The station.
+	 */
+	private synchronized void continueReplay(ConnectionToClient client) {
+		Journal journal = journals.get(client.getLoginID());
+		Long position = client.getAttribute(REPLAY_POSITION);
+		ArrayDeque<long[]> acks = client.getAttribute(REPLAY_ACKS);
+		if (journal == null || position == null)
+			return;
+		String address = client.getStationAddress();
+		Acknowledger acknowledger = acknowledger(client);
+		char[] bits = new char[Segmenter.INFO_BYTES * 8];
+		// stop for the window only between messages
+		boolean[] between = { true };
+		try {
+			position = journal.replay(position, (record, next) -> {
+				if (Boolean.TRUE.equals(client.getAttribute(RECEIVER_BUSY))
+						|| !client.isAlive()
+						|| (between[0] && acks.size() >= REPLAY_WINDOW))
+					return false;
+				int length = BitCodec.bytesToBits(record, record.position(),
+						record.remaining(), bits, 0);
+				String info = new String(bits, 0, length);
+				sendFrame(client, FLAG + address + CONTROL_INFO + info + FCS
+						+ FLAG);
+				int header = Segmenter.header(info);
+				between[0] = header < 0 || !Segmenter.isMore(header);
+				if (between[0])
+					acks.add(new long[] { acknowledger.getSent(), next });
+				return true;
+			});
+			client.setAttribute(REPLAY_POSITION, position);
+		} catch (IOException e) {
+			System.out.println("Could not replay stored frames for station "
+					+ client.getLoginID() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * This method is called when a station acknowledges messages sent to it.
+	 * Every replayed message its N(R) has passed is committed, so it is not
+	 * sent again, and the replay carries on with the next window. A message
+	 * is acknowledged only by the count of messages received reaching its
+	 * own sequence number, never by an ACK of live frames sent before it.
+	 *
+	 * @param client
+	 *            The station.
+	 */
+	private synchronized void acknowledged(ConnectionToClient client) {
+		ArrayDeque<long[]> acks = client.getAttribute(REPLAY_ACKS);
+		if (acks == null)
+			return;
+		long acknowledged = acknowledger(client).getAcknowledged();
+		long[] ack;
+		boolean committed = false;
+		while ((ack = acks.peek()) != null && ack[0] <= acknowledged) {
+			acks.poll();
+			journals.get(client.getLoginID()).commit(ack[1]);
+			committed = true;
+		}
+		if (committed)
+			continueReplay(client);
 	}
 
 	private String findKey(String value) {
@@ -464,15 +1517,4 @@ public class Server extends AbstractServer {
 		}
 		return key;
 	}
-
-	private static String binaryToASCII(String b) {
-		String result = "";
-		char nextCharacter;
-
-		for (int i = 0; i <= b.length() - 8; i += 8) {
-			nextCharacter = (char) Integer.parseInt(b.substring(i, i + 8), 2);
-			result += nextCharacter;
-		}
-		return result;
-	}
-}
\ No newline at end of file
+}
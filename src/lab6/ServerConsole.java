@@ -2,6 +2,8 @@ package lab6;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 /**
  * This class constructs the UI for a EchoServer. It implements the chat
@@ -16,6 +18,26 @@ public class ServerConsole implements ChatIF {
 	 */
 	final public static int DEFAULT_PORT = 5555;
 
+	/**
+	 * The time in ms a station may stay silent before it is polled.
+	 */
+	final public static int HEARTBEAT_INTERVAL = 10000;
+
+	/**
+	 * The time in ms a station may stay silent before it is disconnected.
+	 */
+	final public static int IDLE_TIMEOUT = 30000;
+
+	/**
+	 * The number of messages from a station one ACK may cover.
+	 */
+	final public static int ACK_EVERY = 4;
+
+	/**
+	 * The time in ms an ACK waits for an I-frame to carry it instead.
+	 */
+	final public static int ACK_DELAY = 200;
+
 	/**
 	 * The instance of the client that created this ConsoleChat.
 	 */
@@ -29,7 +51,17 @@ public class ServerConsole implements ChatIF {
 	 */
 	public ServerConsole(int port) {
 		server = new Server(port, this);
+		server.setHeartbeatInterval(HEARTBEAT_INTERVAL);
+		server.setIdleTimeout(IDLE_TIMEOUT);
+		server.setDelayedAck(ACK_EVERY, ACK_DELAY);
+	}
 
+	/**
+	 * This method starts listening for connections. It is called once the
+	 * server is configured, so no station connects before its registry,
+	 * store-and-forward and cluster are set up.
+	 */
+	public void listen() {
 		try {
 			server.listen(); // Start listening for connections
 		} catch (Exception ex) {
@@ -68,7 +100,14 @@ public class ServerConsole implements ChatIF {
 	 *
 	 * @param args
 	 *            [0] The port number to listen on. Defaults to 5555 if no
-	 *            argument is entered.
+	 *            argument is entered. [1] A directory to store frames for
+	 *            stations that are down in. Store-and-forward is off if no
+	 *            argument is entered, or if it is "-". [2] A directory to
+	 *            keep the registry of stations in, so a restart keeps their
+	 *            addresses, or "-" for none. [3] The number of this node in
+	 *            a cluster, and [4] onwards the cluster address of every
+	 *            node, as "host:port". The server runs alone if no argument
+	 *            is entered.
 	 */
 	public static void main(String[] args) {
 		int port = 0; // Port to listen on
@@ -80,6 +119,26 @@ public class ServerConsole implements ChatIF {
 		}
 
 		ServerConsole sc = new ServerConsole(port);
+		if (args.length > 1 && !args[1].equals("-"))
+			sc.server.setStoreAndForward(Paths.get(args[1]));
+		if (args.length > 2 && !args[2].equals("-")) {
+			try {
+				sc.server.setRegistryDirectory(Paths.get(args[2]));
+			} catch (Exception ex) {
+				System.out.println("ERROR - Could not load the station registry: "
+						+ ex.getMessage());
+			}
+		}
+		if (args.length > 4) {
+			try {
+				new ClusterRouter(sc.server, Integer.parseInt(args[3]),
+						Arrays.copyOfRange(args, 4, args.length)).start();
+			} catch (Exception ex) {
+				System.out.println("ERROR - Could not join the cluster: "
+						+ ex.getMessage());
+			}
+		}
+		sc.listen();
 		sc.accept(); // Wait for console data
 	}
 }
@@ -0,0 +1,215 @@
+package lab6;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class runs several primary stations in one process as shards of one
+ * address space, so that stations are served by as many monitors as there
+ * are shards rather than by one. The station addresses are split into one
+ * contiguous range per shard, and each shard only gives out addresses in
+ * its own range, so the shard serving an address is known from the address
+ * alone.
+ *
+ * A frame a station sends to a station of another shard is handed to that
+ * shard through a bounded queue drained by a thread of its own. Shards
+ * never call each other directly, so two shards forwarding to each other
+ * cannot deadlock; when a queue is full the frame is dropped and counted,
+ * as a full RNR queue does. Broadcast frames go to every shard.
+ *
+ * Stations may connect to any shard, using getPort to spread them. A login
+ * ID is given out by one shard of the group at a time. The shards are
+ * configured, started and closed like any Server.
+ *
+ * @author Karen SRocha
+ */
+public class ShardGroup implements FrameRouter {
+
+	/**
+	 * The number of forwarded frames each shard holds before dropping.
+	 */
+	final public static int QUEUE_SIZE = 4096;
+
+	final private static String BROADCAST = "11111111";
+	final private static int ADDRESSES = 254;
+
+	private final Server[] shards;
+	private final int[] firstAddress;
+	private final ThreadPoolExecutor[] inboxes;
+	private final AtomicBoolean[] refreshPending;
+	private final Map<Server, Integer> index = new HashMap<>();
+	private final List<Map<String, String>> stations = new ArrayList<>();
+	// the shard serving each login ID, across the group
+	private final ConcurrentHashMap<String, Integer> logins = new ConcurrentHashMap<>();
+
+	private final LongAdder forwarded = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	/**
+	 * A request for a shard to send its stations the list of every station.
+	 */
+	private class Refresh implements Runnable {
+		private final int shard;
+
+		Refresh(int shard) {
+			this.shard = shard;
+		}
+
+		public void run() {
+			refreshPending[shard].set(false);
+			shards[shard].remoteStationsChanged();
+		}
+
+		void rejected() {
+			refreshPending[shard].set(false);
+		}
+	}
+
+	/**
+	 * Constructs a group of shards and gives each one its address range and
+	 * this group as its router.
+	 *
+	 * @param shards
+	 *            The primary stations, at most 254.
+	 */
+	public ShardGroup(Server... shards) {
+		if (shards.length == 0 || shards.length > ADDRESSES)
+			throw new IllegalArgumentException("Cannot split the addresses into "
+					+ shards.length + " shards");
+		this.shards = shards;
+		firstAddress = new int[shards.length];
+		inboxes = new ThreadPoolExecutor[shards.length];
+		refreshPending = new AtomicBoolean[shards.length];
+		for (int i = 0; i < shards.length; i++) {
+			firstAddress[i] = 1 + i * ADDRESSES / shards.length;
+			int last = (i + 1) * ADDRESSES / shards.length;
+			final String name = "Shard " + i + " inbox";
+			inboxes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), task -> {
+						Thread thread = new Thread(task, name);
+						thread.setDaemon(true);
+						return thread;
+					}, (task, executor) -> {
+						if (task instanceof Refresh)
+							((Refresh) task).rejected();
+						else
+							dropped.increment();
+					});
+			refreshPending[i] = new AtomicBoolean();
+			stations.add(new ConcurrentHashMap<>());
+			index.put(shards[i], i);
+			shards[i].setAddressRange(firstAddress[i], last);
+		}
+		for (Server shard : shards) {
+			shard.setFrameRouter(this);
+		}
+	}
+
+	/**
+	 * @return The shards, in the order of their address ranges.
+	 */
+	public Server[] getShards() {
+		return shards.clone();
+	}
+
+	/**
+	 * This method picks the shard a station connects to, spreading stations
+	 * evenly by their number.
+	 *
+	 * @param station
+	 *            The number of the station.
+	 * @return The port of its shard.
+	 */
+	public int getPort(int station) {
+		return shards[Math.floorMod(station, shards.length)].getPort();
+	}
+
+	public boolean forward(Server from, String address, String frame) {
+		int source = index.get(from);
+		if (address.equals(BROADCAST)) {
+			for (int i = 0; i < shards.length; i++) {
+				if (i != source)
+					submit(i, address, frame);
+			}
+			return true;
+		}
+		int target = shardOf(Integer.parseInt(address, 2));
+		if (target < 0 || target == source)
+			return false;
+		submit(target, address, frame);
+		return true;
+	}
+
+	public boolean claim(Server from, String login) {
+		int source = index.get(from);
+		Integer owner = logins.putIfAbsent(login, source);
+		return owner == null || owner == source;
+	}
+
+	public void stationChanged(Server from, String login, String address) {
+		int source = index.get(from);
+		if (address == null) {
+			stations.get(source).remove(login);
+			logins.remove(login, source);
+		} else {
+			stations.get(source).put(login, address);
+			logins.putIfAbsent(login, source);
+		}
+		for (int i = 0; i < shards.length; i++) {
+			// one pending refresh covers any number of changes
+			if (i != source && refreshPending[i].compareAndSet(false, true))
+				inboxes[i].execute(new Refresh(i));
+		}
+	}
+
+	public Map<String, String> getRemoteStations(Server to) {
+		int target = index.get(to);
+		Map<String, String> result = new HashMap<>();
+		for (int i = 0; i < shards.length; i++) {
+			if (i != target)
+				result.putAll(stations.get(i));
+		}
+		return result;
+	}
+
+	/**
+	 * This method stops the threads handing frames to the shards. The
+	 * shards themselves are closed by the caller.
+	 */
+	public void close() {
+		for (ThreadPoolExecutor inbox : inboxes) {
+			inbox.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return A one line summary of the frames forwarded between shards.
+	 */
+	public String toString() {
+		return String.format("%d shards, %d frames forwarded, %d dropped",
+				shards.length, forwarded.sum(), dropped.sum());
+	}
+
+	private int shardOf(int address) {
+		for (int i = shards.length - 1; i >= 0; i--) {
+			if (address >= firstAddress[i])
+				return address <= ADDRESSES ? i : -1;
+		}
+		return -1;
+	}
+
+	private void submit(int shard, String address, String frame) {
+		inboxes[shard].execute(() -> {
+			forwarded.increment();
+			shards[shard].receiveForwarded(address, frame);
+		});
+	}
+}
@@ -0,0 +1,22 @@
+package link;
+
+/**
+ * This interface is implemented by messages that can be written to a
+ * FrameCapture in compact form: a type code and a text payload, from which
+ * the message can be built again when the capture is replayed. Other
+ * objects are captured by their string representation.
+ *
+ * @author Karen SRocha
+ */
+public interface Capturable {
+
+	/**
+	 * @return The type of the message, from 0 to 253.
+	 */
+	int getCaptureType();
+
+	/**
+	 * @return The contents of the message.
+	 */
+	String getCapturePayload();
+}
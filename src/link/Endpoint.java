@@ -0,0 +1,60 @@
+package link;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * This interface is one end of a connection opened by a Transport. Messages
+ * are objects, written and read whole, in the order they were sent. Any
+ * thread may send; only one thread receives.
+ *
+ * @author Karen SRocha
+ */
+public interface Endpoint {
+
+	/**
+	 * This method sends a message to the other end.
+	 *
+	 * @param message
+	 *            The message.
+	 * @throws IOException
+	 *             If the connection is closed or broken.
+	 */
+	void send(Object message) throws IOException;
+
+	/**
+	 * This method waits for the next message from the other end.
+	 *
+	 * @return The message.
+	 * @throws IOException
+	 *             If the connection is closed or broken; EOFException once
+	 *             the other end has closed and every message it sent has
+	 *             been received.
+	 * @throws ClassNotFoundException
+	 *             If the class of a message received cannot be found.
+	 */
+	Object receive() throws IOException, ClassNotFoundException;
+
+	/**
+	 * This method lets go of the messages sent so far, for transports that
+	 * keep them to write back-references to objects sent again.
+	 *
+	 * @throws IOException
+	 *             If the connection is broken.
+	 */
+	void reset() throws IOException;
+
+	/**
+	 * This method closes the connection. The other end receives what was
+	 * already sent and then EOFException. Closing twice has no effect.
+	 *
+	 * @throws IOException
+	 *             If an error occurs when closing.
+	 */
+	void close() throws IOException;
+
+	/**
+	 * @return The address of the other end.
+	 */
+	InetAddress getInetAddress();
+}
@@ -0,0 +1,424 @@
+package link;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * This class records the messages a station sends and receives, and the
+ * frames they make up, to a compact binary file for offline analysis and
+ * replay. Each record holds the time it was taken, in nanoseconds, the
+ * connection it belongs to, its direction, a type and a payload.
+ *
+ * Recording never waits and never writes to disk: the threads handling the
+ * connections put records in a lock-free ring, and a background thread
+ * encodes them and writes them out. If the ring is full the record is
+ * dropped and counted, so capturing can never slow the link down. On close
+ * the writer waits a little for records already being taken to be put in
+ * the ring; any still missing then are counted as dropped too.
+ *
+ * On disk a capture is a header followed by records. Times are stored as
+ * the difference from the record before and lengths as variable-length
+ * integers, and a payload made only of '0' and '1' characters is packed
+ * eight bits to a byte, so a window frame takes about eight bytes.
+ *
+ * @author Karen SRocha
+ */
+public class FrameCapture {
+
+	/**
+	 * The type of records holding a whole frame, as bits.
+	 */
+	final public static int TYPE_FRAME = 254;
+
+	/**
+	 * The type of records holding an object that is not Capturable, as its
+	 * string representation.
+	 */
+	final public static int TYPE_OBJECT = 255;
+
+	/**
+	 * The number of records the ring holds by default.
+	 */
+	final public static int DEFAULT_RING_SIZE = 1 << 16;
+
+	final private static int MAGIC = 0x48434150;
+	final private static int VERSION = 1;
+	final private static int INBOUND = 0x01;
+	final private static int BITS = 0x02;
+	final private static int BUFFER_SIZE = 1 << 16;
+	// how long close waits for records being put in the ring
+	final private static long CLOSE_WAIT = 100000000;
+
+	/**
+	 * A captured message or frame.
+	 */
+	public static class Record {
+		/** The time of the record, in ns since the capture started. */
+		public long nanos;
+		/** The connection the record belongs to. */
+		public int stream;
+		/** True if it was received, false if it was sent. */
+		public boolean inbound;
+		/** The type, from Capturable, or TYPE_FRAME or TYPE_OBJECT. */
+		public int type;
+		/** The payload. */
+		public String payload;
+	}
+
+	private final Record[] ring;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private long head = 0;
+
+	private final AtomicLong recorded = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final long start = System.nanoTime();
+	private final FileChannel channel;
+	private final Thread writer;
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructs a capture writing to a file, replacing it if it exists, with
+	 * a ring of the default size.
+	 *
+	 * @param file
+	 *            The file to write to.
+	 * @throws IOException
+	 *             If the file cannot be created.
+	 */
+	public FrameCapture(Path file) throws IOException {
+		this(file, DEFAULT_RING_SIZE);
+	}
+
+	/**
+	 * Constructs a capture writing to a file, replacing it if it exists.
+	 *
+	 * @param file
+	 *            The file to write to.
+	 * @param ringSize
+	 *            The number of records the ring holds, rounded up to a power
+	 *            of two.
+	 * @throws IOException
+	 *             If the file cannot be created.
+	 */
+	public FrameCapture(Path file, int ringSize) throws IOException {
+		int size = Integer.highestOneBit(Math.max(2, ringSize - 1)) << 1;
+		ring = new Record[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			ring[i] = new Record();
+			sequences.set(i, i);
+		}
+		mask = size - 1;
+
+		channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer header = ByteBuffer.allocate(13);
+		header.putInt(MAGIC).put((byte) VERSION)
+				.putLong(System.currentTimeMillis()).flip();
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+		writer = new Thread(this::write, "Capture " + file.getFileName());
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * This method records a message sent or received on a connection.
+	 *
+	 * @param stream
+	 *            The connection.
+	 * @param inbound
+	 *            True if the message was received.
+	 * @param message
+	 *            The message.
+	 */
+	public void record(int stream, boolean inbound, Object message) {
+		if (message instanceof Capturable) {
+			Capturable capturable = (Capturable) message;
+			record(stream, inbound, capturable.getCaptureType(),
+					capturable.getCapturePayload());
+		} else {
+			record(stream, inbound, TYPE_OBJECT, String.valueOf(message));
+		}
+	}
+
+	/**
+	 * This method records a whole frame sent or received on a connection.
+	 *
+	 * @param stream
+	 *            The connection.
+	 * @param inbound
+	 *            True if the frame was received.
+	 * @param frame
+	 *            The bits of the frame.
+	 */
+	public void recordFrame(int stream, boolean inbound, String frame) {
+		record(stream, inbound, TYPE_FRAME, frame);
+	}
+
+	private void record(int stream, boolean inbound, int type, String payload) {
+		long nanos = System.nanoTime() - start;
+		long t;
+		int index;
+		do {
+			t = tail.get();
+			index = (int) t & mask;
+			if (sequences.get(index) != t || closed) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!tail.compareAndSet(t, t + 1));
+		Record slot = ring[index];
+		slot.nanos = nanos;
+		slot.stream = stream;
+		slot.inbound = inbound;
+		slot.type = type;
+		slot.payload = payload == null ? "" : payload;
+		// publish the slot to the writer
+		sequences.lazySet(index, t + 1);
+	}
+
+	/**
+	 * This method stops capturing, writes out the records still in the ring
+	 * and closes the file. It returns once the writer has stopped, which is
+	 * at most CLOSE_WAIT after the ring has been written out.
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return The number of records written to the file.
+	 */
+	public long getRecorded() {
+		return recorded.get();
+	}
+
+	/**
+	 * @return The number of records dropped because the ring was full, the
+	 *         capture was closed, or they were not put in the ring in time
+	 *         to be written at close.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return A one line summary of the capture.
+	 */
+	public String toString() {
+		return "capture: " + recorded.get() + " records written, "
+				+ dropped.get() + " dropped";
+	}
+
+	/**
+	 * The background writer. It takes records from the ring in order, and
+	 * writes the buffer out when it is nearly full or the ring is empty.
+	 * Once closed and caught up, it moves the tail out of reach, so no more
+	 * slots can be taken, and waits for those already taken, for at most
+	 * CLOSE_WAIT.
+	 */
+	private void write() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		byte[] bytes = null;
+		long previous = 0;
+		// the slots taken before closing, once known
+		long end = -1;
+		long deadline = 0;
+		try {
+			while (true) {
+				int index = (int) head & mask;
+				if (sequences.get(index) != head + 1) {
+					if (closed && end < 0) {
+						end = tail.getAndAdd(2L * ring.length);
+						deadline = System.nanoTime() + CLOSE_WAIT;
+					}
+					if (end >= 0) {
+						if (head >= end || System.nanoTime() - deadline > 0)
+							break;
+						Thread.yield();
+						continue;
+					}
+					flush(buffer);
+					LockSupport.parkNanos(100000);
+					continue;
+				}
+				Record slot = ring[index];
+				String payload = slot.payload;
+				boolean bits = isBits(payload);
+				int length = payload.length();
+				if (!bits) {
+					bytes = payload.getBytes(StandardCharsets.UTF_8);
+					length = bytes.length;
+				}
+				if (buffer.remaining() < 32 + (bits ? length / 8 + 1 : length))
+					flush(buffer);
+				if (buffer.remaining() < 32 + (bits ? length / 8 + 1 : length))
+					buffer = grow(buffer, 32 + length);
+
+				putVarLong(buffer, slot.nanos - previous);
+				previous = slot.nanos;
+				putVarLong(buffer, slot.stream);
+				buffer.put((byte) ((slot.inbound ? INBOUND : 0) | (bits ? BITS
+						: 0)));
+				buffer.put((byte) slot.type);
+				putVarLong(buffer, length);
+				if (bits) {
+					packBits(payload, buffer);
+				} else {
+					buffer.put(bytes, 0, length);
+				}
+				slot.payload = null;
+				sequences.lazySet(index, head + mask + 1);
+				head++;
+				recorded.incrementAndGet();
+			}
+			flush(buffer);
+			dropped.addAndGet(end - head);
+		} catch (IOException e) {
+			System.out.println("Capture stopped: " + e.getMessage());
+			closed = true;
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void flush(ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+		ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(needed,
+				buffer.capacity() * 2));
+		buffer.flip();
+		larger.put(buffer);
+		return larger;
+	}
+
+	private static boolean isBits(String payload) {
+		if (payload.isEmpty())
+			return false;
+		for (int i = 0; i < payload.length(); i++) {
+			char c = payload.charAt(i);
+			if (c != '0' && c != '1')
+				return false;
+		}
+		return true;
+	}
+
+	private static void packBits(String bits, ByteBuffer dst) {
+		int value = 0;
+		int length = bits.length();
+		for (int i = 0; i < length; i++) {
+			value = (value << 1) | (bits.charAt(i) & 1);
+			if ((i & 7) == 7) {
+				dst.put((byte) value);
+				value = 0;
+			}
+		}
+		if ((length & 7) != 0)
+			dst.put((byte) (value << (8 - (length & 7))));
+	}
+
+	private static void putVarLong(ByteBuffer dst, long value) {
+		while ((value & ~0x7FL) != 0) {
+			dst.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		dst.put((byte) value);
+	}
+
+	/**
+	 * This method reads a capture file and hands its records to a consumer,
+	 * in the order they were written. The same Record is reused for each
+	 * call.
+	 *
+	 * @param file
+	 *            The capture file.
+	 * @param out
+	 *            Receives the records.
+	 * @return The wall clock time, in ms, at which the capture started.
+	 * @throws IOException
+	 *             If the file cannot be read or is not a capture.
+	 */
+	public static long read(Path file, Consumer<Record> out) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(file), BUFFER_SIZE))) {
+			if (in.readInt() != MAGIC || in.readByte() != VERSION)
+				throw new IOException("Not a capture file: " + file);
+			long started = in.readLong();
+			Record record = new Record();
+			long nanos = 0;
+			char[] chars = new char[256];
+			while (true) {
+				try {
+					nanos += readVarLong(in);
+				} catch (EOFException e) {
+					break;
+				}
+				record.nanos = nanos;
+				record.stream = (int) readVarLong(in);
+				int flags = in.readUnsignedByte();
+				record.inbound = (flags & INBOUND) != 0;
+				record.type = in.readUnsignedByte();
+				int length = (int) readVarLong(in);
+				if ((flags & BITS) != 0) {
+					if (chars.length < length)
+						chars = new char[length];
+					int b = 0;
+					for (int i = 0; i < length; i++) {
+						if ((i & 7) == 0)
+							b = in.readUnsignedByte();
+						chars[i] = ((b << (i & 7)) & 0x80) == 0 ? '0' : '1';
+					}
+					record.payload = new String(chars, 0, length);
+				} else {
+					byte[] bytes = new byte[length];
+					in.readFully(bytes);
+					record.payload = new String(bytes, StandardCharsets.UTF_8);
+				}
+				out.accept(record);
+			}
+			return started;
+		}
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0;; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+	}
+}
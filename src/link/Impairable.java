@@ -0,0 +1,27 @@
+package link;
+
+/**
+ * This interface is implemented by messages whose contents are bits on the
+ * channel, so that a LinkImpairment can introduce bit errors into them.
+ * Messages that do not implement it, or return no bits, are never
+ * corrupted, only dropped or delayed.
+ *
+ * @author Karen SRocha
+ */
+public interface Impairable {
+
+	/**
+	 * @return The '0'/'1' characters the message carries, or null if it
+	 *         carries no bits.
+	 */
+	String getBits();
+
+	/**
+	 * This method returns a copy of the message carrying other bits.
+	 *
+	 * @param bits
+	 *            The bits, of the same length as getBits().
+	 * @return The copy.
+	 */
+	Object withBits(String bits);
+}
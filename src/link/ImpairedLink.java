@@ -0,0 +1,192 @@
+package link;
+
+import java.io.IOException;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * This class is one direction of a connection with a LinkImpairment applied.
+ * Messages are impaired as they are sent and held in a queue ordered by the
+ * time they are due; a thread of the link sends each one on the endpoint
+ * when that time comes. The endpoint is only ever written by that thread.
+ *
+ * @author Karen SRocha
+ */
+public class ImpairedLink {
+
+	/**
+	 * A message waiting to be delivered, or a reset of the endpoint.
+	 */
+	private static class Pending implements Comparable<Pending> {
+		final long due;
+		final long order;
+		final Object message;
+
+		Pending(long due, long order, Object message) {
+			this.due = due;
+			this.order = order;
+			this.message = message;
+		}
+
+		public int compareTo(Pending other) {
+			int c = Long.compare(due, other.due);
+			return c != 0 ? c : Long.compare(order, other.order);
+		}
+	}
+
+	private static final Object RESET = new Object();
+
+	private final LinkImpairment impairment;
+	private final Endpoint endpoint;
+	private final Random random;
+	private final PriorityQueue<Pending> queue = new PriorityQueue<>();
+	private final Thread writer;
+
+	private long order = 0;
+	private long linkFree = 0;
+	private long lastDue = 0;
+	private boolean closed = false;
+	private IOException failure;
+
+	ImpairedLink(LinkImpairment impairment, Endpoint endpoint, Random random,
+			String name) {
+		this.impairment = impairment;
+		this.endpoint = endpoint;
+		this.random = random;
+		writer = new Thread(this::deliver, name);
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * This method sends a message over the impaired link. It returns at
+	 * once; the message is sent when it is due, if it is not dropped.
+	 *
+	 * @param message
+	 *            The message.
+	 * @throws IOException
+	 *             If an earlier send on the endpoint failed.
+	 */
+	public synchronized void send(Object message) throws IOException {
+		if (failure != null)
+			throw failure;
+		if (closed)
+			throw new IOException("link closed");
+		impairment.messages.increment();
+		if (random.nextDouble() < impairment.getDropRate()) {
+			impairment.dropped.increment();
+			return;
+		}
+
+		int bits = 0;
+		if (message instanceof Impairable) {
+			Impairable impairable = (Impairable) message;
+			String payload = impairable.getBits();
+			if (payload != null) {
+				bits = payload.length();
+				String damaged = flip(payload);
+				if (damaged != payload)
+					message = impairable.withBits(damaged);
+			}
+		}
+		if (bits == 0)
+			bits = 8 * String.valueOf(message).length();
+
+		long now = System.nanoTime();
+		long departure = now;
+		long rate = impairment.getBitsPerSecond();
+		if (rate > 0) {
+			departure = Math.max(now, linkFree) + bits * 1000000000L / rate;
+			linkFree = departure;
+		}
+		long due = departure + impairment.delay(random);
+		if (!impairment.isReorder())
+			due = Math.max(due, lastDue);
+		lastDue = due;
+		queue.add(new Pending(due, order++, message));
+		notifyAll();
+	}
+
+	/**
+	 * This method resets the endpoint, from the thread of the link, once the
+	 * messages sent so far have been sent.
+	 *
+	 * @throws IOException
+	 *             If an earlier send on the endpoint failed.
+	 */
+	public synchronized void reset() throws IOException {
+		if (failure != null)
+			throw failure;
+		queue.add(new Pending(lastDue, order++, RESET));
+		notifyAll();
+	}
+
+	/**
+	 * This method stops the link. Messages not yet delivered are lost.
+	 */
+	public synchronized void close() {
+		closed = true;
+		queue.clear();
+		notifyAll();
+	}
+
+	/**
+	 * This method flips each bit with the bit error rate. The gaps between
+	 * errors are drawn from a geometric distribution, so a low rate costs
+	 * one draw per message rather than one per bit.
+	 *
+	 * @return The damaged bits, or the same string if none was flipped.
+	 */
+	private String flip(String bits) {
+		double ber = impairment.getBitErrorRate();
+		if (ber <= 0)
+			return bits;
+		char[] chars = null;
+		double logKeep = Math.log1p(-Math.min(ber, 0.999999));
+		long i = (long) (Math.log(1 - random.nextDouble()) / logKeep);
+		while (i < bits.length()) {
+			if (chars == null)
+				chars = bits.toCharArray();
+			chars[(int) i] = chars[(int) i] == '0' ? '1' : '0';
+			impairment.bitsFlipped.increment();
+			i += 1 + (long) (Math.log(1 - random.nextDouble()) / logKeep);
+		}
+		if (chars == null)
+			return bits;
+		impairment.corrupted.increment();
+		return new String(chars);
+	}
+
+	private void deliver() {
+		try {
+			while (true) {
+				Pending next;
+				synchronized (this) {
+					while (!closed && queue.isEmpty()) {
+						wait();
+					}
+					if (closed)
+						return;
+					long wait = queue.peek().due - System.nanoTime();
+					if (wait > 0) {
+						wait(wait / 1000000, (int) (wait % 1000000));
+						continue;
+					}
+					next = queue.poll();
+				}
+				if (next.message == RESET) {
+					endpoint.reset();
+				} else {
+					endpoint.send(next.message);
+					impairment.delivered.increment();
+				}
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				failure = e;
+				queue.clear();
+			}
+		} catch (InterruptedException e) {
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package link;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs connections inside one process, for simulations and
+ * benchmarks with many stations. Each direction of a connection is a
+ * bounded single-producer single-consumer queue, and messages are handed
+ * over as references rather than serialized, so messages must not be
+ * changed once sent. A full queue makes the sender wait, as a full socket
+ * buffer would.
+ *
+ * Ports are those bound on this instance only; the host is ignored. A
+ * server and its clients must be given the same instance.
+ *
+ * @author Karen SRocha
+ */
+public class InProcessTransport implements Transport {
+
+	/**
+	 * The number of messages each direction of a connection holds by
+	 * default.
+	 */
+	final public static int DEFAULT_CAPACITY = 1024;
+
+	private final int capacity;
+	private final Map<Integer, PortAcceptor> ports = new ConcurrentHashMap<>();
+	private final AtomicInteger connections = new AtomicInteger();
+
+	/**
+	 * The end of an in-process connection. Sends are serialized, so each
+	 * queue has a single producer; only the reader thread receives.
+	 */
+	private static class QueueEndpoint implements Endpoint {
+		private final SpscQueue in;
+		private final SpscQueue out;
+		private final String name;
+
+		QueueEndpoint(SpscQueue in, SpscQueue out, String name) {
+			this.in = in;
+			this.out = out;
+			this.name = name;
+		}
+
+		public synchronized void send(Object message) throws IOException {
+			out.put(message);
+		}
+
+		public Object receive() throws IOException {
+			return in.take();
+		}
+
+		public void reset() {
+			// nothing is kept once sent
+		}
+
+		public void close() {
+			out.close();
+			in.close();
+		}
+
+		public InetAddress getInetAddress() {
+			return InetAddress.getLoopbackAddress();
+		}
+
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * The connections waiting to be accepted on a port.
+	 */
+	private class PortAcceptor implements Acceptor {
+		private final int port;
+		private final int backlog;
+		private final LinkedBlockingQueue<Endpoint> pending = new LinkedBlockingQueue<>();
+		private volatile boolean closed = false;
+
+		PortAcceptor(int port, int backlog) {
+			this.port = port;
+			this.backlog = backlog;
+		}
+
+		boolean offer(Endpoint endpoint) {
+			return !closed && pending.size() < backlog
+					&& pending.offer(endpoint);
+		}
+
+		public Endpoint accept() throws IOException {
+			try {
+				Endpoint endpoint = pending.take();
+				if (endpoint == CLOSED) {
+					// wake up the next acceptor thread too
+					pending.offer(CLOSED);
+					throw new SocketException("Socket closed");
+				}
+				return endpoint;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+
+		public void close() {
+			closed = true;
+			ports.remove(port, this);
+			Endpoint endpoint;
+			while ((endpoint = pending.poll()) != null) {
+				if (endpoint != CLOSED)
+					((QueueEndpoint) endpoint).close();
+			}
+			pending.offer(CLOSED);
+		}
+	}
+
+	private static final Endpoint CLOSED = new QueueEndpoint(null, null,
+			"closed");
+
+	/**
+	 * Constructs a transport with queues of the default capacity.
+	 */
+	public InProcessTransport() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructs a transport.
+	 *
+	 * @param capacity
+	 *            The number of messages each direction of a connection
+	 *            holds before the sender waits.
+	 */
+	public InProcessTransport(int capacity) {
+		this.capacity = capacity;
+	}
+
+	public Acceptor bind(int port, int backlog) throws IOException {
+		PortAcceptor acceptor = new PortAcceptor(port, Math.max(1, backlog));
+		if (ports.putIfAbsent(port, acceptor) != null)
+			throw new BindException("Port " + port + " is already bound");
+		return acceptor;
+	}
+
+	public Endpoint connect(String host, int port) throws IOException {
+		PortAcceptor acceptor = ports.get(port);
+		if (acceptor == null)
+			throw new ConnectException("Connection refused: port " + port);
+		SpscQueue toServer = new SpscQueue(capacity);
+		SpscQueue toClient = new SpscQueue(capacity);
+		String name = "in-process:" + port + "#"
+				+ connections.incrementAndGet();
+		QueueEndpoint server = new QueueEndpoint(toServer, toClient, name);
+		if (!acceptor.offer(server))
+			throw new ConnectException("Connection refused: port " + port);
+		return new QueueEndpoint(toClient, toServer, name);
+	}
+}
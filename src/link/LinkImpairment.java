@@ -0,0 +1,207 @@
+package link;
+
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class describes an impaired channel, so the protocol can be tested
+ * under loss, bit errors, delay, reordering and limited bandwidth on
+ * loopback. It is set on a server or a client, and every connection opened
+ * afterwards sends through an ImpairedLink that applies it to each message:
+ *
+ * - the message is dropped with the drop rate;
+ * - each bit of an Impairable message is flipped with the bit error rate;
+ * - the message leaves once the link has sent the ones before it at the
+ *   bandwidth cap, and arrives after the base delay plus a random jitter;
+ * - unless reordering is allowed, a message never overtakes the one before.
+ *
+ * All random choices come from generators seeded from the seed given here
+ * and the connection, so a run can be repeated exactly. Counters are shared
+ * by all the links using the impairment. The settings may be changed while
+ * links are open; each message is impaired with the settings of the moment.
+ *
+ * @author Karen SRocha
+ */
+public class LinkImpairment {
+
+	/**
+	 * The distribution of the random part of the delay.
+	 */
+	public enum Jitter {
+		/** No random part. */
+		NONE,
+		/** Uniform between 0 and the jitter. */
+		UNIFORM,
+		/** Exponential with the jitter as its mean. */
+		EXPONENTIAL,
+		/** Normal with the jitter as its standard deviation, cut at 0. */
+		NORMAL
+	}
+
+	private final long seed;
+	private volatile double bitErrorRate = 0;
+	private volatile double dropRate = 0;
+	private volatile long delayNanos = 0;
+	private volatile long jitterNanos = 0;
+	private volatile Jitter jitter = Jitter.NONE;
+	private volatile long bitsPerSecond = 0;
+	private volatile boolean reorder = false;
+
+	final LongAdder messages = new LongAdder();
+	final LongAdder dropped = new LongAdder();
+	final LongAdder corrupted = new LongAdder();
+	final LongAdder bitsFlipped = new LongAdder();
+	final LongAdder delivered = new LongAdder();
+
+	/**
+	 * Constructs an impairment that lets everything through unchanged until
+	 * configured.
+	 *
+	 * @param seed
+	 *            The seed of the random choices.
+	 */
+	public LinkImpairment(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Sets the probability that each bit is flipped.
+	 *
+	 * @param bitErrorRate
+	 *            The bit error rate, from 0 to 1.
+	 */
+	public void setBitErrorRate(double bitErrorRate) {
+		this.bitErrorRate = bitErrorRate;
+	}
+
+	/**
+	 * Sets the probability that a message is lost.
+	 *
+	 * @param dropRate
+	 *            The drop rate, from 0 to 1.
+	 */
+	public void setDropRate(double dropRate) {
+		this.dropRate = dropRate;
+	}
+
+	/**
+	 * Sets the delay of each message.
+	 *
+	 * @param delayMillis
+	 *            The fixed part of the delay, in ms.
+	 * @param jitterMillis
+	 *            The scale of the random part, in ms.
+	 * @param jitter
+	 *            The distribution of the random part.
+	 */
+	public void setDelay(double delayMillis, double jitterMillis, Jitter jitter) {
+		this.delayNanos = (long) (delayMillis * 1e6);
+		this.jitterNanos = (long) (jitterMillis * 1e6);
+		this.jitter = jitter;
+	}
+
+	/**
+	 * Sets the rate at which each link sends bits.
+	 *
+	 * @param bitsPerSecond
+	 *            The bandwidth cap, or 0 for none.
+	 */
+	public void setBandwidth(long bitsPerSecond) {
+		this.bitsPerSecond = bitsPerSecond;
+	}
+
+	/**
+	 * Sets whether a message with a shorter delay may overtake the one sent
+	 * before it.
+	 *
+	 * @param reorder
+	 *            True to allow reordering.
+	 */
+	public void setReorder(boolean reorder) {
+		this.reorder = reorder;
+	}
+
+	/**
+	 * This method opens an impaired link over a connection.
+	 *
+	 * @param endpoint
+	 *            The end of the connection the link sends on.
+	 * @param stream
+	 *            A number identifying the connection, mixed into the seed.
+	 * @param name
+	 *            The name of the thread delivering the messages.
+	 * @return The link.
+	 */
+	public ImpairedLink open(Endpoint endpoint, int stream, String name) {
+		return new ImpairedLink(this, endpoint,
+				new Random(seed * 31 + stream), name);
+	}
+
+	/**
+	 * @return The messages given to links, whether delivered or not.
+	 */
+	public long getMessages() {
+		return messages.sum();
+	}
+
+	/**
+	 * @return The messages dropped.
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * @return The messages that had at least one bit flipped.
+	 */
+	public long getCorrupted() {
+		return corrupted.sum();
+	}
+
+	/**
+	 * @return A one line summary of what the links did.
+	 */
+	public String toString() {
+		return String.format(
+				"impairment: %d messages, %d dropped, %d corrupted (%d bits), %d delivered",
+				messages.sum(), dropped.sum(), corrupted.sum(),
+				bitsFlipped.sum(), delivered.sum());
+	}
+
+	double getBitErrorRate() {
+		return bitErrorRate;
+	}
+
+	double getDropRate() {
+		return dropRate;
+	}
+
+	long getBitsPerSecond() {
+		return bitsPerSecond;
+	}
+
+	boolean isReorder() {
+		return reorder;
+	}
+
+	/**
+	 * This method draws the delay of a message.
+	 */
+	long delay(Random random) {
+		long extra;
+		switch (jitter) {
+		case UNIFORM:
+			extra = (long) (random.nextDouble() * jitterNanos);
+			break;
+		case EXPONENTIAL:
+			extra = (long) (-Math.log(1 - random.nextDouble()) * jitterNanos);
+			break;
+		case NORMAL:
+			extra = Math.max(0, (long) (random.nextGaussian() * jitterNanos));
+			break;
+		default:
+			extra = 0;
+		}
+		return delayNanos + extra;
+	}
+}
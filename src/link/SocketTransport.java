@@ -0,0 +1,135 @@
+package link;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * This class runs connections over TCP sockets, with messages serialized on
+ * object streams. It is the transport used unless another one is set.
+ *
+ * @author Karen SRocha
+ */
+public class SocketTransport implements Transport {
+
+	/**
+	 * The transport shared by everything that does not set another one.
+	 */
+	final public static SocketTransport DEFAULT = new SocketTransport();
+
+	/**
+	 * The end of a connection over a socket. Sends are serialized on the
+	 * endpoint, since an object stream written by two threads at once is
+	 * corrupted.
+	 */
+	private static class SocketEndpoint implements Endpoint {
+		private final Socket socket;
+		private final ObjectOutputStream output;
+		private final ObjectInputStream input;
+
+		SocketEndpoint(Socket socket) throws IOException {
+			this.socket = socket;
+			socket.setSoTimeout(0); // make sure timeout is infinite
+			// frames are small and each waits for an answer: send at once
+			socket.setTcpNoDelay(true);
+			// both ends write their stream header before reading the other's;
+			// each message is flushed whole, in one write
+			output = new ObjectOutputStream(new BufferedOutputStream(
+					socket.getOutputStream()));
+			output.flush();
+			input = new ObjectInputStream(socket.getInputStream());
+		}
+
+		public synchronized void send(Object message) throws IOException {
+			output.writeObject(message);
+			output.flush();
+		}
+
+		public Object receive() throws IOException, ClassNotFoundException {
+			return input.readObject();
+		}
+
+		public synchronized void reset() throws IOException {
+			output.reset();
+		}
+
+		public void close() throws IOException {
+			try {
+				socket.close();
+			} finally {
+				try {
+					output.close();
+				} catch (IOException e) {
+					// the socket is closed: a reset still buffered goes with it
+				} finally {
+					input.close();
+				}
+			}
+		}
+
+		public InetAddress getInetAddress() {
+			return socket.getInetAddress();
+		}
+
+		public String toString() {
+			InetAddress address = socket.getInetAddress();
+			return address.getHostName() + " (" + address.getHostAddress()
+					+ ")";
+		}
+	}
+
+	/**
+	 * This method opens the object streams of a connected socket. The socket
+	 * is closed if they cannot be opened.
+	 *
+	 * @param socket
+	 *            The socket.
+	 * @return The end of the connection.
+	 * @throws IOException
+	 *             If the streams cannot be opened.
+	 */
+	public static Endpoint open(Socket socket) throws IOException {
+		try {
+			return new SocketEndpoint(socket);
+		} catch (IOException e) {
+			try {
+				socket.close();
+			} catch (IOException ex) {
+			}
+			throw e;
+		}
+	}
+
+	public Acceptor bind(int port, int backlog) throws IOException {
+		final ServerSocket serverSocket = new ServerSocket(port, backlog);
+		return new Acceptor() {
+			public Endpoint accept() throws IOException {
+				// a client that goes away while connecting is skipped
+				while (true) {
+					Socket socket = serverSocket.accept();
+					try {
+						return open(socket);
+					} catch (IOException e) {
+						if (serverSocket.isClosed())
+							throw e;
+					}
+				}
+			}
+
+			public void close() {
+				try {
+					serverSocket.close();
+				} catch (IOException e) {
+				}
+			}
+		};
+	}
+
+	public Endpoint connect(String host, int port) throws IOException {
+		return open(new Socket(host, port));
+	}
+}
@@ -0,0 +1,121 @@
+package link;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is a bounded queue for one producer thread and one consumer
+ * thread, carrying one direction of an in-process connection. It is a ring
+ * indexed by two counters, each written by one side only, so neither side
+ * takes a lock. A side that finds the ring full or empty spins briefly and
+ * then parks until the other side wakes it up.
+ *
+ * @author Karen SRocha
+ */
+final class SpscQueue {
+
+	final private static int SPINS = 100;
+
+	private final Object[] ring;
+	private final int mask;
+	// the next slot to take, written by the consumer only
+	private final AtomicLong head = new AtomicLong();
+	// the next slot to put, written by the producer only
+	private final AtomicLong tail = new AtomicLong();
+
+	private volatile Thread waitingProducer;
+	private volatile Thread waitingConsumer;
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructs a queue.
+	 *
+	 * @param capacity
+	 *            The most messages it holds, rounded up to a power of two.
+	 */
+	SpscQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		ring = new Object[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * This method adds a message, waiting while the queue is full.
+	 *
+	 * @param message
+	 *            The message.
+	 * @throws IOException
+	 *             If the queue is closed.
+	 */
+	void put(Object message) throws IOException {
+		long t = tail.get();
+		int spins = 0;
+		while (t - head.get() >= ring.length && !closed) {
+			if (spins++ < SPINS) {
+				Thread.onSpinWait();
+				continue;
+			}
+			waitingProducer = Thread.currentThread();
+			if (t - head.get() >= ring.length && !closed)
+				LockSupport.park(this);
+			waitingProducer = null;
+		}
+		if (closed)
+			throw new IOException("connection closed");
+		ring[(int) t & mask] = message;
+		// a volatile write, so it cannot pass the read of waitingConsumer
+		tail.set(t + 1);
+		Thread consumer = waitingConsumer;
+		if (consumer != null)
+			LockSupport.unpark(consumer);
+	}
+
+	/**
+	 * This method takes the oldest message, waiting while the queue is
+	 * empty.
+	 *
+	 * @return The message.
+	 * @throws IOException
+	 *             EOFException if the queue is closed and empty.
+	 */
+	Object take() throws IOException {
+		long h = head.get();
+		int spins = 0;
+		while (tail.get() == h) {
+			if (closed)
+				throw new EOFException("connection closed");
+			if (spins++ < SPINS) {
+				Thread.onSpinWait();
+				continue;
+			}
+			waitingConsumer = Thread.currentThread();
+			if (tail.get() == h && !closed)
+				LockSupport.park(this);
+			waitingConsumer = null;
+		}
+		int index = (int) h & mask;
+		Object message = ring[index];
+		ring[index] = null;
+		head.set(h + 1);
+		Thread producer = waitingProducer;
+		if (producer != null)
+			LockSupport.unpark(producer);
+		return message;
+	}
+
+	/**
+	 * This method closes the queue. Messages already in it can still be
+	 * taken; putting fails.
+	 */
+	void close() {
+		closed = true;
+		Thread producer = waitingProducer;
+		if (producer != null)
+			LockSupport.unpark(producer);
+		Thread consumer = waitingConsumer;
+		if (consumer != null)
+			LockSupport.unpark(consumer);
+	}
+}
@@ -0,0 +1,62 @@
+package link;
+
+import java.io.IOException;
+
+/**
+ * This interface opens the connections between stations. SocketTransport
+ * runs them over TCP; InProcessTransport runs them over queues in memory, so
+ * a primary and thousands of secondaries can run in one process without
+ * the kernel's networking. A server and the clients connecting to it must
+ * use the same transport.
+ *
+ * @author Karen SRocha
+ */
+public interface Transport {
+
+	/**
+	 * This interface waits for connections on a port bound with bind().
+	 */
+	interface Acceptor {
+
+		/**
+		 * This method waits for the next connection.
+		 *
+		 * @return The server end of the connection.
+		 * @throws IOException
+		 *             If the acceptor is closed.
+		 */
+		Endpoint accept() throws IOException;
+
+		/**
+		 * This method stops accepting connections and wakes up accept().
+		 * Connections already accepted stay open.
+		 */
+		void close();
+	}
+
+	/**
+	 * This method binds a port to accept connections on.
+	 *
+	 * @param port
+	 *            The port.
+	 * @param backlog
+	 *            The most connections waiting to be accepted.
+	 * @return The acceptor.
+	 * @throws IOException
+	 *             If the port cannot be bound.
+	 */
+	Acceptor bind(int port, int backlog) throws IOException;
+
+	/**
+	 * This method connects to a port bound by a server.
+	 *
+	 * @param host
+	 *            The host of the server.
+	 * @param port
+	 *            The port.
+	 * @return The client end of the connection.
+	 * @throws IOException
+	 *             If the connection is refused.
+	 */
+	Endpoint connect(String host, int port) throws IOException;
+}